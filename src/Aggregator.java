@@ -1,19 +1,17 @@
 package logpp;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.ParseException;
@@ -23,24 +21,69 @@ import java.time.format.DateTimeParseException;
 import java.time.ZonedDateTime;
 import java.time.ZoneOffset;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 import java.io.FileInputStream;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
-// Take all files from the `processed` directory and perform various aggregations, as determined by an `AggregatorStrategy`.
+// Take all files from the `processed` directory and perform various aggregations, as determined by a number of `AggregatorStrategy`s.
+// Each month is a task, run on a pool of threads. The biggest months are started first, as they take longest.
+// Each task has a memory reservation, estimated from the size of its input and what its strategies say they need, and
+// only starts once the reservation fits into the memory budget, so months only run side by side if they fit.
+// Within a task, each month file is read and split exactly once. Every line is fed to every strategy that still has to run
+// for that month, into the state for the partition that the strategy assigns it to.
+// If all of that state gets bigger than the task's reservation, the biggest partitions are spilled to sorted runs on disk,
+// which are merged back in when the output is written. So memory is bounded by configuration, not the size of a month.
+// A strategy can ask for a pre-pass over the month before that, which is the only time a month is read more than once.
+// A month that was processed into domain buckets has a task per bucket for the strategies that only look at domains,
+// which can run side by side and need a fraction of the memory. Their outputs are put together at the end.
+// In incremental mode, for a month that's still coming in, each strategy's state is saved as a Checkpoint when it's
+// written. The next run carries on from the checkpoint, only reads what was added to the month since, and writes the
+// outputs again from the merged state. So refreshing a month every day costs the new lines, not the month so far.
 public class Aggregator implements Runnable {
+  // Memory budget for aggregation state in megabytes, shared by all running months. Defaults to half of the heap.
+  static final int MEMORY_BUDGET_MB = Integer.getInteger("logpp.aggregateMemory", (int) (Runtime.getRuntime().maxMemory() / 2 / 1048576));
+
+  // Smallest reservation for a month, for the small stuff that isn't estimated.
+  static final int MIN_TASK_MB = 16;
+
+  // How many months can run at once, if they fit into memory.
+  static final int THREADS = Integer.getInteger("logpp.aggregateThreads", Runtime.getRuntime().availableProcessors());
+
+  // How many lines between checks of the memory used.
+  static final int MEMORY_CHECK_LINES = 100000;
+
+  // Keep checkpoints and bring months up to date from them, rather than skipping months that have been done.
+  static final boolean INCREMENTAL = Boolean.getBoolean("logpp.aggregateIncremental");
+
+  // Outputs for each bucket of a month are written to e.g. "2015-01-day-domain.csv-chunks.bucket-7" then put together.
+  static final String BUCKET_INFIX = ".bucket-";
+
   File inputDirectory;
   File outputDirectory;
-  AggregatorStrategy strategy;
+  File checkpointDirectory;
+  AggregatorStrategy[] strategies;
 
-  public Aggregator(File inputDirectory, File outputDirectory, AggregatorStrategy strategy) {
+  public Aggregator(File inputDirectory, File outputDirectory, File checkpointDirectory, AggregatorStrategy[] strategies) {
     this.inputDirectory = inputDirectory;
     this.outputDirectory = outputDirectory;
-    this.strategy = strategy;
+    this.checkpointDirectory = checkpointDirectory;
+    this.strategies = strategies;
 
     if (!this.inputDirectory.exists()) {
       throw new IllegalArgumentException(String.format("Error: Input directory %s doesn't exist\n", this.inputDirectory));
@@ -49,18 +92,21 @@ public class Aggregator implements Runnable {
     if (!this.outputDirectory.exists()) {
       throw new IllegalArgumentException(String.format("Error: Output directory %s doesn't exist\n", this.outputDirectory));
     }
+
+    if (INCREMENTAL && !this.checkpointDirectory.exists() && !this.checkpointDirectory.mkdirs()) {
+      throw new IllegalArgumentException(String.format("Error: Can't create checkpoint directory %s\n", this.checkpointDirectory));
+    }
   }
   
   public void run() {
-    try {
-    final AtomicInteger totalLinesCounter = new AtomicInteger(0);
+    final AtomicLong totalLinesCounter = new AtomicLong(0);
 
     Thread reporter = new Thread() {
         public void run() {
           try {
             // Interrupt breaks the thread.
             while (! Thread.currentThread().isInterrupted()) {
-              System.out.format("Tick '" + Aggregator.this.strategy.toString() + "'. Processed lines: %d\n", totalLinesCounter.get());
+              System.out.format("Tick. Processed lines: %d\n", totalLinesCounter.get());
               Thread.sleep(10000);
             }
           } catch (InterruptedException e) {}
@@ -68,91 +114,270 @@ public class Aggregator implements Runnable {
       }
     };
 
-      reporter.start();
-
-      int numPartitions = strategy.numPartitions();
-      
-      // One file is a month, so counts are self-contained.
-      // One input file is exactly a month and corresponds to exactly one output file.
-      for (File inputFile : this.inputDirectory.listFiles()) {
-        // Filename will be the YYYY-MM.gz .
-        String filename = inputFile.getName();
-        // Ignore .DS_Store and friends.
-        if (!filename.matches("\\d\\d\\d\\d-\\d\\d\\.gz")) {
-          continue;
-        }
+    reporter.start();
 
+    List<AggregatorMonthTask> tasks = new ArrayList<>();
+
+    // Outputs that are written a bucket at a time -> number of buckets.
+    Map<File, Integer> bucketedOutputs = new LinkedHashMap<>();
+
+    // Parts of outputs from a run that didn't finish.
+    for (File f : this.outputDirectory.listFiles()) {
+      if (f.getName().contains(BUCKET_INFIX)) {
+        f.delete();
+      }
+    }
+
+    // One file is a month, so counts are self-contained.
+    // One input file is exactly a month and corresponds to exactly one output file per strategy.
+    // Months by name. A month's file could be in either format.
+    Set<String> months = new TreeSet<>();
+    for (File inputFile : this.inputDirectory.listFiles()) {
+      // Filename will be the YYYY-MM.gz or YYYY-MM.columns , or a bucket like YYYY-MM.domain-07-of-16.gz .
+      String filename = inputFile.getName();
+      // Ignore .DS_Store and friends.
+      if (filename.matches("\\d\\d\\d\\d-\\d\\d(\\.domain-\\d+-of-\\d+)?\\.(gz|columns)")) {
         // Drop the extension.
-        filename = filename.substring(0, 7);
+        months.add(filename.substring(0, 7));
+      }
+    }
 
-        // If this aggregation already ran skip it.
-        File outputFile = new File(this.outputDirectory, strategy.fileName(filename));
-        if (outputFile.exists()) {
-          System.out.format("Aggregate output file %s already exists, skipping.\n", outputFile.toString());
-          continue;
+    for (String filename : months) {
+      // The month file and any lines that spilled over into it from later inputs after it was written.
+      List<File> monthFiles = monthFiles(this.inputDirectory, filename);
+      int buckets = this.bucketsOf(monthFiles);
+
+      // The strategies that still need to run for this month, grouped by the checkpoint they carry on from.
+      // Strategies that start from scratch are under "". Usually there's just the one group.
+      Map<String, AggregatorMonthTask> monthTasks = new LinkedHashMap<>();
+
+      for (AggregatorStrategy strategy : this.strategies) {
+        // Most strategies have one output file, some have a few.
+        String[] outputNames = strategy.fileNames(filename);
+        File[] outputFiles = new File[outputNames.length];
+        boolean outputsExist = true;
+        for (int i = 0; i < outputNames.length; i++) {
+          outputFiles[i] = new File(this.outputDirectory, outputNames[i]);
+          outputsExist &= outputFiles[i].exists();
         }
 
-        Writer output = new BufferedWriter(new FileWriter(outputFile));
-        long totalLines = 0;
+        if (!INCREMENTAL) {
+          // If this aggregation already ran skip it. Outputs that are there aren't written again.
+          boolean missing = false;
+          for (int i = 0; i < outputFiles.length; i++) {
+            if (outputFiles[i].exists()) {
+              System.out.format("Aggregate output file %s already exists, skipping.\n", outputFiles[i].toString());
+              outputFiles[i] = null;
+            } else {
+              missing = true;
+            }
+          }
 
-        // Split the file into partitions.
-        for (int partitionNumber = 0; partitionNumber < numPartitions; partitionNumber++) {
-          System.out.format("%s: Partition %d / %d\n", filename, partitionNumber, numPartitions-1);
+          if (missing && buckets > 0 && strategy.splitsByDomain()) {
+            for (int bucket = 0; bucket < buckets; bucket++) {
+              List<File> bucketFiles = this.bucketFiles(monthFiles, bucket);
+              if (!bucketFiles.isEmpty()) {
+                String name = String.format("%s bucket %d", filename, bucket);
+                this.taskFor(monthTasks, name, name, bucketFiles, null, totalLinesCounter).add(strategy, bucketParts(outputFiles, bucket), null);
+              }
+            }
 
-          // New handle each time. Doesn't happen often.
-          BufferedReader input = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(inputFile), 131072), "UTF-8"), 131072);
+            for (File outputFile : outputFiles) {
+              if (outputFile != null) {
+                bucketedOutputs.put(outputFile, buckets);
+              }
+            }
+          } else if (missing) {
+            this.taskFor(monthTasks, "", filename, monthFiles, null, totalLinesCounter).add(strategy, outputFiles, null);
+          }
+          continue;
+        }
 
-          String lineInput;
-          while ((lineInput = input.readLine()) != null) {
-            // Line is [date, doi, code, full-domain, subdomains, domain, path].
-            String[] line = lineInput.split("\t", -1);
+        try {
+          Checkpoint checkpoint = strategy.canCheckpoint() ? new Checkpoint(this.checkpointDirectory, strategy.fileName(filename)) : null;
+          boolean resume = checkpoint != null && checkpoint.canResume(monthFiles, strategy.numPartitions());
 
-            if (line.length != 7) {
-              System.err.format("Error: Ignoring line with %d parts: %s\n", line.length, lineInput);
+          // In incremental mode all of a strategy's outputs are written again.
+          if (outputsExist) {
+            if (resume && checkpoint.isUpToDate(monthFiles)) {
+              System.out.format("Aggregate output files %s are up to date, skipping.\n", Arrays.toString(outputNames));
               continue;
             }
 
-            // Reject except for this partition.
-            // Strategy knows how to partition.
-            if (strategy.partition(line) != partitionNumber) {
+            // Months that were done without a checkpoint are only done again if they've changed since.
+            if (!resume && !this.changedSince(monthFiles, outputFiles)) {
+              System.out.format("Aggregate output files %s already exist, skipping.\n", Arrays.toString(outputNames));
               continue;
             }
+          }
 
-            totalLines++;
-            totalLinesCounter.getAndIncrement();
-
-            strategy.feed(line);
+          if (checkpoint != null && checkpoint.exists() && !resume) {
+            System.out.format("Checkpoint for %s doesn't match the input files, starting again.\n", strategy.fileName(filename));
+          }
 
-            if (totalLines % 1000000 == 0) {
-              System.out.format("Processed lines: %d\n", totalLines);
-              
-              // This solves weird flushing issues.
-              System.out.println("");
-            }
+          if (resume) {
+            this.taskFor(monthTasks, checkpoint.describe(), filename, monthFiles, checkpoint, totalLinesCounter).add(strategy, outputFiles, checkpoint);
+          } else {
+            this.taskFor(monthTasks, "", filename, monthFiles, null, totalLinesCounter).add(strategy, outputFiles, checkpoint);
           }
-          
-          // We've finished this partition for this month, flush out the counts and start again.
-          strategy.write(output);
-          strategy.reset();
+        } catch (IOException e) {
+          System.err.println("ERROR: Can't read checkpoint: " + e.toString());
+          System.exit(1);
+        }
+      }
 
-          // So we can snoop on what's being written.
-          output.flush();
+      tasks.addAll(monthTasks.values());
+    }
 
-          // Re-open input and seek to start for each partition pass.
-          input.close();
-        }
+    // Biggest first. The queue is first-in-first-out, and the semaphore is fair, so they're started in this order.
+    Collections.sort(tasks, new Comparator<AggregatorMonthTask>() {
+      public int compare(AggregatorMonthTask a, AggregatorMonthTask b) {
+        return Long.compare(b.inputBytes, a.inputBytes);
+      }
+    });
+
+    for (AggregatorMonthTask task : tasks) {
+      task.estimateMemory();
+    }
+
+    Semaphore budget = new Semaphore(MEMORY_BUDGET_MB, true);
+
+    System.out.format("Aggregate %d months with %d threads and %dMB\n", tasks.size(), THREADS, MEMORY_BUDGET_MB);
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    List<Future<?>> futures = new ArrayList<>();
+    for (AggregatorMonthTask task : tasks) {
+      task.budget = budget;
+      futures.add(executor.submit(task));
+    }
+    executor.shutdown();
+
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException | ExecutionException e) {
+        // If there's an exception, blow the whole thing up. This tool is meant for supervised use.
+        System.err.println("ERROR: " + e.toString());
+        e.printStackTrace();
+        System.exit(1);
+      }
+    }
 
-        output.close();
-        reporter.interrupt();
+    try {
+      for (Map.Entry<File, Integer> entry : bucketedOutputs.entrySet()) {
+        joinBuckets(entry.getKey(), entry.getValue());
       }
-      
-    } catch (Exception e) {
-      // If there's an exception, blow the whole thing up. This tool is meant for supervised use.
-      System.err.println("ERROR: " + e.toString());
-      e.printStackTrace();
+    } catch (IOException e) {
+      System.err.println("ERROR: Can't put buckets together: " + e.toString());
       System.exit(1);
     }
 
-    System.out.println("Aanalyzer finished.");
+    reporter.interrupt();
+
+    System.out.println("Aggregator finished.");
+  }
+
+  // The task in the month for strategies that carry on from the same point, made if there isn't one yet.
+  private AggregatorMonthTask taskFor(Map<String, AggregatorMonthTask> monthTasks, String key, String yearMonth, List<File> monthFiles, Checkpoint resumeFrom, AtomicLong totalLinesCounter) {
+    AggregatorMonthTask task = monthTasks.get(key);
+    if (task == null) {
+      task = new AggregatorMonthTask(yearMonth, monthFiles, resumeFrom, totalLinesCounter);
+      monthTasks.put(key, task);
+    }
+    return task;
+  }
+
+  // Has any of the month files been modified since any of the outputs were written?
+  private boolean changedSince(List<File> monthFiles, File[] outputFiles) {
+    for (File monthFile : monthFiles) {
+      for (File outputFile : outputFiles) {
+        if (monthFile.lastModified() > outputFile.lastModified()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // The month file followed by its spill files, e.g. "2015-01.spill-from-201502.gz", in name order.
+  // If the format was changed part way through a month, there could be some of each. Same for buckets.
+  static List<File> monthFiles(File inputDirectory, String yearMonth) {
+    List<File> result = Formats.processedFiles(inputDirectory, yearMonth);
+    List<File> spills = new ArrayList<>();
+    for (File f : inputDirectory.listFiles()) {
+      if (Formats.isProcessedFile(f.getName()) && f.getName().startsWith(yearMonth + Formats.SPILL_INFIX)) {
+        spills.add(f);
+      }
+    }
+    Collections.sort(spills);
+    result.addAll(spills);
+
+    return result;
+  }
+
+  // How many domain buckets the month was processed into. 0 unless all of its files are in the same number of buckets,
+  // otherwise a domain's lines could be in more than one, and the month has to be done as a whole.
+  private int bucketsOf(List<File> monthFiles) {
+    int buckets = Formats.bucketsOf(monthFiles.get(0));
+    for (File f : monthFiles) {
+      if (Formats.bucketsOf(f) != buckets) {
+        return 0;
+      }
+    }
+    return buckets;
+  }
+
+  // The month files in the bucket, main file first.
+  private List<File> bucketFiles(List<File> monthFiles, int bucket) {
+    List<File> result = new ArrayList<>();
+    for (File f : monthFiles) {
+      if (Formats.bucketOf(f) == bucket) {
+        result.add(f);
+      }
+    }
+    return result;
+  }
+
+  // Where each output's part for the bucket is written, e.g. "2015-01-day-domain.csv-chunks.bucket-7".
+  static File[] bucketParts(File[] outputFiles, int bucket) {
+    File[] result = new File[outputFiles.length];
+    for (int i = 0; i < outputFiles.length; i++) {
+      if (outputFiles[i] != null) {
+        result[i] = new File(outputFiles[i].getPath() + BUCKET_INFIX + bucket);
+      }
+    }
+    return result;
+  }
+
+  // Put the parts of the output end to end, in bucket order. Written to a temporary file first so that the output only
+  // appears when it's complete. A bucket with no lines has no part.
+  static void joinBuckets(File outputFile, int buckets) throws IOException {
+    File temporary = new File(outputFile.getPath() + ".tmp");
+    List<File> parts = new ArrayList<>();
+
+    byte[] buffer = new byte[131072];
+    try (OutputStream outputStream = new FileOutputStream(temporary)) {
+      for (int bucket = 0; bucket < buckets; bucket++) {
+        File part = new File(outputFile.getPath() + BUCKET_INFIX + bucket);
+        if (!part.exists()) {
+          continue;
+        }
+        parts.add(part);
+
+        try (InputStream inputStream = new FileInputStream(part)) {
+          int read;
+          while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+          }
+        }
+      }
+    }
+
+    if (!temporary.renameTo(outputFile)) {
+      throw new IOException("Can't rename " + temporary.getPath() + " to " + outputFile.getPath());
+    }
+
+    for (File part : parts) {
+      part.delete();
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,307 @@
+package logpp;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Aggregate one month with the strategies that haven't been written for it yet.
+// The partitions of each strategy are only made when the task starts, so months that are waiting don't take memory.
+// In incremental mode it carries on from the point that its strategies' checkpoints got to, if they have them.
+// For a month that's aggregated as it's processed, FusedAggregator calls `begin`, `feed` and `finish` itself with the lines
+// as they're made, instead of the task reading the month files.
+class AggregatorMonthTask implements Runnable {
+  String yearMonth;
+  List<File> monthFiles;
+  List<AggregatorStrategy> strategies = new ArrayList<>();
+  // Per strategy, its output files. Null for those that are already there and aren't to be written.
+  List<File[]> outputs = new ArrayList<>();
+  AtomicLong totalLinesCounter;
+
+  // Per strategy, the checkpoint to save to, or null.
+  List<Checkpoint> checkpoints = new ArrayList<>();
+
+  // Checkpoint that all of the strategies carry on from, or null to start from scratch.
+  Checkpoint resumeFrom;
+
+  // Where to start reading each month file, and where it ended when the task was made.
+  long[] offsets;
+  long[] lengths;
+
+  // Compressed size of what's to be read from the month files.
+  long inputBytes = 0;
+
+  // Estimated memory needed in MB, no more than the whole budget. This many permits are taken from the budget.
+  // FusedAggregator's tasks don't take permits, and their share can change as more of them start.
+  volatile int reservation;
+
+  Semaphore budget;
+
+  // One strategy object per partition for each strategy, made by `begin`. The first partition of each also does the
+  // routing, so that nothing is shared with other months.
+  private AggregatorStrategy[][] partitionsByStrategy;
+  private AggregatorStrategy[] routers;
+
+  // One record, re-used for every line.
+  private ProcessedRecord record;
+
+  private long totalLines = 0;
+
+  AggregatorMonthTask(String yearMonth, List<File> monthFiles, Checkpoint resumeFrom, AtomicLong totalLinesCounter) {
+    this.yearMonth = yearMonth;
+    this.monthFiles = monthFiles;
+    this.resumeFrom = resumeFrom;
+    this.totalLinesCounter = totalLinesCounter;
+
+    this.offsets = new long[monthFiles.size()];
+    this.lengths = new long[monthFiles.size()];
+    for (int i = 0; i < monthFiles.size(); i++) {
+      this.offsets[i] = resumeFrom == null ? 0 : resumeFrom.offset(monthFiles.get(i));
+      this.lengths[i] = monthFiles.get(i).length();
+      this.inputBytes += this.lengths[i] - this.offsets[i];
+    }
+  }
+
+  void add(AggregatorStrategy strategy, File[] output, Checkpoint checkpoint) {
+    this.strategies.add(strategy);
+    this.outputs.add(output);
+    this.checkpoints.add(checkpoint);
+  }
+
+  // Work out the reservation, once all of the strategies are in.
+  void estimateMemory() {
+    double perInputByte = 0;
+    long fixedBytes = 0;
+    for (AggregatorStrategy strategy : this.strategies) {
+      perInputByte += strategy.memoryPerInputByte();
+      fixedBytes += strategy.fixedMemory();
+    }
+
+    long estimate = (long) ((this.inputBytes * perInputByte + fixedBytes) / 1048576);
+    this.reservation = (int) Math.min(Aggregator.MEMORY_BUDGET_MB, Math.max(Aggregator.MIN_TASK_MB, estimate));
+  }
+
+  public void run() {
+    try {
+      this.budget.acquire(this.reservation);
+      try {
+        this.aggregate();
+      } finally {
+        this.budget.release(this.reservation);
+      }
+    } catch (Exception e) {
+      // If there's an exception, blow the whole thing up. This tool is meant for supervised use.
+      System.err.println("ERROR: " + e.toString());
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private void aggregate() throws IOException {
+    if (this.resumeFrom == null) {
+      System.out.format("%s: Aggregate %d files with %d strategies in %dMB\n", this.yearMonth, this.monthFiles.size(), this.strategies.size(), this.reservation);
+    } else {
+      System.out.format("%s: Carry on from checkpoints with %d strategies, %dKB of new input, in %dMB\n", this.yearMonth, this.strategies.size(), this.inputBytes / 1024, this.reservation);
+    }
+
+    this.begin();
+
+    // Some strategies need to see the whole month before they count anything, e.g. to build a filter.
+    boolean[] wantsPrepass = new boolean[this.routers.length];
+    boolean prepass = false;
+    for (int i = 0; i < this.routers.length; i++) {
+      wantsPrepass[i] = this.routers[i].wantsPrepass();
+      prepass |= wantsPrepass[i];
+    }
+
+    if (prepass) {
+      System.out.format("%s: Pre-pass\n", this.yearMonth);
+
+      for (int fileNumber = 0; fileNumber < this.monthFiles.size(); fileNumber++) {
+        // Bad lines are reported in the main pass.
+        ProcessedReader input = this.open(fileNumber, false);
+        if (input == null) {
+          continue;
+        }
+
+        while (input.next(this.record)) {
+          for (int i = 0; i < this.routers.length; i++) {
+            if (wantsPrepass[i]) {
+              this.partitionsByStrategy[i][this.routers[i].partition(this.record)].prefeed(this.record);
+            }
+          }
+        }
+
+        input.close();
+      }
+    }
+
+    for (int fileNumber = 0; fileNumber < this.monthFiles.size(); fileNumber++) {
+      ProcessedReader input = this.open(fileNumber, true);
+      if (input == null) {
+        continue;
+      }
+
+      this.feed(input);
+      input.close();
+    }
+
+    this.finish();
+  }
+
+  // Make the partitions, starting from the checkpoints if there are any.
+  void begin() throws IOException {
+    this.partitionsByStrategy = new AggregatorStrategy[this.strategies.size()][];
+    for (int i = 0; i < this.partitionsByStrategy.length; i++) {
+      AggregatorStrategy strategy = this.strategies.get(i);
+      this.partitionsByStrategy[i] = new AggregatorStrategy[strategy.numPartitions()];
+      for (int partitionNumber = 0; partitionNumber < this.partitionsByStrategy[i].length; partitionNumber++) {
+        this.partitionsByStrategy[i][partitionNumber] = strategy.newInstance();
+      }
+
+      // Each partition saves to its own file in the new checkpoint, and starts from its file in the old one.
+      Checkpoint checkpoint = this.checkpoints.get(i);
+      if (checkpoint != null) {
+        checkpoint.begin();
+        for (int partitionNumber = 0; partitionNumber < this.partitionsByStrategy[i].length; partitionNumber++) {
+          this.partitionsByStrategy[i][partitionNumber].checkpoint(checkpoint.nextPartition(partitionNumber));
+          if (this.resumeFrom != null) {
+            this.partitionsByStrategy[i][partitionNumber].resume(checkpoint.partition(partitionNumber));
+          }
+        }
+      }
+    }
+
+    // Plain arrays for the inner loop.
+    this.routers = new AggregatorStrategy[this.partitionsByStrategy.length];
+    for (int i = 0; i < this.routers.length; i++) {
+      this.routers[i] = this.partitionsByStrategy[i][0];
+    }
+
+    this.record = new ProcessedRecord();
+  }
+
+  // Count every line from the input.
+  void feed(ProcessedReader input) throws IOException {
+    while (input.next(this.record)) {
+      // Strategy knows how to partition, feed the line into the state for that partition.
+      for (int i = 0; i < this.routers.length; i++) {
+        this.partitionsByStrategy[i][this.routers[i].partition(this.record)].feed(this.record);
+      }
+
+      this.totalLines++;
+      this.totalLinesCounter.getAndIncrement();
+
+      if (this.totalLines % Aggregator.MEMORY_CHECK_LINES == 0) {
+        this.spillIfNeeded(this.partitionsByStrategy);
+      }
+
+      if (this.totalLines % 1000000 == 0) {
+        System.out.format("%s: Processed lines: %d\n", this.yearMonth, this.totalLines);
+      
+        // This solves weird flushing issues.
+        System.out.println("");
+      }
+    }
+  }
+
+  // Write the outputs and save the checkpoints.
+  void finish() throws IOException {
+    // Flush out the counts, partition by partition, merging back in anything that was spilled.
+    for (int i = 0; i < this.routers.length; i++) {
+      System.out.format("%s: Write %s\n", this.yearMonth, this.routers[i].toString());
+
+      File[] outputFiles = this.outputs.get(i);
+      Writer[] writers = new Writer[outputFiles.length];
+      for (int j = 0; j < outputFiles.length; j++) {
+        if (outputFiles[j] != null) {
+          writers[j] = new BufferedWriter(new FileWriter(outputFiles[j]));
+        }
+      }
+
+      for (AggregatorStrategy partition : this.partitionsByStrategy[i]) {
+        partition.write(writers);
+        partition.reset();
+      }
+
+      for (Writer writer : writers) {
+        if (writer != null) {
+          writer.close();
+        }
+      }
+    }
+
+    // Only once all of the outputs are there. If it fails before this, the next run starts from the old checkpoint.
+    for (Checkpoint checkpoint : this.checkpoints) {
+      if (checkpoint != null) {
+        checkpoint.commit(this.monthFiles, this.lengths);
+      }
+    }
+  }
+
+  // Read the month file from where the checkpoint got to, or null if there's nothing new.
+  // Processed files are never added to, so that's the start of a new file or the end of one that's been read. The offsets
+  // only matter to tell files that were re-written, see Checkpoint.
+  private ProcessedReader open(int fileNumber, boolean reportErrors) throws IOException {
+    if (this.offsets[fileNumber] >= this.lengths[fileNumber]) {
+      return null;
+    }
+
+    return ProcessedReader.open(this.monthFiles.get(fileNumber), this.offsets[fileNumber], reportErrors);
+  }
+
+  // If the state in memory is over the reservation, spill the biggest partitions to disk until it's down to half of it.
+  // The biggest are the ones with most distinct keys, which are the least likely to be counted again.
+  private void spillIfNeeded(AggregatorStrategy[][] partitionsByStrategy) throws IOException {
+    List<AggregatorStrategy> partitions = new ArrayList<>();
+    for (AggregatorStrategy[] strategyPartitions : partitionsByStrategy) {
+      Collections.addAll(partitions, strategyPartitions);
+    }
+
+    final Map<AggregatorStrategy, Long> estimates = new HashMap<>();
+    long total = 0;
+    for (AggregatorStrategy partition : partitions) {
+      long estimate = partition.memoryEstimate();
+      estimates.put(partition, estimate);
+      total += estimate;
+    }
+
+    long reservationBytes = this.reservation * 1048576L;
+    if (total <= reservationBytes) {
+      return;
+    }
+
+    Collections.sort(partitions, new Comparator<AggregatorStrategy>() {
+      public int compare(AggregatorStrategy a, AggregatorStrategy b) {
+        return Long.compare(estimates.get(b), estimates.get(a));
+      }
+    });
+
+    int spilled = 0;
+    long before = total;
+    for (AggregatorStrategy partition : partitions) {
+      if (total <= reservationBytes / 2 || estimates.get(partition) == 0) {
+        break;
+      }
+
+      // Some of the state, like a prefilter, stays in memory after a spill.
+      partition.spill();
+      long freed = estimates.get(partition) - partition.memoryEstimate();
+      if (freed > 0) {
+        total -= freed;
+        spilled++;
+      }
+    }
+
+    System.out.format("%s: Spilled %d partitions to disk, estimated memory %dMB -> %dMB\n", this.yearMonth, spilled, before / 1048576, total / 1048576);
+  }
+}
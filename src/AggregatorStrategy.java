@@ -1,5 +1,6 @@
 package logpp;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
 
@@ -7,23 +8,88 @@ import java.io.Writer;
 // This is a stateful strategy object with various callbacks. 
 // Not threadsafe.
 public interface AggregatorStrategy {
-  // How many partitions required.
-  // Based on observed heuristics.
+  // How many partitions the state is split into.
+  // These are the units that get spilled to disk when memory runs short, so more partitions means smaller spills.
   int numPartitions();
 
   // Filename for this kind out output based on date.
+  // For strategies with more than one output, the name of the state, e.g. for checkpoints.
   String fileName(String date);
 
+  // Filenames of all of the outputs, for strategies that write more than one file from the same state.
+  default String[] fileNames(String date) {
+    return new String[] {this.fileName(date)};
+  }
+
   // Rather than have another layer of context objects and context object factories, allow reset of state between runs.
   void reset();
 
+  // A new, empty strategy of the same kind and configuration.
+  // The Aggregator keeps one per partition so that every partition can be filled from a single read of the input.
+  AggregatorStrategy newInstance();
+
   // Which partition does this line belong to?
-  int partition(String[] line);
+  int partition(ProcessedRecord record);
+
+  // Does the state for a line only depend on its referring domain? Then a month that was processed into domain buckets
+  // (see Formats.BUCKETS) can be aggregated a bucket at a time, and the outputs for the buckets put end to end.
+  default boolean splitsByDomain() {
+    return false;
+  }
 
   // Process the line.
-  // Line is [date, doi, code, domain].
-  void feed(String[] line);
+  // The record and its fields are re-used for the next line, so copy anything that's kept.
+  void feed(ProcessedRecord record);
+
+  // Does this strategy need to see every line once before any are fed? e.g. to build a filter.
+  // If any do, the Aggregator reads the month an extra time first.
+  default boolean wantsPrepass() {
+    return false;
+  }
+
+  // Process the line in the pre-pass. Goes to the same partition as `feed`.
+  default void prefeed(ProcessedRecord record) {
+  }
+
+  // Write everything to each of the `fileNames`, in the same order, including anything that was spilled.
+  // A writer is null if that output doesn't need to be written. Strategies with one file only have `writers[0]`.
+  void write(Writer[] writers) throws IOException;
+
+  // Rough guess at the bytes of state needed per byte of gzipped processed input, used to decide how many months can
+  // be aggregated at once. Only a guide, as `spill` keeps each month within what it was given.
+  default double memoryPerInputByte() {
+    return 0;
+  }
+
+  // Bytes needed however big the input is, over all partitions, e.g. for a filter of a fixed size. Added to the
+  // reservation along with `memoryPerInputByte`.
+  default long fixedMemory() {
+    return 0;
+  }
+
+  // Very approximate bytes of state held in memory, so the Aggregator can keep to its memory budget.
+  // Strategies whose state is always small can leave this as zero.
+  default long memoryEstimate() {
+    return 0;
+  }
+
+  // Move the state in memory out to disk. It must be merged back in by `write`.
+  default void spill() throws IOException {
+  }
+
+  // Can the state be saved to checkpoints, so that a month can be aggregated a bit at a time? See the Aggregator.
+  // Strategies that can't are run over the whole month whenever it has new lines.
+  default boolean canCheckpoint() {
+    return false;
+  }
+
+  // Start from the state saved in a checkpoint by an earlier run, as if those lines had been fed again.
+  // Called after `checkpoint` and before anything is fed. The file must be left as it is.
+  default void resume(File checkpoint) throws IOException {
+  }
 
-  // Write everything to the output file.
-  void write(Writer writer) throws IOException;
+  // Save the whole state to this file when it's written, including anything resumed from, in whatever format `resume`
+  // reads. Called before anything is fed, so that a strategy can avoid doing anything that a checkpoint can't hold.
+  default void checkpoint(File checkpoint) {
+  }
 }
@@ -0,0 +1,103 @@
+package logpp;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Read lines from a stream as raw bytes, without decoding them.
+// Lines are windows onto an internal buffer that's re-used, so they're only valid until the next call to `next`.
+// Lines are terminated by "\n", and a "\r" before it is dropped.
+public class ByteLineReader {
+  private InputStream input;
+
+  private byte[] buffer;
+
+  // Valid data in the buffer is [position, limit).
+  private int position = 0;
+  private int limit = 0;
+
+  private boolean endOfInput = false;
+
+  // The current line.
+  private int lineStart = 0;
+  private int lineEnd = 0;
+
+  public ByteLineReader(InputStream input, int bufferSize) {
+    this.input = input;
+    this.buffer = new byte[bufferSize];
+  }
+
+  // Advance to the next line. False when there are no more lines.
+  public boolean next() throws IOException {
+    int searchFrom = this.position;
+
+    while (true) {
+      for (int i = searchFrom; i < this.limit; i++) {
+        if (this.buffer[i] == '\n') {
+          this.setLine(this.position, i);
+          this.position = i + 1;
+          return true;
+        }
+      }
+
+      if (this.endOfInput) {
+        // Last line without a terminator.
+        if (this.position < this.limit) {
+          this.setLine(this.position, this.limit);
+          this.position = this.limit;
+          return true;
+        }
+        return false;
+      }
+
+      searchFrom = this.limit - this.position;
+      this.fill();
+    }
+  }
+
+  // Move the unconsumed data to the start of the buffer (growing it if a line won't fit) and read more.
+  private void fill() throws IOException {
+    int remaining = this.limit - this.position;
+
+    if (remaining == this.buffer.length) {
+      byte[] bigger = new byte[this.buffer.length * 2];
+      System.arraycopy(this.buffer, this.position, bigger, 0, remaining);
+      this.buffer = bigger;
+    } else {
+      System.arraycopy(this.buffer, this.position, this.buffer, 0, remaining);
+    }
+
+    this.position = 0;
+    this.limit = remaining;
+
+    int read = this.input.read(this.buffer, this.limit, this.buffer.length - this.limit);
+    if (read == -1) {
+      this.endOfInput = true;
+    } else {
+      this.limit += read;
+    }
+  }
+
+  private void setLine(int start, int end) {
+    if (end > start && this.buffer[end - 1] == '\r') {
+      end--;
+    }
+    this.lineStart = start;
+    this.lineEnd = end;
+  }
+
+  public byte[] getBuffer() {
+    return this.buffer;
+  }
+
+  public int getLineStart() {
+    return this.lineStart;
+  }
+
+  public int getLineEnd() {
+    return this.lineEnd;
+  }
+
+  public void close() throws IOException {
+    this.input.close();
+  }
+}
@@ -0,0 +1,118 @@
+package logpp;
+
+import java.nio.charset.StandardCharsets;
+
+// A reusable window onto a byte buffer, e.g. one field of a log line.
+// Doesn't own or copy the bytes, so it's only valid until the buffer is re-used.
+// As a CharSequence each byte is one char, which is only meaningful for ASCII. Use toString() for the real UTF-8 value.
+public class ByteSlice implements CharSequence {
+  byte[] bytes;
+  int offset;
+  int length;
+
+  public ByteSlice() {
+  }
+
+  public ByteSlice(byte[] bytes) {
+    this.set(bytes, 0, bytes.length);
+  }
+
+  public void set(byte[] bytes, int offset, int length) {
+    this.bytes = bytes;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  public byte[] getBytes() {
+    return this.bytes;
+  }
+
+  public int getOffset() {
+    return this.offset;
+  }
+
+  public int length() {
+    return this.length;
+  }
+
+  public char charAt(int index) {
+    return (char) (this.bytes[this.offset + index] & 0xFF);
+  }
+
+  public CharSequence subSequence(int start, int end) {
+    ByteSlice result = new ByteSlice();
+    result.set(this.bytes, this.offset + start, end - start);
+    return result;
+  }
+
+  // Are all bytes 7-bit?
+  public boolean isAscii() {
+    int end = this.offset + this.length;
+    for (int i = this.offset; i < end; i++) {
+      if (this.bytes[i] < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean contains(byte b) {
+    int end = this.offset + this.length;
+    for (int i = this.offset; i < end; i++) {
+      if (this.bytes[i] == b) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Lower-case A-Z in place. Leaves everything else alone.
+  public void toLowerCaseAscii() {
+    int end = this.offset + this.length;
+    for (int i = this.offset; i < end; i++) {
+      byte b = this.bytes[i];
+      if (b >= 'A' && b <= 'Z') {
+        this.bytes[i] = (byte) (b + ('a' - 'A'));
+      }
+    }
+  }
+
+  // Same bytes?
+  public boolean contentEquals(byte[] other, int otherOffset, int otherLength) {
+    if (this.length != otherLength) {
+      return false;
+    }
+    for (int i = 0; i < this.length; i++) {
+      if (this.bytes[this.offset + i] != other[otherOffset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean equals(Object other) {
+    if (!(other instanceof ByteSlice)) {
+      return false;
+    }
+    ByteSlice slice = (ByteSlice) other;
+    return this.contentEquals(slice.bytes, slice.offset, slice.length);
+  }
+
+  // Same as String's hash code for ASCII, so things partition the same either way.
+  public int hashCode() {
+    return hashCode(this.bytes, this.offset, this.length);
+  }
+
+  public static int hashCode(byte[] bytes, int offset, int length) {
+    int hash = 0;
+    for (int i = offset; i < offset + length; i++) {
+      hash = 31 * hash + (bytes[i] & 0xFF);
+    }
+    return hash;
+  }
+
+  // Materialize as a String, decoding UTF-8.
+  public String toString() {
+    return new String(this.bytes, this.offset, this.length, StandardCharsets.UTF_8);
+  }
+}
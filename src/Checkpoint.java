@@ -0,0 +1,188 @@
+package logpp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+// Saved state of one Aggregator Strategy for one month, for incremental aggregation.
+// A directory per output file, e.g. "checkpoints/2015-01-day-domain.csv-chunks/", with one file per partition in the
+// strategy's own format, and "inputs.tsv" which records how much of each month file went into it:
+//   name, length, fingerprint
+// Processed files are written in one go and never added to, as each run of `process` writes new spill files instead. So
+// a month file is either new since the checkpoint, and read from the start, or already read to its end. The length and
+// fingerprint only guard against files that were re-written, in which case the month starts again from scratch. The
+// fingerprint is a CRC32 of the first and last 64KB of what was read.
+// A new checkpoint is written next to the old one and swapped in once it's complete, so a failed run leaves the old one.
+public class Checkpoint {
+  private static final String INPUTS = "inputs.tsv";
+  private static final int FINGERPRINT_BYTES = 65536;
+
+  private File directory;
+  private File next;
+
+  // Month file name -> [length, fingerprint], or null if there's no checkpoint.
+  private Map<String, long[]> inputs = null;
+
+  public Checkpoint(File parent, String name) throws IOException {
+    this.directory = new File(parent, name);
+    this.next = new File(parent, name + ".new");
+
+    File inputsFile = new File(this.directory, INPUTS);
+    if (inputsFile.exists()) {
+      this.inputs = new TreeMap<>();
+
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(inputsFile), StandardCharsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        this.inputs.put(fields[0], new long[] {Long.parseLong(fields[1]), Long.parseLong(fields[2])});
+      }
+      reader.close();
+    }
+  }
+
+  public boolean exists() {
+    return this.inputs != null;
+  }
+
+  // Can a run carry on from this checkpoint? Every file that went into it must still be there and the same up to where
+  // it was read, and there must be a file for every partition.
+  public boolean canResume(List<File> monthFiles, int partitions) throws IOException {
+    if (this.inputs == null) {
+      return false;
+    }
+
+    for (int partition = 0; partition < partitions; partition++) {
+      if (!this.partition(partition).exists()) {
+        return false;
+      }
+    }
+
+    int found = 0;
+    for (File monthFile : monthFiles) {
+      long[] input = this.inputs.get(monthFile.getName());
+      if (input == null) {
+        continue;
+      }
+
+      if (monthFile.length() < input[0] || fingerprint(monthFile, input[0]) != input[1]) {
+        return false;
+      }
+      found++;
+    }
+
+    return found == this.inputs.size();
+  }
+
+  // Has everything in the month files gone into this checkpoint already?
+  public boolean isUpToDate(List<File> monthFiles) {
+    for (File monthFile : monthFiles) {
+      if (this.offset(monthFile) != monthFile.length()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Where to carry on reading the month file from.
+  public long offset(File monthFile) {
+    long[] input = this.inputs == null ? null : this.inputs.get(monthFile.getName());
+    return input == null ? 0 : input[0];
+  }
+
+  // What went into the checkpoint, to tell which checkpoints can be carried on from together.
+  public String describe() {
+    StringBuilder result = new StringBuilder();
+    for (Map.Entry<String, long[]> input : this.inputs.entrySet()) {
+      result.append(input.getKey()).append("\t").append(input.getValue()[0]).append("\t").append(input.getValue()[1]).append("\n");
+    }
+    return result.toString();
+  }
+
+  // State of the partition in this checkpoint.
+  public File partition(int partition) {
+    return new File(this.directory, partitionName(partition));
+  }
+
+  // Start writing a new checkpoint.
+  public void begin() throws IOException {
+    deleteDirectory(this.next);
+    if (!this.next.mkdirs()) {
+      throw new IOException("Can't create checkpoint directory " + this.next.getPath());
+    }
+  }
+
+  // Where to write the state of the partition in the new checkpoint.
+  public File nextPartition(int partition) {
+    return new File(this.next, partitionName(partition));
+  }
+
+  // Once all of the partitions are written, record how much of each month file went into them and swap the new
+  // checkpoint in for the old one.
+  public void commit(List<File> monthFiles, long[] lengths) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(this.next, INPUTS)), StandardCharsets.UTF_8));
+    for (int i = 0; i < monthFiles.size(); i++) {
+      writer.write(String.format("%s\t%d\t%d\n", monthFiles.get(i).getName(), lengths[i], fingerprint(monthFiles.get(i), lengths[i])));
+    }
+    writer.close();
+
+    deleteDirectory(this.directory);
+    if (!this.next.renameTo(this.directory)) {
+      throw new IOException("Can't rename " + this.next.getPath() + " to " + this.directory.getPath());
+    }
+  }
+
+  private static String partitionName(int partition) {
+    return String.format("partition-%d.gz", partition);
+  }
+
+  // CRC32 of the first and last few bytes of the first `length` bytes of the file.
+  private static long fingerprint(File file, long length) throws IOException {
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[FINGERPRINT_BYTES];
+
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      int head = (int) Math.min(length, FINGERPRINT_BYTES);
+      input.readFully(buffer, 0, head);
+      crc.update(buffer, 0, head);
+
+      long tailStart = Math.max(head, length - FINGERPRINT_BYTES);
+      int tail = (int) (length - tailStart);
+      input.seek(tailStart);
+      input.readFully(buffer, 0, tail);
+      crc.update(buffer, 0, tail);
+    } finally {
+      input.close();
+    }
+
+    return crc.getValue();
+  }
+
+  private static void deleteDirectory(File directory) throws IOException {
+    if (!directory.exists()) {
+      return;
+    }
+
+    for (File f : directory.listFiles()) {
+      if (!f.delete()) {
+        throw new IOException("Can't delete " + f.getPath());
+      }
+    }
+    if (!directory.delete()) {
+      throw new IOException("Can't delete " + directory.getPath());
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package logpp;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.SortedMap;
+
+// Writes each key as a CSV Chunk: the key, then "key2,count" lines, then a blank line.
+// Can instead roll "YYYY-MM-DD" counts up into one line for the month, dated the 1st, the same as counting with TruncateMonth.
+public class ChunkWriter implements SortedRuns.Visitor {
+  private Writer writer;
+  private boolean monthTotals;
+
+  public ChunkWriter(Writer writer) {
+    this(writer, false);
+  }
+
+  public ChunkWriter(Writer writer, boolean monthTotals) {
+    this.writer = writer;
+    this.monthTotals = monthTotals;
+  }
+
+  public void visit(String key, SortedMap<String, Integer> counts) throws IOException {
+    this.writer.write(key);
+    this.writer.write("\n");
+
+    if (this.monthTotals) {
+      int total = 0;
+      for (Integer count : counts.values()) {
+        total += count;
+      }
+
+      this.writer.write(counts.firstKey().substring(0, 8));
+      this.writer.write("01,");
+      this.writer.write(Integer.toString(total));
+      this.writer.write("\n");
+    } else {
+      for (SortedMap.Entry<String, Integer> entry : counts.entrySet()) {
+        this.writer.write(entry.getKey());
+        this.writer.write(",");
+        this.writer.write(entry.getValue().toString());
+        this.writer.write("\n");
+      }
+    }
+
+    this.writer.write("\n");
+  }
+}
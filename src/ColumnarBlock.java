@@ -0,0 +1,212 @@
+package logpp;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// One block of a columnar file, with each column decoded the first time it's needed.
+class ColumnarBlock {
+  int rows;
+
+  private byte[] data;
+  private int[] columnOffsets = new int[ColumnarFormat.COLUMNS];
+  private int[] deflatedLengths = new int[ColumnarFormat.COLUMNS];
+  private int[] inflatedLengths = new int[ColumnarFormat.COLUMNS];
+
+  private Inflater inflater;
+  private String yearMonth;
+
+  // Decoded columns, or null until they're needed.
+  private byte[][] dates;
+  private byte[] days;
+  private Dictionary codes;
+  private Dictionary domains;
+  private Dictionary paths;
+
+  // Whole DOIs, prefix and suffix put back together, one after the other.
+  private byte[] dois;
+  private int[] doiEnds;
+
+  // Read the next block, or null at the end of the input. The inflater is re-used for every block.
+  static ColumnarBlock read(DataInputStream input, Inflater inflater) throws IOException {
+    byte[] magic = new byte[ColumnarFormat.MAGIC.length];
+    int read = input.read(magic, 0, 1);
+    if (read < 1) {
+      return null;
+    }
+    input.readFully(magic, 1, magic.length - 1);
+    for (int i = 0; i < magic.length; i++) {
+      if (magic[i] != ColumnarFormat.MAGIC[i]) {
+        throw new IOException("Not a columnar block");
+      }
+    }
+
+    ColumnarBlock block = new ColumnarBlock();
+    block.inflater = inflater;
+    block.data = new byte[input.readInt()];
+    input.readFully(block.data);
+
+    ByteBuffer header = ByteBuffer.wrap(block.data);
+    block.rows = header.getInt();
+    block.yearMonth = new String(block.data, 4, 7, StandardCharsets.UTF_8);
+    header.position(4 + 7);
+
+    for (int column = 0; column < ColumnarFormat.COLUMNS; column++) {
+      block.deflatedLengths[column] = header.getInt();
+      block.inflatedLengths[column] = header.getInt();
+      block.columnOffsets[column] = header.position();
+      if (header.remaining() < block.deflatedLengths[column]) {
+        throw new EOFException("Truncated columnar block");
+      }
+      header.position(header.position() + block.deflatedLengths[column]);
+    }
+
+    return block;
+  }
+
+  // Point the slice at the field for the row. Fields are numbered as in ProcessedRecord.
+  void field(int field, int row, ByteSlice slice) {
+    switch (field) {
+      case 0:
+        if (this.dates == null) {
+          this.days = this.inflate(ColumnarFormat.DAY);
+          this.dates = new byte[32][];
+        }
+        int day = this.days[row];
+        if (this.dates[day] == null) {
+          this.dates[day] = String.format("%s-%02d", this.yearMonth, day).getBytes(StandardCharsets.UTF_8);
+        }
+        slice.set(this.dates[day], 0, 10);
+        break;
+      case 1:
+        if (this.dois == null) {
+          this.decodeDois();
+        }
+        int start = row == 0 ? 0 : this.doiEnds[row - 1];
+        slice.set(this.dois, start, this.doiEnds[row] - start);
+        break;
+      case 2:
+        if (this.codes == null) {
+          this.codes = new Dictionary(this.inflate(ColumnarFormat.CODE), 1, this.rows);
+        }
+        this.codes.get(row, 0, slice);
+        break;
+      case 3:
+      case 4:
+      case 5:
+        if (this.domains == null) {
+          this.domains = new Dictionary(this.inflate(ColumnarFormat.DOMAINS), 3, this.rows);
+        }
+        this.domains.get(row, field - 3, slice);
+        break;
+      case 6:
+        if (this.paths == null) {
+          this.paths = new Dictionary(this.inflate(ColumnarFormat.PATH), 1, this.rows);
+        }
+        this.paths.get(row, 0, slice);
+        break;
+      default:
+        throw new IllegalArgumentException("No field " + field);
+    }
+  }
+
+  private void decodeDois() {
+    Dictionary prefixes = new Dictionary(this.inflate(ColumnarFormat.DOI_PREFIX), 1, this.rows);
+    byte[] suffixes = this.inflate(ColumnarFormat.DOI_SUFFIX);
+
+    ByteSlice prefix = new ByteSlice();
+    int[] position = new int[] {0};
+    this.dois = new byte[suffixes.length + this.rows * 8];
+    this.doiEnds = new int[this.rows];
+
+    int end = 0;
+    for (int row = 0; row < this.rows; row++) {
+      prefixes.get(row, 0, prefix);
+      int suffixLength = Dictionary.readVarint(suffixes, position);
+
+      if (end + prefix.length() + suffixLength > this.dois.length) {
+        this.dois = Arrays.copyOf(this.dois, Math.max(this.dois.length * 2, end + prefix.length() + suffixLength));
+      }
+      System.arraycopy(prefix.getBytes(), prefix.getOffset(), this.dois, end, prefix.length());
+      end += prefix.length();
+      System.arraycopy(suffixes, position[0], this.dois, end, suffixLength);
+      end += suffixLength;
+      position[0] += suffixLength;
+
+      this.doiEnds[row] = end;
+    }
+  }
+
+  // A column's bytes. Columns are read as they're needed, from inside ProcessedRecord, so a bad one is unchecked.
+  private byte[] inflate(int column) {
+    byte[] result = new byte[this.inflatedLengths[column]];
+    this.inflater.reset();
+    this.inflater.setInput(this.data, this.columnOffsets[column], this.deflatedLengths[column]);
+    try {
+      int length = 0;
+      while (length < result.length) {
+        int inflated = this.inflater.inflate(result, length, result.length - length);
+        if (inflated == 0 && (this.inflater.finished() || this.inflater.needsInput())) {
+          throw new IllegalArgumentException("Truncated column");
+        }
+        length += inflated;
+      }
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException("Bad column: " + e.getMessage());
+    }
+    return result;
+  }
+
+  // A decoded dictionary column: where each value is in the column, and which value each row has.
+  private static class Dictionary {
+    private byte[] bytes;
+    private int parts;
+    private int[] starts;
+    private int[] lengths;
+    private int[] ids;
+
+    Dictionary(byte[] bytes, int parts, int rows) {
+      this.bytes = bytes;
+      this.parts = parts;
+
+      int[] position = new int[] {0};
+      int size = readVarint(bytes, position);
+      this.starts = new int[size * parts];
+      this.lengths = new int[size * parts];
+      for (int i = 0; i < size * parts; i++) {
+        this.lengths[i] = readVarint(bytes, position);
+        this.starts[i] = position[0];
+        position[0] += this.lengths[i];
+      }
+
+      this.ids = new int[rows];
+      for (int row = 0; row < rows; row++) {
+        this.ids[row] = readVarint(bytes, position);
+      }
+    }
+
+    void get(int row, int part, ByteSlice slice) {
+      int i = this.ids[row] * this.parts + part;
+      slice.set(this.bytes, this.starts[i], this.lengths[i]);
+    }
+
+    // Read a varint at position[0], and move it on.
+    static int readVarint(byte[] bytes, int[] position) {
+      int result = 0;
+      int shift = 0;
+      while (true) {
+        byte b = bytes[position[0]++];
+        result |= (b & 0x7F) << shift;
+        if (b >= 0) {
+          return result;
+        }
+        shift += 7;
+      }
+    }
+  }
+}
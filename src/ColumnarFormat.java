@@ -0,0 +1,196 @@
+package logpp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+// Processed lines as blocks of columns, instead of gzipped TSV. Written by `process` with -Dlogpp.processedColumnar=true
+// to files like "2015-01.columns". Blocks are self-contained and can be concatenated like gzip members, one per batch
+// per month, so shards, spill files and incremental aggregation work the same as with TSV.
+// Block:
+//   "LPC1", length of the rest (int), rows (int), year-month (7 bytes), then for each column its deflated length (int),
+//   inflated length (int) and the deflated bytes.
+// Columns, in order:
+//   day - a byte per row, the day of the month
+//   code, DOI prefix, domains, path - a dictionary of the distinct values in the block, then each row's index into it
+//   DOI suffix - each row's DOI after the prefix, which is up to and including the first "/"
+// The domains dictionary has the full domain, subdomains and domain of each entry together, as they go together.
+// Numbers in columns are varints, strings are a varint length then UTF-8 bytes.
+// Columns are only inflated and decoded when a field that needs them is first asked for in a block, so a strategy that
+// only looks at the date and code never touches the DOIs or domains. Blocks are read back by ColumnarBlock.
+class ColumnarFormat {
+  static final byte[] MAGIC = "LPC1".getBytes(StandardCharsets.US_ASCII);
+
+  static final int DAY = 0;
+  static final int CODE = 1;
+  static final int DOI_PREFIX = 2;
+  static final int DOI_SUFFIX = 3;
+  static final int DOMAINS = 4;
+  static final int PATH = 5;
+  static final int COLUMNS = 6;
+
+  // Encode processed lines, as the parser writes them, as one block. They must all be in the same year-month.
+  static byte[] encode(byte[] lines) throws IOException {
+    ProcessedRecord record = new ProcessedRecord();
+    ByteSlice key = new ByteSlice();
+
+    ByteArrayOutputStream days = new ByteArrayOutputStream();
+    DictionaryWriter codes = new DictionaryWriter(1);
+    DictionaryWriter prefixes = new DictionaryWriter(1);
+    ByteArrayOutputStream suffixes = new ByteArrayOutputStream();
+    DictionaryWriter domains = new DictionaryWriter(3);
+    DictionaryWriter paths = new DictionaryWriter(1);
+
+    String yearMonth = null;
+    int rows = 0;
+    int lineStart = 0;
+    for (int i = 0; i < lines.length; i++) {
+      if (lines[i] != '\n') {
+        continue;
+      }
+
+      if (!record.set(lines, lineStart, i)) {
+        throw new IllegalArgumentException("Can't encode line: " + new String(lines, lineStart, i - lineStart, StandardCharsets.UTF_8));
+      }
+      lineStart = i + 1;
+
+      // "YYYY-MM-DD"
+      ByteSlice date = record.date();
+      String lineYearMonth = new String(date.getBytes(), date.getOffset(), Math.min(7, date.length()), StandardCharsets.UTF_8);
+      if (yearMonth == null) {
+        yearMonth = lineYearMonth;
+      }
+      if (date.length() != 10 || !yearMonth.equals(lineYearMonth)) {
+        throw new IllegalArgumentException(String.format("Can't encode date %s in a block for %s", date.toString(), yearMonth));
+      }
+      days.write((date.charAt(8) - '0') * 10 + (date.charAt(9) - '0'));
+
+      codes.add(record.code());
+
+      ByteSlice doi = record.doi();
+      int prefixLength = 0;
+      while (prefixLength < doi.length() && doi.charAt(prefixLength) != '/') {
+        prefixLength++;
+      }
+      prefixLength = Math.min(doi.length(), prefixLength + 1);
+      key.set(doi.getBytes(), doi.getOffset(), prefixLength);
+      prefixes.add(key);
+      writeBytes(suffixes, doi.getBytes(), doi.getOffset() + prefixLength, doi.length() - prefixLength);
+
+      // The three domain fields are next to each other on the line, so they're the key together.
+      ByteSlice fullDomain = record.fullDomain();
+      ByteSlice domain = record.domain();
+      key.set(lines, fullDomain.getOffset(), domain.getOffset() + domain.length() - fullDomain.getOffset());
+      domains.add(key, fullDomain, record.subdomains(), domain);
+
+      paths.add(record.path());
+
+      rows++;
+    }
+
+    ByteArrayOutputStream block = new ByteArrayOutputStream(lines.length / 4 + 64);
+    DataOutputStream output = new DataOutputStream(block);
+    output.writeInt(rows);
+    output.write((yearMonth == null ? "0000-00" : yearMonth).getBytes(StandardCharsets.UTF_8));
+
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      writeColumn(output, deflater, days.toByteArray());
+      writeColumn(output, deflater, codes.toByteArray());
+      writeColumn(output, deflater, prefixes.toByteArray());
+      writeColumn(output, deflater, suffixes.toByteArray());
+      writeColumn(output, deflater, domains.toByteArray());
+      writeColumn(output, deflater, paths.toByteArray());
+    } finally {
+      deflater.end();
+    }
+    output.close();
+
+    ByteArrayOutputStream result = new ByteArrayOutputStream(block.size() + 8);
+    DataOutputStream resultOutput = new DataOutputStream(result);
+    resultOutput.write(MAGIC);
+    resultOutput.writeInt(block.size());
+    block.writeTo(resultOutput);
+    resultOutput.close();
+
+    return result.toByteArray();
+  }
+
+  private static void writeColumn(DataOutputStream output, Deflater deflater, byte[] column) throws IOException {
+    deflater.reset();
+    deflater.setInput(column);
+    deflater.finish();
+
+    ByteArrayOutputStream deflated = new ByteArrayOutputStream(column.length / 2 + 64);
+    byte[] buffer = new byte[65536];
+    while (!deflater.finished()) {
+      int length = deflater.deflate(buffer);
+      deflated.write(buffer, 0, length);
+    }
+
+    output.writeInt(deflated.size());
+    output.writeInt(column.length);
+    deflated.writeTo(output);
+  }
+
+  static void writeVarint(ByteArrayOutputStream output, int value) {
+    while ((value & ~0x7F) != 0) {
+      output.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    output.write(value);
+  }
+
+  static void writeBytes(ByteArrayOutputStream output, byte[] bytes, int offset, int length) {
+    writeVarint(output, length);
+    output.write(bytes, offset, length);
+  }
+
+  // Values in the order they're first seen, then the index of each row's value.
+  private static class DictionaryWriter {
+    private int parts;
+    private Map<ByteSlice, Integer> ids = new HashMap<>();
+    private ByteArrayOutputStream values = new ByteArrayOutputStream();
+    private ByteArrayOutputStream rows = new ByteArrayOutputStream();
+
+    DictionaryWriter(int parts) {
+      this.parts = parts;
+    }
+
+    void add(ByteSlice value) {
+      this.add(value, value, null, null);
+    }
+
+    // Add a row. A new key's value is its parts, the key itself if there's only one.
+    void add(ByteSlice key, ByteSlice part1, ByteSlice part2, ByteSlice part3) {
+      Integer id = this.ids.get(key);
+      if (id == null) {
+        id = this.ids.size();
+
+        // The key is only looked at while the block is encoded, so it can stay a view onto the lines.
+        ByteSlice copy = new ByteSlice();
+        copy.set(key.getBytes(), key.getOffset(), key.length());
+        this.ids.put(copy, id);
+
+        writeBytes(this.values, part1.getBytes(), part1.getOffset(), part1.length());
+        if (this.parts == 3) {
+          writeBytes(this.values, part2.getBytes(), part2.getOffset(), part2.length());
+          writeBytes(this.values, part3.getBytes(), part3.getOffset(), part3.length());
+        }
+      }
+      writeVarint(this.rows, id);
+    }
+
+    byte[] toByteArray() throws IOException {
+      ByteArrayOutputStream result = new ByteArrayOutputStream(this.values.size() + this.rows.size() + 5);
+      writeVarint(result, this.ids.size());
+      this.values.writeTo(result);
+      this.rows.writeTo(result);
+      return result.toByteArray();
+    }
+  }
+}
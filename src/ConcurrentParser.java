@@ -1,116 +1,187 @@
 package logpp;
 
-import logpp.etld.ETLD;
-
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
-import java.io.UnsupportedEncodingException;
-import java.io.Writer;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.text.ParseException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.Set;
+import java.util.TreeMap;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 // Parser for reading a number of log files.
-// Concurrent, one thread per year-month (which is approx 50).
+// Concurrent, one task per input file, run by a fixed number of workers.
 // Each year-month input log file maps almost-exactly to a year-month output, 
 // except for a small amount of spill-over at the edges due to differing timezone cutoffs.
-// Each thread, which is for a specific year-month will lock its output file.
-// Locks won't interact except for tiny spill-over amounts.
+// Each worker writes its own gzip shard for every year-month it produces, so there's no locking between workers.
+// When all threads have finished the shards for each year-month are concatenated into one multi-member gzip file.
 class ConcurrentParser {
   File inputDirectory;
   File outputDirectory;
 
-  // Mapping of date as YYYY-MM to file handle, which could be a NullOutputStream.
+  // How many files to parse at once. Each one has its own pipeline of threads, see ParserConcurrentItem.
+  private static final int WORKERS = Integer.getInteger("logpp.preprocessWorkers", Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+
+  // Shards are named e.g. "2015-01.gz.part-access_log-201501-ec2.gz", for the output month and the input file it came from.
+  private static final String SHARD_INFIX = Formats.processedExtension() + ".part-";
+
+  // Month in an input log file name, e.g. "access_log-201501-ec2.gz".
+  private static final Pattern LOG_DATE = Pattern.compile("-(\\d+)-");
+
+  // Where lines for each year-month from each source month go, keyed by "YYYY-MM\tYYYYMM". Decided the first time it's asked for.
   // Access is synchronized.
-  private Map<String, Writer> monthFiles = new HashMap<String, Writer>();
+  private Map<String, String> targets = new HashMap<String, String>();
 
-  // A singleton null writer.
-  // This is used when a file isn't being overwritten. 
-  // Reference comparison against this.
-  // This is referenced directly for ParserConcurrentItem for reference comparison.
-  public Writer nullWriter = new NullOutputStream();
+  // Aggregates the processed lines as they're written, for `process-and-aggregate`, or null.
+  FusedAggregator aggregator = null;
 
   public ConcurrentParser(File inputDirectory, File outputDirectory) {
-    // Add the special "special" special domain for recording special things like UNKNOWN_DOMAIN.
     this.inputDirectory = inputDirectory;
     this.outputDirectory = outputDirectory;
   }
 
-  // Return the file handle.
-  // Create the file if necessary, but don't over-write.
-  public Writer getOutputFile(String yearMonth) throws IOException {
-    // This will only be called when the year-month changes, which should only be once or twice per file.
-    synchronized (this.monthFiles) {
-      Writer writer = this.monthFiles.get(yearMonth);
-      if (writer != null) {
-        return writer;
-      } else {
-        File f = new File(this.outputDirectory, yearMonth + ".gz");
-
-        if (f.exists()) {
-          System.err.format("WARNING: Not overwriting file: %s\n", f.getPath());
-          writer = this.nullWriter;
+  // Name of the output for lines in a year-month from an input file for the source month, without the extension or bucket.
+  // Normally the month file itself. If that was already written, lines that spill over from a later input file go
+  // into a spill file for the source month, e.g. "2015-01.spill-from-201502". We don't over-write, so if an earlier run
+  // already wrote that, they go into a new one, e.g. "2015-01.spill-from-201502-2".
+  public String getTarget(String yearMonth, String sourceMonth) {
+    // This will only be called when the year-month changes, which should only be once or twice per batch.
+    synchronized (this.targets) {
+      String key = yearMonth + "\t" + sourceMonth;
+      String target = this.targets.get(key);
+      if (target == null) {
+        // In either format, and maybe in buckets.
+        if (Formats.processedFiles(this.outputDirectory, yearMonth).isEmpty()) {
+          target = yearMonth;
+
+          // The month is being written from scratch, including the lines that were spilled from this source month before.
+          for (File f : Formats.spillFiles(this.outputDirectory, yearMonth, sourceMonth)) {
+            System.err.format("WARNING: Removing spill file, its lines will go into the month file: %s\n", f.getPath());
+            f.delete();
+            MemberIndex.indexFile(f).delete();
+          }
         } else {
-          OutputStream fileStream = new FileOutputStream(f);
-          OutputStream gzipStream = new GZIPOutputStream(fileStream);
-          Writer encoder = new OutputStreamWriter(gzipStream, "UTF-8");
-          writer = new BufferedWriter(encoder);
+          String spill = yearMonth + Formats.SPILL_INFIX + sourceMonth;
+          target = spill;
+          for (int run = 2; !Formats.processedFiles(this.outputDirectory, target).isEmpty(); run++) {
+            target = spill + "-" + run;
+          }
         }
 
-        this.monthFiles.put(yearMonth, writer);
-
-        return writer;
+        this.targets.put(key, target);
       }
+      return target;
     }
   }
 
-  private void closeAll() throws IOException {
-    for (Writer w: this.monthFiles.values()) {
-      w.close();
+  // Create a new shard for the given target, belonging to one worker.
+  // Whatever is written should be complete gzip members.
+  public OutputStream createShard(String target, String owner) throws IOException {
+    File f = new File(this.outputDirectory, target + SHARD_INFIX + owner);
+    return new BufferedOutputStream(new FileOutputStream(f), 65536);
+  }
+
+  // Shards left over from a run that didn't finish. They'd be concatenated with the new ones, so remove them.
+  // Including any in the other format, which would never be merged.
+  private void removeStaleShards() {
+    for (File f : this.outputDirectory.listFiles()) {
+      if (f.getName().contains(Formats.TEXT_EXTENSION + ".part-") || f.getName().contains(Formats.COLUMNAR_EXTENSION + ".part-")) {
+        System.err.format("WARNING: Removing shard from unfinished run: %s\n", f.getPath());
+        f.delete();
+      }
     }
   }
 
-  public void run () throws InterruptedException {
-    List<ParserConcurrentItem> items = new ArrayList<>();
-    List<Thread> threads = new ArrayList<Thread>();
+  // Concatenate each target's shards into its output file.
+  // Gzip members can be concatenated, and readers treat the result as one stream. So can columnar blocks.
+  // Written to a temporary file first so that a month file only appears when it's complete.
+  // Gzip files get a MemberIndex from the lengths of the members the workers wrote, so they can be read in parallel.
+  private void mergeShards(List<ParserConcurrentItem> items) throws IOException {
+    Map<String, ParserConcurrentItem> itemsByName = new HashMap<>();
+    for (ParserConcurrentItem item : items) {
+      itemsByName.put(item.name, item);
+    }
 
-    Set<String> dates = new HashSet<>();
-    Map<String, ParserConcurrentItem> dateItems = new HashMap<>();
+    Map<String, List<File>> shardsByTarget = new TreeMap<>();
+    for (File f : this.outputDirectory.listFiles()) {
+      int infix = f.getName().indexOf(SHARD_INFIX);
+      if (infix > 0) {
+        String target = f.getName().substring(0, infix);
+        List<File> shards = shardsByTarget.get(target);
+        if (shards == null) {
+          shards = new ArrayList<>();
+          shardsByTarget.put(target, shards);
+        }
+        shards.add(f);
+      }
+    }
 
-    Pattern datePattern = Pattern.compile("-(\\d+)-");
+    byte[] buffer = new byte[131072];
+    for (Map.Entry<String, List<File>> entry : shardsByTarget.entrySet()) {
+      List<File> shards = entry.getValue();
+      Collections.sort(shards);
 
-    System.out.println("Input dir:" + this.inputDirectory);
-    System.out.println("List: " + this.inputDirectory.listFiles());
+      File output = new File(this.outputDirectory, entry.getKey() + Formats.processedExtension());
+      File temporary = new File(this.outputDirectory, entry.getKey() + Formats.processedExtension() + ".tmp");
+      System.out.format("Merge %d shards into %s\n", shards.size(), output.getPath());
 
-    if (!this.inputDirectory.exists()) {
-      System.err.println("Error, log input directory does not exist:" + this.inputDirectory);
+      List<Long> memberLengths = new ArrayList<>();
+      for (File shard : shards) {
+        ParserConcurrentItem item = itemsByName.get(shard.getName().substring(entry.getKey().length() + SHARD_INFIX.length()));
+        memberLengths.addAll(item.writer.memberLengths.get(entry.getKey()));
+      }
+
+      try (OutputStream outputStream = new FileOutputStream(temporary)) {
+        for (File shard : shards) {
+          try (InputStream inputStream = new FileInputStream(shard)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+              outputStream.write(buffer, 0, read);
+            }
+          }
+        }
+      }
+
+      if (!temporary.renameTo(output)) {
+        throw new IOException("Can't rename " + temporary.getPath() + " to " + output.getPath());
+      }
+
+      if (!Formats.COLUMNAR) {
+        MemberIndex.write(output, memberLengths);
+      }
+
+      for (File shard : shards) {
+        shard.delete();
+      }
     }
+  }
 
-    for (File inputFile : this.inputDirectory.listFiles()) {
+  // Input log files in the directory.
+  static List<File> logFiles(File inputDirectory) {
+    List<File> result = new ArrayList<>();
+    for (File inputFile : inputDirectory.listFiles()) {
+      // Sometimes we get partial downloaded files, e.g. "xyz.gz.tmp". Exclude those.
       if (!inputFile.getName().endsWith(".gz")) {
         continue;
       }
@@ -120,38 +191,136 @@ class ConcurrentParser {
         continue;
       }
 
-      Matcher match = datePattern.matcher(inputFile.getName());
-      if (match.find()) {
-        dates.add(match.group(1));
+      // Must have a date, e.g. "access_log-201501-ec2.gz".
+      if (LOG_DATE.matcher(inputFile.getName()).find()) {
+        result.add(inputFile);
       }
     }
+    return result;
+  }
 
-    for (String date : dates) {
-      ParserConcurrentItem item = new ParserConcurrentItem(date, this);
-      items.add(item);
+  public void run () throws InterruptedException {
+    System.out.println("Input dir:" + this.inputDirectory);
 
-      for (File inputFile : this.inputDirectory.listFiles()) {
-        // Sometimes we get matches in partial downloaded files, e.g. "xyz.gz.tmp". Exclude those.
-        if (inputFile.getName().contains(date) && inputFile.getName().endsWith(".gz")) {
-          item.addFile(inputFile);
+    if (!this.inputDirectory.exists()) {
+      System.err.println("Error, log input directory does not exist:" + this.inputDirectory);
+    }
+
+    List<File> inputFiles = logFiles(this.inputDirectory);
+
+    // Skip files that have been done before.
+    ProcessedManifest manifest = null;
+    try {
+      manifest = new ProcessedManifest(this.outputDirectory);
+
+      List<File> changedFiles = new ArrayList<>();
+      for (File inputFile : inputFiles) {
+        if (manifest.isDone(inputFile, this.outputDirectory)) {
+          System.out.format("Skipping unchanged input file: %s\n", inputFile.getName());
+        } else {
+          changedFiles.add(inputFile);
         }
       }
+      inputFiles = changedFiles;
+    } catch (IOException ex) {
+      System.out.println("ERROR: Can't read manifest: " + ex.toString());
+      System.exit(1);
     }
 
-    for (ParserConcurrentItem item : items) {
-      Thread thread = new Thread(item);
-      threads.add(thread);
-      thread.start();
+    this.removeStaleShards();
+
+    // A log with a LogIndex is parsed in segments, as if each one was a file of its own.
+    List<ParserConcurrentItem> items = new ArrayList<>();
+    try {
+      for (File inputFile : inputFiles) {
+        Matcher match = LOG_DATE.matcher(inputFile.getName());
+        match.find();
+        Set<String> previousMonths = manifest.getPreviousMonths(inputFile);
+        long previousLines = manifest.getPreviousLines(inputFile);
+
+        // The lines that were added to a log since it was processed are found by counting from the start, so that's
+        // parsed in one piece.
+        LogIndex index = manifest.hasChanged(inputFile) ? null : LogIndex.read(inputFile);
+        if (index == null || index.segments() < 2) {
+          items.add(new ParserConcurrentItem(inputFile, match.group(1), previousMonths, previousLines, this, null, -1));
+        } else {
+          // Every segment has to use the format that reading from the start of the file would find.
+          int format = ParserConcurrentItem.findFormat(inputFile);
+          System.out.format("Parse %s in %d segments\n", inputFile.getName(), index.segments());
+          for (int segment = 0; segment < index.segments(); segment++) {
+            ParserConcurrentItem item = new ParserConcurrentItem(inputFile, match.group(1), previousMonths, previousLines, this, index, segment);
+            item.format = format;
+            items.add(item);
+          }
+        }
+      }
+    } catch (IOException ex) {
+      System.out.println("ERROR: Can't read log or its index: " + ex.toString());
+      System.exit(1);
     }
 
-    for (Thread thread : threads) {
-      synchronized(thread) {
-        thread.join();
+    // Largest first, so that the big files aren't left until the end when there's nothing to run alongside them.
+    // The queue is first-in-first-out, so items are started in that order.
+    List<ParserConcurrentItem> bySize = new ArrayList<>(items);
+    Collections.sort(bySize, new Comparator<ParserConcurrentItem>() {
+      public int compare(ParserConcurrentItem a, ParserConcurrentItem b) {
+        return Long.compare(b.size, a.size);
+      }
+    });
+
+    System.out.format("Parse %d files in %d items with %d workers\n", inputFiles.size(), items.size(), WORKERS);
+    ExecutorService executor = Executors.newFixedThreadPool(WORKERS);
+    List<Future<?>> futures = new ArrayList<>();
+    for (ParserConcurrentItem item : bySize) {
+      futures.add(executor.submit(item));
+    }
+    executor.shutdown();
+
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        System.out.println("ERROR: " + e.getCause().toString());
+        e.getCause().printStackTrace();
+        System.exit(1);
       }
     }
 
+    // Only recorded once the output is all in place.
     try {
-      this.closeAll();
+      this.mergeShards(items);
+
+      // Segments of a log add up. Every line read from the input counts, including ones for months that weren't
+      // written again, so that next time it's known where the lines added since start.
+      Map<File, Long> lines = new LinkedHashMap<>();
+      Map<File, Map<String, Long>> outputLines = new HashMap<>();
+      for (ParserConcurrentItem item : items) {
+        Long previous = lines.get(item.inputFile);
+        lines.put(item.inputFile, (previous == null ? 0 : previous) + item.lines);
+
+        Map<String, Long> outputs = outputLines.get(item.inputFile);
+        if (outputs == null) {
+          outputs = new HashMap<>();
+          outputLines.put(item.inputFile, outputs);
+        }
+        for (Map.Entry<String, Long> output : item.writer.outputLines.entrySet()) {
+          Long count = outputs.get(output.getKey());
+          outputs.put(output.getKey(), (count == null ? 0 : count) + output.getValue());
+        }
+      }
+
+      // Without processed files they'd have to be read again.
+      if (this.aggregator == null || !FusedAggregator.SKIP_ARCHIVE) {
+        for (File inputFile : lines.keySet()) {
+          manifest.record(inputFile, lines.get(inputFile), outputLines.get(inputFile));
+        }
+        manifest.save();
+      }
+
+      // After the processed files, so the aggregated files are newer.
+      if (this.aggregator != null) {
+        this.aggregator.finish();
+      }
     } catch (IOException ex) {
       System.out.println("ERROR: " + ex.toString());
       System.exit(1);
@@ -161,357 +330,523 @@ class ConcurrentParser {
 
 
 // A chunk of work for a Parser. 
-// Correspond to a particular month. 
-// Runs on its own thread.
+// Correspond to a particular input file.
+// Runs on a worker thread, which reads the input file. The rest of the work is done by a pipeline of stages, each with
+// its own threads, connected by bounded queues of batches of lines:
+//  - this thread decompresses the input files and splits them into batches of lines
+//  - parser threads turn them into processed lines, per year-month
+//  - compressor threads encode and gzip those, as one gzip member per batch per year-month, or a columnar block
+//  - a writer thread puts the batches back into input order and appends them to this worker's shards
 class ParserConcurrentItem implements Runnable {
-  // Filter of filenames for this item.
-  // Will be a date, e.g. "201502".
-  String filter;
+  // Threads for each stage, per worker.
+  private static final int PARSE_THREADS = Integer.getInteger("logpp.parseThreads", 2);
+  private static final int COMPRESS_THREADS = Integer.getInteger("logpp.compressThreads", 2);
+
+  // Size of a batch of input lines, in bytes.
+  private static final int BATCH_SIZE = Integer.getInteger("logpp.batchSize", 1048576);
+
+  // Most batches that can be somewhere in the pipeline at once. Bounds memory use.
+  private static final int BATCHES_IN_FLIGHT = Integer.getInteger("logpp.batchesInFlight", 4 * (PARSE_THREADS + COMPRESS_THREADS));
+
+  // Markers for the end of a queue.
+  static final LineBatch END_OF_LINES = new LineBatch(-1, null, 0, 0);
+  static final ParsedBatch END_OF_PARSED = new ParsedBatch(END_OF_LINES);
+
+  File inputFile;
+
+  // Name of the input file, and the segment if it's one. Identifies this item's shards.
+  String name;
+
+  // Segment of the input file's LogIndex, or -1 for all of it.
+  LogIndex index;
+  int segment;
+
+  // Compressed bytes to read.
+  long size;
+
+  // The LineParser format for the whole file, or 0 to find it from the lines as they're read.
+  int format = 0;
+
+  // The month from the input file name, e.g. "201502".
+  String sourceMonth;
+
+  // Year-months this file had lines for when it was processed before, if it was.
+  // Those lines are already in the month or spill files, so they mustn't be spilled again.
+  Set<String> previousMonths;
+
+  // Lines the file had when it was processed before, if it was. If it has grown since, the lines after those are new,
+  // and go wherever lines for their month go now. A segment is only of a file that hasn't changed, so all of its are old.
+  long previousLines;
+
+  // Lines read, once finished.
+  long lines = 0;
 
   // Reference to parent for centralized file handles etc.
   ConcurrentParser concurrentParser;
 
-  // ETLD parser. As an ETLD's cache isn't threadsafe, have one per thread.
-  ETLD etld = new ETLD();
+  // Reader -> parsers -> compressors -> writer.
+  BlockingQueue<LineBatch> lineQueue = new ArrayBlockingQueue<>(BATCHES_IN_FLIGHT);
+  BlockingQueue<ParsedBatch> parsedQueue = new ArrayBlockingQueue<>(BATCHES_IN_FLIGHT);
+  BlockingQueue<ParsedBatch> compressedQueue = new ArrayBlockingQueue<>(BATCHES_IN_FLIGHT);
+
+  // Taken by the reader for each batch, given back by the writer once it's written.
+  Semaphore inFlight = new Semaphore(BATCHES_IN_FLIGHT);
+
+  // Has the totals once finished.
+  WriterStage writer;
+
+  ParserConcurrentItem(File inputFile, String sourceMonth, Set<String> previousMonths, long previousLines, ConcurrentParser concurrentParser, LogIndex index, int segment) {
+    this.inputFile = inputFile;
+    this.index = index;
+    this.segment = segment;
+    if (index == null) {
+      this.name = inputFile.getName();
+      this.size = inputFile.length();
+    } else {
+      // Zero-padded, so that the shards of segments go back together in order.
+      this.name = String.format("%s.segment-%05d", inputFile.getName(), segment);
+      this.size = index.compressedSize(segment);
+    }
+    this.sourceMonth = sourceMonth;
+    this.previousMonths = previousMonths;
+    this.previousLines = previousLines;
+    this.concurrentParser = concurrentParser;
+  }
 
-  // The set of files that we're going to read.
-  Collection<File> files = new ArrayList<>();
+  public void run() {
+    System.out.format("Start parsing %s\n", this.name);
+
+    List<ReferrerParser> referrerParsers = new ArrayList<>();
+    List<Thread> parserThreads = new ArrayList<>();
+    for (int i = 0; i < PARSE_THREADS; i++) {
+      ParserStage parser = new ParserStage(this);
+      referrerParsers.add(parser.referrerParser);
+      parserThreads.add(new Thread(parser));
+    }
 
-  // Pattern to handle OpenURL requests (for error handling).
-  private Pattern openurlRe = Pattern.compile("^([\\d.]+) HTTP:OpenURL");
+    List<Thread> compressorThreads = new ArrayList<>();
+    for (int i = 0; i < COMPRESS_THREADS; i++) {
+      compressorThreads.add(new Thread(new CompressorStage(this)));
+    }
 
-  // DateParser is stateful. One per thread.
-  private DateParser dateParser = new DateParser();  
+    this.writer = new WriterStage(this);
+    Thread writerThread = new Thread(this.writer);
 
-  private String[][] PREFIX_PAIRS = new String[][] {
-    // Found with with capital 'R' and 'C' in the wild.
-    new String[] {"app:/readcube.swf", "weird://readcube.special"},
+    for (Thread thread : parserThreads) {
+      thread.start();
+    }
+    for (Thread thread : compressorThreads) {
+      thread.start();
+    }
+    writerThread.start();
 
-    // Don't know where this comes from. Looks like generic SWF file.
-    // https://en.wikipedia.org/wiki/Adobe_SWC_file
-    new String[] {"app:/library.swf", "weird://unknown.special"},
+    long sequence = 0;
 
-    // Page number? 
-    // E.g."app:/p822.swf"
-    new String[] {"app:/p", "weird://unknown.special"}
-  };
+    try {
+      System.out.format("Process input file %s, %d bytes\n", this.name, this.size);
 
-  ParserConcurrentItem(String filter, ConcurrentParser concurrentParser) {
-    this.filter = filter;
-    this.concurrentParser = concurrentParser;
-    this.etld.addLine("special");
+      // LineParser uses the first format that works for this file.
+      // Find it here, so that every parser thread uses the same one for all of the file. Segments are given it.
+      LineParser formatFinder = new LineParser();
+      int format = this.format;
+
+      // Lines are read and parsed as raw bytes. Only decode what's needed.
+      InputStream gzipStream = this.index == null ? new GZIPInputStream(new FileInputStream(this.inputFile), 131072) : this.index.openSegment(this.segment);
+      ByteLineReader lineReader = new ByteLineReader(gzipStream, 131072);
+
+      LineBatch batch = this.newBatch(sequence++, format);
+
+      while (lineReader.next()) {
+        byte[] buffer = lineReader.getBuffer();
+        int lineStart = lineReader.getLineStart();
+        int lineEnd = lineReader.getLineEnd();
+
+        // Lines before the first one that parses don't parse in any format, so it's fine for them to be in a batch with it.
+        if (format == 0 && formatFinder.parse(buffer, lineStart, lineEnd)) {
+          format = formatFinder.getFormat();
+          batch.format = format;
+        }
+
+        batch.add(buffer, lineStart, lineEnd);
+        this.lines++;
+
+        if (batch.isFull(BATCH_SIZE)) {
+          this.lineQueue.put(batch);
+          batch = this.newBatch(sequence++, format);
+        }
+      }
+
+      // What's left.
+      this.lineQueue.put(batch);
+
+      lineReader.close();
+
+      // Shut down each stage in turn, once the one before it has finished.
+      for (int i = 0; i < PARSE_THREADS; i++) {
+        this.lineQueue.put(END_OF_LINES);
+      }
+      for (Thread thread : parserThreads) {
+        thread.join();
+      }
+
+      for (int i = 0; i < COMPRESS_THREADS; i++) {
+        this.parsedQueue.put(END_OF_PARSED);
+      }
+      for (Thread thread : compressorThreads) {
+        thread.join();
+      }
+
+      this.compressedQueue.put(END_OF_PARSED);
+      writerThread.join();
+    } catch (Exception e) {
+      System.out.println("Error in parsing file " + this.name + ": " + e.toString());
+      e.printStackTrace();
+      System.exit(1);
+    }
+
+    System.out.format("Finished %s! Processed lines: %d, bytes: %d, failed: %d, OpenURL: %d, %s\n", this.name, this.writer.totalLines, this.writer.totalBytes, this.writer.failedLines, this.writer.openUrlIgnores, ReferrerParser.getStats(referrerParsers));
+    System.out.println("");
+
+    System.out.format("Finished parsing %s\n", this.name);
   }
 
-  void addFile(File file) {
-    this.files.add(file);
+  // The LineParser format of the first line in the file that parses in any, or 0 if none do.
+  // The no-referrer format is greedy, so a later line can parse in either and it has to be from the start.
+  static int findFormat(File inputFile) throws IOException {
+    LineParser formatFinder = new LineParser();
+    ByteLineReader lineReader = new ByteLineReader(new GZIPInputStream(new FileInputStream(inputFile), 131072), 131072);
+    try {
+      while (lineReader.next()) {
+        if (formatFinder.parse(lineReader.getBuffer(), lineReader.getLineStart(), lineReader.getLineEnd())) {
+          return formatFinder.getFormat();
+        }
+      }
+      return 0;
+    } finally {
+      lineReader.close();
+    }
   }
 
-  public void run() {
-      System.out.format("Start parsing %s\n", this.filter);
-
-      System.out.println("Run");
-
-      // Total successful lines.
-      long totalLines = 0;
-
-      // Total consumed chars.
-      // Overflows int many times over!
-      long totalChars = 0;
-
-      // Total lines where parsing failed.
-      long failedLines = 0;
-
-      // Total lines ignored because it was openURL.
-      long openUrlIgnores = 0;
-
-      // Total files that were processed.
-      int totalFiles = 0;
-
-      // Number of lines where input was malformatted, skipping.
-      int malformedSkips = 0;
-
-      // Keep track of the most current year month string. Not monotonic, could jump anywhere.
-      String previousYearMonth = "";
-      // The current output file, cached between lines. Only changes when the month changes, which is virtually never (well, about 1 time in a million)
-      Writer outputFile = null;
-
-      for (File inputFile : this.files) {
-        try {
-          // LineParser uses the first format that works for this file.
-          // So a new one each file.
-          LineParser lineParser = new LineParser();
-
-          System.out.format("Process input file %s, total %d\n", inputFile.getName(), totalFiles);
-
-          InputStream fileStream = new FileInputStream(inputFile);
-          InputStream gzipStream = new GZIPInputStream(fileStream);
-          Reader decoder = new InputStreamReader(gzipStream, "UTF-8");
-          BufferedReader bufferedReader = new BufferedReader(decoder);
-
-          String line;
-          while ((line = bufferedReader.readLine()) != null) {
-            try {
-              // Newlines count for something.
-              totalChars += line.length() + 1;
-
-              String[] match = lineParser.parse(line);
-
-              // It's possible that lines fail to parse.
-              //  - OpenURL lines are missing fields so skip them.
-              //  - Some DOIs have spaces in them and it's impossible to parse.
-              //  - Sometimes huge fragments of HTML are passed in.
-              //  - Sometimes weird bytes creep in. Call it solar radiation.
-              // The failure rate is roughly 0.05%
-              if (match == null) {
-                if (openurlRe.matcher(line).find()) {
-                  openUrlIgnores++;
-                } else {
-                  failedLines++;
-                }
-              } else {
-                String dateString = match[0];
-                String doi = match[1];
-                String referrerString = match[2];
-
-                // Year-month for log file name, year-month-day for log entry.
-                String[] parsedDate = this.dateParser.parseDate(dateString);
-                String yearMonth = parsedDate[0];
-                String yearMonthDay = parsedDate[1];
-
-                // Interrupt this processing to take a shortcut if necessary.
-                // Decide on the output writer for this line. In nearly all cases it will be the same as last time.
-                // If the year-month changed look up the new file.
-
-                // The concurrentparser synchronizes access to this.
-                // This will only happen
-                if (!yearMonth.equals(previousYearMonth)) {
-                  System.out.format("Change writer: %s -> %s\n", previousYearMonth, yearMonth);
-
-                  // Wight have a number of file handles on the go.
-                  // Save having too many fullish buffers hanging around.
-                  // First time round it's null.
-                  if (outputFile != null) {
-                    synchronized (outputFile) {
-                      outputFile.flush();
-                    }
-                  }
-
-                  outputFile = this.concurrentParser.getOutputFile(yearMonth);
-                  previousYearMonth = yearMonth;
-                }
-
-                // If it is a file that we refused to over-write, don't bother parsing the rest.
-                if (outputFile == this.concurrentParser.nullWriter) {
-                  continue;
-                }
-
-                // Get the full domain and code.
-                String[] parsedReferrer = parseReferrer(referrerString);
-                String referrerCode = parsedReferrer[0];
-                String referrerFullDomain = parsedReferrer[1];
-                String referrerSubdomains = parsedReferrer[2];
-                String referrerDomain = parsedReferrer[3];
-                String referrerPath = parsedReferrer[4];
-
-                if (yearMonthDay.contains("\t") ||
-                        doi.contains("\t") ||
-                        referrerCode.contains("\t") ||
-                        referrerFullDomain.contains("\t") ||
-                        referrerSubdomains.contains("\t") ||
-                        referrerDomain.contains("\t") ||
-                        referrerPath.contains("\t")) {
-                  System.err.format("ERROR: Malformed input line: %s\n", line);
-                  malformedSkips++;
-                } else {
-                  // There is mostly zero contention for files.
-                  // For spill-over between month there will be some blocking, but it's a tiny amount.
-                  synchronized (outputFile) {
-                    outputFile.write(yearMonthDay);
-                    outputFile.write("\t");
-                    outputFile.write(doi);
-                    outputFile.write("\t");
-                    outputFile.write(referrerCode);
-                    outputFile.write("\t");
-                    outputFile.write(referrerFullDomain);
-                    outputFile.write("\t");
-                    outputFile.write(referrerSubdomains);
-                    outputFile.write("\t");
-                    outputFile.write(referrerDomain);
-                    outputFile.write("\t");
-                    outputFile.write(referrerPath);
-                    outputFile.write("\n");
-                  }
-                }
-              }
-
-              totalLines++;
-
-              // Every million lines.
-              if (totalLines % 1000000 == 0) {
-                System.out.format("Processed lines: %d, characters: %d, failed: %d, OpenURL: %d, malformed skips: %d\n", totalLines, totalChars, failedLines, openUrlIgnores, malformedSkips);
-
-                // This solves weird flushing issues.
-                System.out.println("");
-              }
-            } catch (Exception e) {
-              System.out.println("ERROR ");
-              e.printStackTrace();
-              System.out.println(line);
-            }
-          }
+  // Where to write lines for the year-month, or null for nowhere. Lines that were read before are only written again if
+  // their month file is being written from scratch.
+  String getTarget(String yearMonth, boolean readBefore) {
+    String target = this.concurrentParser.getTarget(yearMonth, this.sourceMonth);
+    if (readBefore && !target.equals(yearMonth) && this.previousMonths.contains(yearMonth)) {
+      return null;
+    }
+    return target;
+  }
+
+  // New batch, once there's room in the pipeline for it.
+  private LineBatch newBatch(long sequence, int format) throws InterruptedException {
+    this.inFlight.acquire();
+    LineBatch batch = new LineBatch(sequence, this.name, format, BATCH_SIZE + 65536);
+    batch.firstLine = this.lines;
+    return batch;
+  }
+}
 
-          bufferedReader.close();
+// Parses batches of lines into processed lines.
+class ParserStage implements Runnable {
+  private ParserConcurrentItem item;
 
-          totalFiles++;
-          System.out.format("Finished file! Processed lines: %d, characters: %d, failed: %d, OpenURL: %d, malformed skips: %d\n", totalLines, totalChars, failedLines, openUrlIgnores, malformedSkips);
-        } catch (Exception e) {
-          System.out.println("Error in parsing file: " + inputFile.getName() + ": " + e.toString());
-          e.printStackTrace();
-          System.exit(1);
+  // Pattern to handle OpenURL requests (for error handling).
+  private Pattern openurlRe = Pattern.compile("^([\\d.]+) HTTP:OpenURL");
+
+  // These are all stateful. One per thread.
+  private LineParser lineParser = new LineParser();
+  private DateParser dateParser = new DateParser();
+  ReferrerParser referrerParser = new ReferrerParser();
+
+  ParserStage(ParserConcurrentItem item) {
+    this.item = item;
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        LineBatch batch = this.item.lineQueue.take();
+        if (batch == ParserConcurrentItem.END_OF_LINES) {
+          return;
         }
+
+        this.item.parsedQueue.put(this.parse(batch));
       }
+    } catch (Exception e) {
+      System.out.println("Error in parser for " + this.item.name + ": " + e.toString());
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
 
-      System.out.format("Finished all files! Processed lines: %d, characters: %d, failed: %d, OpenURL: %d\n", totalLines, totalChars, failedLines, openUrlIgnores);
-      System.out.println("");
-    
-      System.out.format("Finished parsing %s\n", this.filter);
+  private ParsedBatch parse(LineBatch batch) {
+    ParsedBatch result = new ParsedBatch(batch);
 
+    this.lineParser.setFormat(batch.format);
 
-  }
+    byte[] buffer = batch.data;
 
-  // Parse referrer string into [code, whole-domain, subdomains, domain, path]
-  // See consts above for code definitions.
-  // Always return, sometimes empty string for domain.
-  private String[] parseReferrer(String referrer) {
-    String code = Formats.CODE_NO_INFO;
-    
-    // If there isn't one, use a placeholder.
-    String host = Formats.UNKNOWN_DOMAIN;
+    // Keep track of the most current year month string. Not monotonic, could jump anywhere.
+    String previousYearMonth = "";
+    // Whether the lines so far were read when the file was processed before. Only changes once, if at all.
+    boolean previousReadBefore = false;
+    // The target for the current year month, or null if it's not being written.
+    // Counts are by target, or the year-month if there isn't one.
+    String target = null;
+    StringBuilder output = null;
+    long[] outputCount = null;
+    // The target's output for each bucket, made when needed, if there are buckets.
+    StringBuilder[] bucketOutputs = null;
 
-    // Path mostly empty.
-    String path = "";
+    for (int i = 0; i < batch.lineCount; i++) {
+      int lineStart = batch.lineStarts[i];
+      int lineEnd = batch.lineEnds[i];
 
-    // Most common is empty string.
-    if (referrer.length() > 1) {
       try {
-        // First some preprocessing heuristics which have to be done first.
-
-        // e.g. "Referer: http://www.zetesis.it/people/parisia/".
-        // (Official spelling of referrer is wrong)
-        if (referrer.startsWith("Referer:")) {
-          referrer = referrer.replaceAll("Referer: *", "");
-        } else if (referrer.startsWith("REFERER:")) {
-          // e.g. "REFERER: http://archaeology.about.com/gi/o.htm"
-          referrer = referrer.replaceAll("REFERER: *", "");
+        boolean readBefore = batch.firstLine + i < this.item.previousLines;
+        boolean match = this.lineParser.parse(buffer, lineStart, lineEnd);
+
+        // It's possible that lines fail to parse.
+        //  - OpenURL lines are missing fields so skip them.
+        //  - Some DOIs have spaces in them and it's impossible to parse.
+        //  - Sometimes huge fragments of HTML are passed in.
+        //  - Sometimes weird bytes creep in. Call it solar radiation.
+        // The failure rate is roughly 0.05%
+        if (!match) {
+          String line = new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+          if (openurlRe.matcher(line).find()) {
+            result.openUrlIgnores++;
+          } else {
+            result.failedLines++;
+          }
+        } else {
+          // Year-month for log file name, year-month-day for log entry.
+          String[] parsedDate = this.dateParser.parseDate(this.lineParser.getDate());
+          String yearMonth = parsedDate[0];
+          String yearMonthDay = parsedDate[1];
+
+          // Decide on the output for this line. In nearly all cases it will be the same as last time.
+          if (!yearMonth.equals(previousYearMonth) || readBefore != previousReadBefore) {
+            target = this.item.getTarget(yearMonth, readBefore);
+            output = target == null || Formats.BUCKETS > 0 ? null : result.linesFor(target);
+            outputCount = result.countFor(target == null ? yearMonth : target);
+            bucketOutputs = Formats.BUCKETS > 0 ? new StringBuilder[Formats.BUCKETS] : null;
+            previousYearMonth = yearMonth;
+            previousReadBefore = readBefore;
+          }
+
+          outputCount[0]++;
+
+          // If the line is already in a month or spill file, don't bother parsing the rest.
+          if (target == null) {
+            continue;
+          }
+
+          String doi = this.lineParser.getDoi();
+          String referrerString = this.lineParser.getReferrer().toString();
+
+          // Get the full domain and code.
+          String[] parsedReferrer = this.referrerParser.parse(referrerString);
+          String referrerCode = parsedReferrer[0];
+          String referrerFullDomain = parsedReferrer[1];
+          String referrerSubdomains = parsedReferrer[2];
+          String referrerDomain = parsedReferrer[3];
+          String referrerPath = parsedReferrer[4];
+
+          if (bucketOutputs != null) {
+            int bucket = Formats.bucket(referrerDomain);
+            if (bucketOutputs[bucket] == null) {
+              bucketOutputs[bucket] = result.linesFor(Formats.bucketName(target, bucket));
+            }
+            output = bucketOutputs[bucket];
+          }
+
+          if (yearMonthDay.contains("\t") ||
+                  doi.contains("\t") ||
+                  referrerCode.contains("\t") ||
+                  referrerFullDomain.contains("\t") ||
+                  referrerSubdomains.contains("\t") ||
+                  referrerDomain.contains("\t") ||
+                  referrerPath.contains("\t")) {
+            System.err.format("ERROR: Malformed input line: %s\n", new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+            result.malformedSkips++;
+          } else {
+            output.append(yearMonthDay);
+            output.append('\t');
+            output.append(doi);
+            output.append('\t');
+            output.append(referrerCode);
+            output.append('\t');
+            output.append(referrerFullDomain);
+            output.append('\t');
+            output.append(referrerSubdomains);
+            output.append('\t');
+            output.append(referrerDomain);
+            output.append('\t');
+            output.append(referrerPath);
+            output.append('\n');
+          }
         }
 
-        // Weird prefixes crop up annoyingly often. Especially feedspot.
-        // e.g. "Feedspotbot: http://www.feedspot.com"
-        if (referrer.matches("^.*?https?://.*$")) {
-          referrer = referrer.replaceAll("^.*?(https?://.*)$", "$1");
+        result.totalLines++;
+      } catch (Exception e) {
+        System.out.println("ERROR ");
+        e.printStackTrace();
+        System.out.println(new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+      }
+    }
+
+    return result;
+  }
+}
+
+// Encodes and compresses the processed lines of a batch.
+// Each year-month of each batch becomes a complete gzip member, or columnar block, so they can be done in any order and
+// concatenated.
+class CompressorStage implements Runnable {
+  private ParserConcurrentItem item;
+
+  CompressorStage(ParserConcurrentItem item) {
+    this.item = item;
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        ParsedBatch batch = this.item.parsedQueue.take();
+        if (batch == ParserConcurrentItem.END_OF_PARSED) {
+          return;
         }
 
-        // Catch these mappings before we build the host.
-        for (String[] prefixPair : PREFIX_PAIRS) {
-          if (referrer.startsWith(prefixPair[0])) {
-            referrer = prefixPair[1];
+        for (Map.Entry<String, StringBuilder> entry : batch.lines.entrySet()) {
+          byte[] encoded = entry.getValue().toString().getBytes(StandardCharsets.UTF_8);
+
+          if (this.item.concurrentParser.aggregator != null) {
+            batch.encoded.put(entry.getKey(), encoded);
+            if (FusedAggregator.SKIP_ARCHIVE) {
+              continue;
+            }
           }
+
+          if (Formats.COLUMNAR) {
+            batch.compressed.put(entry.getKey(), ColumnarFormat.encode(encoded));
+            continue;
+          }
+
+          ByteArrayOutputStream compressed = new ByteArrayOutputStream(encoded.length / 4 + 64);
+          GZIPOutputStream gzipStream = new GZIPOutputStream(compressed, 65536);
+          gzipStream.write(encoded);
+          gzipStream.close();
+
+          batch.compressed.put(entry.getKey(), compressed.toByteArray());
         }
+        batch.lines = null;
+
+        this.item.compressedQueue.put(batch);
+      }
+    } catch (Exception e) {
+      System.out.println("Error in compressor for " + this.item.name + ": " + e.toString());
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+}
+
+// Writes compressed batches to this worker's shards, in the order they were read.
+class WriterStage implements Runnable {
+  private ParserConcurrentItem item;
+
+  // Batches that arrived before the ones ahead of them.
+  private Map<Long, ParsedBatch> waiting = new HashMap<>();
+  private long nextSequence = 0;
+
+  // This worker's own shard for each year-month it has written to.
+  private Map<String, OutputStream> shards = new HashMap<>();
+
+  // Target -> parsed lines, for the manifest.
+  Map<String, Long> outputLines = new TreeMap<>();
 
-        // Next most common is a well-formed URL.
-        URL url = new URL(referrer);
-        host = url.getHost();
-        String protocol = url.getProtocol();
-        path = url.getPath();
-
-        // In order of likelihood. All of these have been observed!
-        // https://docs.oracle.com/javase/8/docs/technotes/guides/language/strings-switch.html
-        switch (protocol) {
-          case "http":
-            code = Formats.CODE_HTTP;
-            break;
-          case "https":
-            code = Formats.CODE_HTTPS;
-            break;
-          case "ftp":
-            // Yep.
-            code = Formats.CODE_FTP;
-            break;
-          case "file":
-            code = Formats.CODE_FILE;
-            host = Formats.LOCAL_DOMAIN;
-            break;
-          case "weird":
-            // Can be introduced by PREFIX_PAIRS.
-            code = Formats.CODE_WEIRD;
-            break;
-          default:
-            // We got a valid URL but don't know what the protocol is.
-            // Not safe to supply the host because we don't know it's meaningful.
-            System.out.println("Unrecognised referrer protocol: " + url.getProtocol());
-            System.out.println(referrer);
-            code = Formats.CODE_UNKNOWN;
-            host = Formats.UNKNOWN_DOMAIN;
+  // Target -> length of each gzip member written to its shard, for the MemberIndex.
+  Map<String, List<Long>> memberLengths = new HashMap<>();
+
+  // Totals, for logging.
+  long totalLines = 0;
+  long totalBytes = 0;
+  long failedLines = 0;
+  long openUrlIgnores = 0;
+  long malformedSkips = 0;
+
+  WriterStage(ParserConcurrentItem item) {
+    this.item = item;
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        ParsedBatch batch = this.item.compressedQueue.take();
+        if (batch == ParserConcurrentItem.END_OF_PARSED) {
+          break;
         }
-      } catch (MalformedURLException exception) {
-        // It's not a valid URL but it could be a valid domain without a scheme, e.g. "ask.com". In this case, try to build a URL with it.
-        // But first some well known exceptions (which might otherwise squash into a URL if we put "http://" in front).
-        if (referrer.equals("about:blank")) {
-            code = Formats.CODE_NO_INFO;
-            host = Formats.LOCAL_DOMAIN;
-          } else if (referrer.matches("^[A-Z]:\\\\.*$")) {
-            // Some Windows drive. 
-            code = Formats.CODE_FILE; 
-            host = Formats.LOCAL_DOMAIN;
-          } else if (referrer.startsWith("mhtml:")) {
-            // MIME HTML, Internet Explorer saved page. Count as local file.
-            code = Formats.CODE_FILE;
-            host = Formats.LOCAL_DOMAIN;
-          } else if (referrer.contains("dlvr.it")) {
-            // e.g. "dlvrId=bcf15c60aa2d9e4f737603e82da64730; expires=Sat, 16-Feb-2013 21:24:04 GMT; path=/; domain=dlvr.it"
-            code = Formats.CODE_UNKNOWN;
-            host = "dlvr.it";
-          } else if (referrer.contains("bit.ly")) {
-            // e.g. "_bit=50f10b43-00008-07b21-401cf10a;domain=.bit.ly;expires=Thu Jul 11 07:05:39 2013;path=/; HttpOnly"
-            code = Formats.CODE_UNKNOWN;
-            host = "bit.ly";
-          } else if (referrer.startsWith("javascript:")) {
-            // e.g. "javascript:expandCollapse('infoBlockID', true);"
-            code = Formats.CODE_UNKNOWN;
-            host = Formats.UNKNOWN_DOMAIN;
-          } else {
-            try {
-              // If it sticking http in front of it makes it a workable URL, use that.
-              URL url = new URL("http://" + referrer);
-              code = Formats.CODE_HTTP;
-              host = url.getHost();
-              path = url.getPath();
-            } catch (MalformedURLException innerException) {
-              // If we're here there's not much hope!
-              System.out.println("ERROR " + innerException.toString());
-              System.out.println(referrer);
-          }
+
+        this.waiting.put(batch.sequence, batch);
+
+        while ((batch = this.waiting.remove(this.nextSequence)) != null) {
+          this.write(batch);
+          this.nextSequence++;
+          this.item.inFlight.release();
         }
       }
+
+      for (OutputStream shard : this.shards.values()) {
+        shard.close();
+      }
+    } catch (Exception e) {
+      System.out.println("Error in writer for " + this.item.name + ": " + e.toString());
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private void write(ParsedBatch batch) throws IOException, InterruptedException {
+    for (Map.Entry<String, byte[]> entry : batch.compressed.entrySet()) {
+      OutputStream shard = this.shards.get(entry.getKey());
+      if (shard == null) {
+        System.out.format("New shard for %s: %s\n", this.item.name, entry.getKey());
+        shard = this.item.concurrentParser.createShard(entry.getKey(), this.item.name);
+        this.shards.put(entry.getKey(), shard);
+        this.memberLengths.put(entry.getKey(), new ArrayList<Long>());
+      }
+      shard.write(entry.getValue());
+      this.memberLengths.get(entry.getKey()).add((long) entry.getValue().length);
     }
 
-    // Finally.
-    // Referrers like: "http:///reload/10.1007/BF02821190" and "http:///" constitute valid java.net.URLs,
-    // giving empty domains. Ensure that under no circumstances we return an empty string.
-    if (host.length() == 0) {
-      host = Formats.UNKNOWN_DOMAIN;
-      code = Formats.CODE_UNKNOWN;
+    // In input order, like the shards.
+    FusedAggregator aggregator = this.item.concurrentParser.aggregator;
+    if (aggregator != null) {
+      for (Map.Entry<String, byte[]> entry : batch.encoded.entrySet()) {
+        aggregator.feed(entry.getKey(), entry.getValue());
+      }
     }
 
-    String[] domainParts = this.etld.getParts(host);
+    for (Map.Entry<String, long[]> entry : batch.outputLines.entrySet()) {
+      Long count = this.outputLines.get(entry.getKey());
+      this.outputLines.put(entry.getKey(), (count == null ? 0 : count) + entry.getValue()[0]);
+    }
 
-    // Return code, host, subdomain, domain, path.
-    return new String[] {code,
-                         host.toLowerCase(),
-                         domainParts[0].toLowerCase(),
-                         domainParts[1].toLowerCase(),
-                         path};
-  }
-}
+    long previousLines = this.totalLines;
+
+    this.totalLines += batch.totalLines;
+    this.totalBytes += batch.totalBytes;
+    this.failedLines += batch.failedLines;
+    this.openUrlIgnores += batch.openUrlIgnores;
+    this.malformedSkips += batch.malformedSkips;
 
+    // Every million lines.
+    if (this.totalLines / 1000000 != previousLines / 1000000) {
+      System.out.format("Processed lines: %d, bytes: %d, failed: %d, OpenURL: %d, malformed skips: %d\n", this.totalLines, this.totalBytes, this.failedLines, this.openUrlIgnores, this.malformedSkips);
 
+      // This solves weird flushing issues.
+      System.out.println("");
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package logpp;
+
+// Approximate counts of keys in a fixed amount of memory, given their 64-bit hashes.
+// The estimate for a key is never less than its real count, but it can be more when keys collide.
+// Counts saturate at 255, as this is only used to tell whether a key could reach a small threshold.
+// Uses the "conservative update", which only increments the cells that need it, so over-estimates are smaller.
+public class CountMinSketch {
+  private static final int DEPTH = 4;
+
+  private static final int MAX_COUNT = 255;
+
+  private int width;
+  private int mask;
+
+  // Row * width + column -> count, unsigned.
+  private byte[] cells;
+
+  // Size in bytes, rounded down to a power of two of columns.
+  public CountMinSketch(long bytes) {
+    this.width = Integer.highestOneBit((int) Math.min(Math.max(bytes / DEPTH, 64), 1 << 28));
+    this.mask = this.width - 1;
+    this.cells = new byte[this.width * DEPTH];
+  }
+
+  // Count the key and return the estimate from before it was counted. Zero means it definitely wasn't seen before.
+  public int add(long hash) {
+    int estimate = this.estimate(hash);
+    if (estimate < MAX_COUNT) {
+      for (int row = 0; row < DEPTH; row++) {
+        int cell = this.cell(hash, row);
+        if ((this.cells[cell] & 0xFF) == estimate) {
+          this.cells[cell] = (byte) (estimate + 1);
+        }
+      }
+    }
+    return estimate;
+  }
+
+  public int estimate(long hash) {
+    int estimate = MAX_COUNT;
+    for (int row = 0; row < DEPTH; row++) {
+      estimate = Math.min(estimate, this.cells[this.cell(hash, row)] & 0xFF);
+    }
+    return estimate;
+  }
+
+  public long sizeBytes() {
+    return this.cells.length;
+  }
+
+  // Each row uses a different combination of the two halves of the hash.
+  private int cell(long hash, int row) {
+    int low = (int) hash;
+    int high = (int) (hash >>> 32) | 1;
+    return row * this.width + ((low + row * high) & this.mask);
+  }
+}
@@ -1,15 +1,28 @@
 package logpp;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.io.Writer;
 
 // Count unique values for String -> String -> Integer.
 // e.g. domain -> date -> count
+// Can be spilled to disk when it gets too big, in which case the spilled runs are merged back in when it's written.
 public class Counter2d {
+  // Rough bytes per key and per second-level entry, counting the TreeMap entries, Strings and Integers.
+  private static final long KEY_BYTES = 150;
+  private static final long ENTRY_BYTES = 100;
+
   private SortedMap<String, SortedMap<String, Integer>> counter = new TreeMap<>();
 
+  // For the memory estimate.
+  private long keyChars = 0;
+  private long entries = 0;
+
+  private SortedRuns runs = new SortedRuns();
+
   public void inc(String key, String key2) {
     this.add(key, key2, 1);
   }
@@ -19,25 +32,97 @@ public class Counter2d {
     if (second == null) {
       second = new TreeMap<String, Integer>();
       this.counter.put(key, second);
+      this.keyChars += key.length();
+    }
+
+    Integer count = second.get(key2);
+    if (count == null) {
+      this.entries++;
+      second.put(key2, value);
+    } else {
+      second.put(key2, count + value);
+    }
+  }
+
+  // Very approximate number of bytes used by the counts in memory.
+  public long memoryEstimate() {
+    return this.counter.size() * KEY_BYTES + this.keyChars * 2 + this.entries * ENTRY_BYTES;
+  }
+
+  // Write the counts in memory to a run on disk and forget them.
+  public void spill() throws IOException {
+    if (this.counter.isEmpty()) {
+      return;
+    }
+
+    this.runs.spill(new MemoryCursor(this.counter));
+
+    this.counter = new TreeMap<>();
+    this.keyChars = 0;
+    this.entries = 0;
+  }
+
+  // Start from the counts in a checkpoint saved by an earlier run. They're merged in when written.
+  public void resume(File checkpoint) {
+    this.runs.resume(checkpoint);
+  }
+
+  // Save all of the counts to a checkpoint when they're written, including those resumed from.
+  public void checkpointTo(File checkpoint) {
+    this.runs.checkpointTo(checkpoint);
+  }
+
+  // Visit each key in order with all of its counts, including any that were spilled.
+  public void forEachKey(SortedRuns.Visitor visitor) throws IOException {
+    if (this.runs.isEmpty()) {
+      for (SortedMap.Entry<String, SortedMap<String, Integer>> entry : this.counter.entrySet()) {
+        visitor.visit(entry.getKey(), entry.getValue());
+      }
+    } else {
+      this.runs.merge(new MemoryCursor(this.counter), visitor);
     }
-    
-    second.put(key2, second.getOrDefault(key2, 0) + value);
   }
 
   // Write CSV Chunks.
   public void writeChunks(Writer writer) throws IOException {
-    for (SortedMap.Entry<String, SortedMap<String, Integer>> entry : this.counter.entrySet()) {
-      writer.write(entry.getKey());
-      writer.write("\n");
-
-      for (SortedMap.Entry<String, Integer> secondEntry : entry.getValue().entrySet()) {
-        writer.write(secondEntry.getKey());
-        writer.write(",");
-        writer.write(secondEntry.getValue().toString());
-        writer.write("\n");
+    this.forEachKey(new ChunkWriter(writer));
+  }
+
+  // The counts in memory, in order, as a cursor for spilling and merging.
+  private static class MemoryCursor implements SortedRuns.Cursor {
+    private Iterator<SortedMap.Entry<String, SortedMap<String, Integer>>> keys;
+    private Iterator<SortedMap.Entry<String, Integer>> second = null;
+    private String key;
+    private SortedMap.Entry<String, Integer> entry;
+
+    MemoryCursor(SortedMap<String, SortedMap<String, Integer>> counter) {
+      this.keys = counter.entrySet().iterator();
+    }
+
+    public boolean next() {
+      while (this.second == null || !this.second.hasNext()) {
+        if (!this.keys.hasNext()) {
+          return false;
+        }
+        SortedMap.Entry<String, SortedMap<String, Integer>> keyEntry = this.keys.next();
+        this.key = keyEntry.getKey();
+        this.second = keyEntry.getValue().entrySet().iterator();
       }
 
-      writer.write("\n");
+      this.entry = this.second.next();
+      return true;
+    }
+
+    public String key() {
+      return this.key;
+    }
+
+    public String key2() {
+      return this.entry.getKey();
+    }
+
+    public int count() {
+      return this.entry.getValue();
     }
   }
-}
\ No newline at end of file
+}
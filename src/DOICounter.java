@@ -0,0 +1,389 @@
+package logpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// Count DOI -> count, for one month. Written against the 1st of the month, like TruncateMonth.
+// Built for tens of millions of distinct DOIs, nearly all of which are only seen once or twice.
+// Each DOI is stored once as UTF-8 bytes, next to its count, in big byte[] slabs. The hash table is two long[]s of 64-bit
+// hash and entry address, with open addressing. So there are no objects per DOI, and a DOI takes its length plus about
+// 40 bytes, rather than the hundreds of bytes for a String, HashMap entries and boxed Integers.
+public class DOICounter {
+  // Slabs start small and double up to this size.
+  private static final int FIRST_SLAB_SIZE = 65536;
+  private static final int MAX_SLAB_SIZE = 16 * 1048576;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  // Entry is [count: 4 bytes][length: 4 bytes][UTF-8 key bytes].
+  private static final int HEADER_BYTES = 8;
+
+  // Slot -> 64-bit hash of the key.
+  private long[] hashes;
+
+  // Slot -> entry address plus 1, or 0 if the slot is empty. Address is slab number << 32 | offset in slab.
+  private long[] addresses;
+
+  private byte[][] slabs;
+  private int slabCount;
+  private int slabUsed;
+  private long slabBytes;
+
+  private int size = 0;
+
+  // Entries made for keys. Keys that were spilled and then seen again are counted twice.
+  private long countedKeys = 0;
+
+  // "YYYY-MM" that all counts are for, and the date they're written against.
+  private byte[] month = null;
+  private String date = null;
+
+  // Re-used buffer for encoding keys.
+  private byte[] keyBuffer = new byte[256];
+
+  private SortedRuns runs = new SortedRuns();
+
+  // Optional pre-filter, see `usePrefilter`.
+  private CountMinSketch sketch = null;
+  private int sketchMinimum;
+
+  // Keys that were definitely new when they were sketched. A bit less than the number of distinct keys.
+  private long sketchedKeys = 0;
+
+  // Lines that weren't counted because they couldn't reach the minimum.
+  private long prunedLines = 0;
+
+  public DOICounter() {
+    this.allocate(INITIAL_CAPACITY);
+  }
+
+  // Count the UTF-8 key for the "YYYY-MM-DD" date.
+  public void inc(ByteSlice key, ByteSlice date) {
+    this.checkMonth(date);
+
+    long hash = hash(key.getBytes(), key.getOffset(), key.length());
+
+    if (this.sketch != null && this.sketch.estimate(hash) < this.sketchMinimum) {
+      this.prunedLines++;
+      return;
+    }
+
+    this.inc(hash, key.getBytes(), key.getOffset(), key.length());
+  }
+
+  // Two-phase counting. Use a count-min sketch of this many bytes to skip keys that can't reach `minimum`.
+  // Every key must be passed to `sketch` before any are passed to `inc`. The sketch never under-estimates, so any key
+  // that could reach the minimum is still counted exactly. The rest never get an entry.
+  public void usePrefilter(long bytes, int minimum) {
+    this.sketch = new CountMinSketch(bytes);
+    this.sketchMinimum = minimum;
+  }
+
+  // First phase of two-phase counting.
+  public void sketch(ByteSlice key) {
+    if (this.sketch.add(hash(key.getBytes(), key.getOffset(), key.length())) == 0) {
+      this.sketchedKeys++;
+    }
+  }
+
+  public String getPrefilterStats() {
+    return String.format("DOI prefilter: %dKB sketch, about %d keys, %d counted, %d lines pruned",
+      this.sketch.sizeBytes() / 1024, this.sketchedKeys, this.countedKeys, this.prunedLines);
+  }
+
+  // Add one to the count for the key in bytes [offset, offset + length), UTF-8 encoded.
+  private void inc(long hash, byte[] key, int offset, int length) {
+    int slot = this.find(hash, key, offset, length);
+
+    if (this.addresses[slot] == 0) {
+      this.hashes[slot] = hash;
+      this.addresses[slot] = this.store(key, offset, length) + 1;
+      this.size++;
+      this.countedKeys++;
+
+      // Keep the load factor under a half so probe sequences stay short.
+      if (this.size * 2 > this.addresses.length) {
+        this.grow();
+        slot = this.find(hash, key, offset, length);
+      }
+    }
+
+    long address = this.addresses[slot] - 1;
+    byte[] slab = this.slabs[(int) (address >>> 32)];
+    int entry = (int) address;
+    putInt(slab, entry, getInt(slab, entry) + 1);
+  }
+
+  // Very approximate number of bytes used in memory: the table, the slabs and the prefilter sketch, if there is one.
+  // Spilling only frees the table and slabs.
+  public long memoryEstimate() {
+    return this.addresses.length * 16L + this.slabBytes + (this.sketch == null ? 0 : this.sketch.sizeBytes());
+  }
+
+  // Write the counts in memory to a run on disk and forget them.
+  public void spill() throws IOException {
+    if (this.size == 0) {
+      return;
+    }
+
+    this.runs.spill(new MemoryCursor(0));
+    this.allocate(INITIAL_CAPACITY);
+  }
+
+  // Start from the counts in a checkpoint saved by an earlier run. They're merged in when written.
+  public void resume(File checkpoint) {
+    this.runs.resume(checkpoint);
+  }
+
+  // Save all of the counts to a checkpoint when they're written, including those resumed from.
+  public void checkpointTo(File checkpoint) {
+    this.runs.checkpointTo(checkpoint);
+  }
+
+  // Write CSV Chunks, in key order, of only those keys that have a count of at least `minimum`.
+  // If there's nothing to merge the minimum is checked while scanning the table, so only the keys that are kept are ever
+  // turned back into Strings. Otherwise the count is only known once the spilled runs or checkpoint have been merged in.
+  public void writeChunks(Writer writer, final int minimum) throws IOException {
+    final ChunkWriter chunkWriter = new ChunkWriter(writer);
+
+    if (this.runs.isEmpty()) {
+      MemoryCursor cursor = new MemoryCursor(minimum);
+      while (cursor.next()) {
+        SortedMap<String, Integer> counts = new TreeMap<>();
+        counts.put(cursor.key2(), cursor.count());
+        chunkWriter.visit(cursor.key(), counts);
+      }
+    } else {
+      this.runs.merge(new MemoryCursor(0), new SortedRuns.Visitor() {
+        public void visit(String key, SortedMap<String, Integer> counts) throws IOException {
+          int total = 0;
+          for (Integer count : counts.values()) {
+            total += count;
+          }
+
+          if (total >= minimum) {
+            chunkWriter.visit(key, counts);
+          }
+        }
+      });
+    }
+  }
+
+  private void checkMonth(ByteSlice date) {
+    if (date.length() < 7) {
+      throw new IllegalArgumentException(String.format("Can't count date %s", date));
+    }
+
+    if (this.month == null) {
+      this.month = Arrays.copyOfRange(date.getBytes(), date.getOffset(), date.getOffset() + 7);
+      this.date = new String(this.month, StandardCharsets.UTF_8) + "-01";
+    } else {
+      for (int i = 0; i < 7; i++) {
+        if (date.getBytes()[date.getOffset() + i] != this.month[i]) {
+          throw new IllegalArgumentException(String.format("Date %s isn't in the same month as %s", date, this.date));
+        }
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    this.hashes = new long[capacity];
+    this.addresses = new long[capacity];
+    this.slabs = new byte[1][];
+    this.slabs[0] = new byte[FIRST_SLAB_SIZE];
+    this.slabCount = 1;
+    this.slabUsed = 0;
+    this.slabBytes = FIRST_SLAB_SIZE;
+    this.size = 0;
+  }
+
+  // Encode the key as UTF-8 into keyBuffer and return the length, to look up a decoded key again.
+  // Nearly all DOIs are ASCII, which is done by hand.
+  private int encode(String key) {
+    int length = key.length();
+    if (this.keyBuffer.length < length) {
+      this.keyBuffer = new byte[Math.max(length, this.keyBuffer.length * 2)];
+    }
+
+    for (int i = 0; i < length; i++) {
+      char c = key.charAt(i);
+      if (c >= 0x80) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (this.keyBuffer.length < bytes.length) {
+          this.keyBuffer = new byte[bytes.length];
+        }
+        System.arraycopy(bytes, 0, this.keyBuffer, 0, bytes.length);
+        return bytes.length;
+      }
+      this.keyBuffer[i] = (byte) c;
+    }
+
+    return length;
+  }
+
+  // Slot that holds the key, or the empty slot where it should go.
+  private int find(long hash, byte[] key, int offset, int length) {
+    int mask = this.addresses.length - 1;
+    int slot = (int) hash & mask;
+
+    while (this.addresses[slot] != 0) {
+      if (this.hashes[slot] == hash && this.keyEquals(this.addresses[slot] - 1, key, offset, length)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  private boolean keyEquals(long address, byte[] key, int offset, int length) {
+    byte[] slab = this.slabs[(int) (address >>> 32)];
+    int entry = (int) address;
+
+    if (getInt(slab, entry + 4) != length) {
+      return false;
+    }
+
+    int start = entry + HEADER_BYTES;
+    for (int i = 0; i < length; i++) {
+      if (slab[start + i] != key[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Copy a new entry with a count of zero into the slabs and return its address.
+  // Entries never straddle slabs.
+  private long store(byte[] key, int offset, int length) {
+    int entryLength = HEADER_BYTES + length;
+
+    if (this.slabUsed + entryLength > this.slabs[this.slabCount - 1].length) {
+      if (this.slabCount == this.slabs.length) {
+        this.slabs = Arrays.copyOf(this.slabs, this.slabCount * 2);
+      }
+      int slabSize = Math.min(MAX_SLAB_SIZE, this.slabs[this.slabCount - 1].length * 2);
+      this.slabs[this.slabCount] = new byte[Math.max(slabSize, entryLength)];
+      this.slabBytes += this.slabs[this.slabCount].length;
+      this.slabCount++;
+      this.slabUsed = 0;
+    }
+
+    byte[] slab = this.slabs[this.slabCount - 1];
+    int entry = this.slabUsed;
+    putInt(slab, entry, 0);
+    putInt(slab, entry + 4, length);
+    System.arraycopy(key, offset, slab, entry + HEADER_BYTES, length);
+    this.slabUsed += entryLength;
+
+    return (long) (this.slabCount - 1) << 32 | entry;
+  }
+
+  // Only the table is re-hashed, entries stay where they are.
+  private void grow() {
+    long[] oldHashes = this.hashes;
+    long[] oldAddresses = this.addresses;
+
+    this.hashes = new long[oldHashes.length * 2];
+    this.addresses = new long[oldAddresses.length * 2];
+    int mask = this.addresses.length - 1;
+
+    for (int oldSlot = 0; oldSlot < oldAddresses.length; oldSlot++) {
+      if (oldAddresses[oldSlot] != 0) {
+        int slot = (int) oldHashes[oldSlot] & mask;
+        while (this.addresses[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        this.hashes[slot] = oldHashes[oldSlot];
+        this.addresses[slot] = oldAddresses[oldSlot];
+      }
+    }
+  }
+
+  // 64-bit FNV-1a, with a final mix so that the low bits are good enough for the slot.
+  static long hash(byte[] key, int offset, int length) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = offset; i < offset + length; i++) {
+      hash ^= key[i] & 0xFF;
+      hash *= 0x100000001b3L;
+    }
+
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static int getInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) << 24 |
+           (bytes[offset + 1] & 0xFF) << 16 |
+           (bytes[offset + 2] & 0xFF) << 8 |
+           (bytes[offset + 3] & 0xFF);
+  }
+
+  private static void putInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  // Keys with at least a minimum count, in String order so that they merge with spilled runs.
+  // Only those keys are decoded into Strings. Counts are looked up again once they're sorted.
+  private class MemoryCursor implements SortedRuns.Cursor {
+    private String[] keys;
+    private int index = -1;
+    private int count;
+
+    MemoryCursor(int minimum) {
+      DOICounter counter = DOICounter.this;
+
+      String[] kept = new String[counter.size];
+      int keptCount = 0;
+      for (long address : counter.addresses) {
+        if (address != 0) {
+          byte[] slab = counter.slabs[(int) ((address - 1) >>> 32)];
+          int entry = (int) (address - 1);
+          if (getInt(slab, entry) >= minimum) {
+            kept[keptCount++] = new String(slab, entry + HEADER_BYTES, getInt(slab, entry + 4), StandardCharsets.UTF_8);
+          }
+        }
+      }
+
+      this.keys = Arrays.copyOf(kept, keptCount);
+      Arrays.sort(this.keys);
+    }
+
+    public boolean next() {
+      DOICounter counter = DOICounter.this;
+
+      this.index++;
+      if (this.index >= this.keys.length) {
+        return false;
+      }
+
+      int length = counter.encode(this.keys[this.index]);
+      long hash = hash(counter.keyBuffer, 0, length);
+      long address = counter.addresses[counter.find(hash, counter.keyBuffer, 0, length)] - 1;
+      this.count = getInt(counter.slabs[(int) (address >>> 32)], (int) address);
+      return true;
+    }
+
+    public String key() {
+      return this.keys[this.index];
+    }
+
+    public String key2() {
+      return DOICounter.this.date;
+    }
+
+    public int count() {
+      return this.count;
+    }
+  }
+}
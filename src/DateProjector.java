@@ -7,4 +7,7 @@ public interface DateProjector {
 
   // Name of this kind of projection, used in filenames.
   public String getName();
+
+  // How many different days in a month a date can be projected to. Always the first ones.
+  public int daysPerMonth();
 }
\ No newline at end of file
@@ -0,0 +1,248 @@
+package logpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Count key -> day of the month -> count, for one month.
+// e.g. domain -> date -> count
+// Same output as Counter2d, but each key has a row of int counts indexed by day of the month, in an open-addressing
+// hash table. Keys are kept as UTF-8 bytes and looked up straight from the bytes of a line, so counting a key that's
+// been seen before doesn't allocate anything. Keys are only decoded and sorted when they're written or spilled.
+// All dates must be "YYYY-MM-DD" in the same month.
+public class DayCounter {
+  private static final String[] DAYS = new String[31];
+  static {
+    for (int i = 0; i < DAYS.length; i++) {
+      DAYS[i] = String.format("%02d", i + 1);
+    }
+  }
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  // Width of a row: 31 to count by day, or 1 to count the whole month against the 1st.
+  private int days;
+
+  // Slot -> UTF-8 key, or null if empty. Capacity is always a power of two.
+  private byte[][] keys;
+
+  // Slot * days + day - 1 -> count.
+  private int[] counts;
+
+  private int size = 0;
+  private long keyBytes = 0;
+
+  // "YYYY-MM-" of the first date seen.
+  private String monthPrefix = null;
+  private byte[] monthPrefixBytes = null;
+
+  private SortedRuns runs = new SortedRuns();
+
+  // For `add`.
+  private ByteSlice addKey = new ByteSlice();
+  private ByteSlice addDate = new ByteSlice();
+
+  public DayCounter(int days) {
+    this.days = days;
+    this.allocate(INITIAL_CAPACITY);
+  }
+
+  public void inc(ByteSlice key, ByteSlice date) {
+    this.add(key, date, 1);
+  }
+
+  // Add to the count for a key and date, e.g. when rolling counts up from another counter.
+  public void add(String key, String date, int count) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] dateBytes = date.getBytes(StandardCharsets.UTF_8);
+    this.addKey.set(keyBytes, 0, keyBytes.length);
+    this.addDate.set(dateBytes, 0, dateBytes.length);
+    this.add(this.addKey, this.addDate, count);
+  }
+
+  private void add(ByteSlice key, ByteSlice date, int count) {
+    int day = this.dayIndex(date);
+    byte[] bytes = key.getBytes();
+    int offset = key.getOffset();
+    int length = key.length();
+
+    int slot = this.find(bytes, offset, length);
+
+    if (this.keys[slot] == null) {
+      this.keys[slot] = Arrays.copyOfRange(bytes, offset, offset + length);
+      this.size++;
+      this.keyBytes += length;
+
+      // Keep the load factor under a half so probe sequences stay short.
+      if (this.size * 2 > this.keys.length) {
+        this.grow();
+        slot = this.find(bytes, offset, length);
+      }
+    }
+
+    this.counts[slot * this.days + day] += count;
+  }
+
+  // Very approximate number of bytes used in memory: the table, plus the key arrays.
+  public long memoryEstimate() {
+    return this.keys.length * (8L + 4L * this.days) + this.size * 16L + this.keyBytes;
+  }
+
+  // Write the counts in memory to a run on disk and forget them.
+  public void spill() throws IOException {
+    if (this.size == 0) {
+      return;
+    }
+
+    this.runs.spill(new MemoryCursor());
+    this.allocate(INITIAL_CAPACITY);
+  }
+
+  // Start from the counts in a checkpoint saved by an earlier run. They're merged in when written.
+  public void resume(File checkpoint) {
+    this.runs.resume(checkpoint);
+  }
+
+  // Save all of the counts to a checkpoint when they're written, including those resumed from.
+  public void checkpointTo(File checkpoint) {
+    this.runs.checkpointTo(checkpoint);
+  }
+
+  // Visit each key in order with all of its counts by date, including any that were spilled.
+  public void forEachKey(SortedRuns.Visitor visitor) throws IOException {
+    this.runs.merge(new MemoryCursor(), visitor);
+  }
+
+  // Write CSV Chunks, in key order, including any that were spilled.
+  public void writeChunks(Writer writer) throws IOException {
+    this.forEachKey(new ChunkWriter(writer));
+  }
+
+  private void allocate(int capacity) {
+    this.keys = new byte[capacity][];
+    this.counts = new int[capacity * this.days];
+    this.size = 0;
+    this.keyBytes = 0;
+  }
+
+  // Slot that holds the key, or the empty slot where it should go.
+  private int find(byte[] bytes, int offset, int length) {
+    int mask = this.keys.length - 1;
+    // Spread the bits, hashes of similar keys are close together.
+    int hash = ByteSlice.hashCode(bytes, offset, length) * 0x9E3779B9;
+    int slot = (hash ^ (hash >>> 16)) & mask;
+
+    while (this.keys[slot] != null && !SymbolTable.equal(this.keys[slot], bytes, offset, length)) {
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  private void grow() {
+    byte[][] oldKeys = this.keys;
+    int[] oldCounts = this.counts;
+    long oldKeyBytes = this.keyBytes;
+    int oldSize = this.size;
+
+    this.allocate(oldKeys.length * 2);
+
+    for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+      if (oldKeys[oldSlot] != null) {
+        int slot = this.find(oldKeys[oldSlot], 0, oldKeys[oldSlot].length);
+        this.keys[slot] = oldKeys[oldSlot];
+        System.arraycopy(oldCounts, oldSlot * this.days, this.counts, slot * this.days, this.days);
+      }
+    }
+
+    this.size = oldSize;
+    this.keyBytes = oldKeyBytes;
+  }
+
+  private int dayIndex(ByteSlice date) {
+    if (date.length() != 10) {
+      throw new IllegalArgumentException(String.format("Can't count date %s", date));
+    }
+
+    if (this.monthPrefix == null) {
+      this.monthPrefixBytes = Arrays.copyOfRange(date.getBytes(), date.getOffset(), date.getOffset() + 8);
+      this.monthPrefix = new String(this.monthPrefixBytes, StandardCharsets.UTF_8);
+    } else {
+      for (int i = 0; i < 8; i++) {
+        if (date.getBytes()[date.getOffset() + i] != this.monthPrefixBytes[i]) {
+          throw new IllegalArgumentException(String.format("Date %s isn't in the same month as %s", date, this.monthPrefix));
+        }
+      }
+    }
+
+    int day = (date.charAt(8) - '0') * 10 + (date.charAt(9) - '0') - 1;
+    if (day < 0 || day >= 31) {
+      throw new IllegalArgumentException(String.format("Can't count date %s", date));
+    }
+
+    // Counting the whole month.
+    if (this.days == 1) {
+      return 0;
+    }
+
+    return day;
+  }
+
+  // The non-zero counts in memory, in order of key then day.
+  private class MemoryCursor implements SortedRuns.Cursor {
+    private String[] sortedKeys;
+    private int keyIndex = -1;
+    private int slot;
+    private int day;
+
+    MemoryCursor() {
+      DayCounter counter = DayCounter.this;
+
+      this.sortedKeys = new String[counter.size];
+      int i = 0;
+      for (byte[] key : counter.keys) {
+        if (key != null) {
+          this.sortedKeys[i++] = new String(key, StandardCharsets.UTF_8);
+        }
+      }
+      Arrays.sort(this.sortedKeys);
+
+      this.day = counter.days;
+    }
+
+    public boolean next() {
+      DayCounter counter = DayCounter.this;
+
+      while (true) {
+        this.day++;
+        if (this.day >= counter.days) {
+          this.keyIndex++;
+          if (this.keyIndex >= this.sortedKeys.length) {
+            return false;
+          }
+          byte[] key = this.sortedKeys[this.keyIndex].getBytes(StandardCharsets.UTF_8);
+          this.slot = counter.find(key, 0, key.length);
+          this.day = 0;
+        }
+
+        if (counter.counts[this.slot * counter.days + this.day] != 0) {
+          return true;
+        }
+      }
+    }
+
+    public String key() {
+      return this.sortedKeys[this.keyIndex];
+    }
+
+    public String key2() {
+      return DayCounter.this.monthPrefix + DAYS[this.day];
+    }
+
+    public int count() {
+      return DayCounter.this.counts[this.slot * DayCounter.this.days + this.day];
+    }
+  }
+}
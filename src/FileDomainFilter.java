@@ -18,7 +18,7 @@ public class FileDomainFilter implements Filter {
   // All domains and subdomains.
   private Set<String> domains = new HashSet<>();
 
-  private ETLD etld = new ETLD();
+  private ETLD etld = ETLD.getInstance();
 
   public FileDomainFilter(String[] domains, String[] domainFiles) throws FileNotFoundException, IOException {
     for (String domain: domains) {
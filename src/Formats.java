@@ -1,5 +1,12 @@
 package logpp;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 class Formats {
   // To indicate that it wasn't supplied.
   static String UNKNOWN_DOMAIN = "unknown.special";
@@ -15,4 +22,74 @@ class Formats {
   static String CODE_UNKNOWN = "U"; // for unknown protocol, but domain supplied
   static String CODE_NO_INFO = "N"; // for no information.
   static String CODE_WEIRD = "W"; // for weird (e.g. readcube)
+
+  // Processed lines for a month that was already written, from a later input, e.g. "2015-01.spill-from-201502.gz".
+  // Each run that adds lines from the same source month gets a new one, e.g. "2015-01.spill-from-201502-2.gz".
+  static String SPILL_INFIX = ".spill-from-";
+
+  // Processed files are gzipped TSV, or blocks of columns (see ColumnarFormat) if `process` is run with
+  // -Dlogpp.processedColumnar=true. The Aggregator reads either.
+  static boolean COLUMNAR = Boolean.getBoolean("logpp.processedColumnar");
+  static String TEXT_EXTENSION = ".gz";
+  static String COLUMNAR_EXTENSION = ".columns";
+
+  // With -Dlogpp.processedBuckets=16, `process` splits each output by referring domain into that many files, e.g.
+  // "2015-01.domain-07-of-16.gz" and "2015-01.spill-from-201502.domain-07-of-16.gz". All of a domain's lines are in the
+  // same bucket, so the Aggregator can do strategies that only look at domains a bucket at a time. 0 for one file.
+  static int BUCKETS = Integer.getInteger("logpp.processedBuckets", 0);
+  static Pattern BUCKET = Pattern.compile("\\.domain-(\\d+)-of-(\\d+)\\.(gz|columns)$");
+
+  // Which bucket a referring domain's lines go in.
+  static int bucket(String domain) {
+    return Math.floorMod(domain.hashCode(), BUCKETS);
+  }
+
+  // Name of a bucket of an output, without the extension.
+  static String bucketName(String name, int bucket) {
+    return String.format("%s.domain-%02d-of-%02d", name, bucket, BUCKETS);
+  }
+
+  // Extension for new processed files.
+  static String processedExtension() {
+    return COLUMNAR ? COLUMNAR_EXTENSION : TEXT_EXTENSION;
+  }
+
+  // The processed files with the name, e.g. "2015-01", in whichever format they were written and whether or not they're
+  // in buckets, in name order. Empty if there aren't any.
+  static List<File> processedFiles(File directory, String name) {
+    return matchingFiles(directory, Pattern.compile(Pattern.quote(name) + "(\\.domain-\\d+-of-\\d+)?\\.(gz|columns)"));
+  }
+
+  // The spill files for a month from a source month, from every run, in any format and whether or not they're in buckets.
+  static List<File> spillFiles(File directory, String yearMonth, String sourceMonth) {
+    return matchingFiles(directory, Pattern.compile(Pattern.quote(yearMonth + SPILL_INFIX + sourceMonth) + "(-\\d+)?(\\.domain-\\d+-of-\\d+)?\\.(gz|columns)"));
+  }
+
+  private static List<File> matchingFiles(File directory, Pattern pattern) {
+    List<File> result = new ArrayList<>();
+    for (File file : directory.listFiles()) {
+      if (pattern.matcher(file.getName()).matches()) {
+        result.add(file);
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  // Bucket number of a processed file, or -1 if it isn't in one.
+  static int bucketOf(File file) {
+    Matcher matcher = BUCKET.matcher(file.getName());
+    return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+  }
+
+  // How many buckets the processed file was split into, or 0 if it wasn't.
+  static int bucketsOf(File file) {
+    Matcher matcher = BUCKET.matcher(file.getName());
+    return matcher.find() ? Integer.parseInt(matcher.group(2)) : 0;
+  }
+
+  // Is it a processed file, rather than a shard or something else?
+  static boolean isProcessedFile(String fileName) {
+    return fileName.endsWith(TEXT_EXTENSION) || fileName.endsWith(COLUMNAR_EXTENSION);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,333 @@
+package logpp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+
+// Aggregates months while they're processed, for `process-and-aggregate`. The ConcurrentParser's writers hand over each
+// batch's processed lines, in input order, and they're fed straight to AggregatorMonthTasks instead of the tasks reading
+// the month files. So the processed files aren't read back, and with -Dlogpp.skipArchive=true aren't written at all.
+// Only months that had no processed files before the run are done here, as all of their lines go past. Lines for a month
+// that was already there go into spill files as usual, for `aggregate`.
+// Tasks are made the same way as by the Aggregator, including a task per domain bucket for strategies that only look at
+// domains if the month is being processed into buckets, with their outputs put together at the end.
+// Tasks run on a pool of -Dlogpp.aggregateThreads workers, as in the Aggregator, each task always on the same one. A
+// worker takes the lines for all of its tasks from one queue, in the order they were handed over, so no task is ever
+// waiting for lines stuck behind another's, and writers only wait for the pool to catch up. Every task keeps its state
+// until the end, so the memory budget is shared out between them.
+// Strategies that need a pre-pass can't be done in one pass, so they're left for `aggregate`.
+// A month's lines come from several input files at once, so lines go to the strategies in a different order to the
+// month file. Counts and distinct counts are the same either way. Top DOIs can differ in the uncertain tail.
+class FusedAggregator {
+  // Don't write the processed files, only the aggregated ones.
+  static final boolean SKIP_ARCHIVE = Boolean.getBoolean("logpp.skipArchive");
+
+  // Chunks of lines waiting for each worker.
+  private static final int CHUNKS_AHEAD = 16;
+
+  // Marks the end of the chunks.
+  private static final Chunk END_OF_CHUNKS = new Chunk(null, null);
+
+  private File processedDirectory;
+  private File outputDirectory;
+  private File checkpointDirectory;
+  private AggregatorStrategy[] strategies;
+
+  // Months that already had processed files.
+  private Set<String> existingMonths = new HashSet<>();
+
+  // Year-month -> its tasks, or null if it isn't aggregated here. Access is synchronized.
+  private Map<String, FusedMonth> months = new LinkedHashMap<>();
+
+  private List<AggregatorMonthTask> tasks = new ArrayList<>();
+
+  // Made as tasks need them, up to -Dlogpp.aggregateThreads.
+  private List<FusedWorker> workers = new ArrayList<>();
+  private List<Thread> threads = new ArrayList<>();
+  private int started = 0;
+
+  // Outputs that are written a bucket at a time -> number of buckets.
+  private Map<File, Integer> bucketedOutputs = new LinkedHashMap<>();
+
+  private AtomicLong totalLinesCounter = new AtomicLong(0);
+
+  FusedAggregator(File processedDirectory, File outputDirectory, File checkpointDirectory, AggregatorStrategy[] strategies) {
+    this.processedDirectory = processedDirectory;
+    this.outputDirectory = outputDirectory;
+    this.checkpointDirectory = checkpointDirectory;
+    this.strategies = strategies;
+
+    if (!this.outputDirectory.exists()) {
+      throw new IllegalArgumentException(String.format("Error: Output directory %s doesn't exist\n", this.outputDirectory));
+    }
+
+    if (Aggregator.INCREMENTAL && !SKIP_ARCHIVE && !this.checkpointDirectory.exists() && !this.checkpointDirectory.mkdirs()) {
+      throw new IllegalArgumentException(String.format("Error: Can't create checkpoint directory %s\n", this.checkpointDirectory));
+    }
+
+    // Parts of outputs from a run that didn't finish.
+    for (File f : this.outputDirectory.listFiles()) {
+      if (f.getName().contains(Aggregator.BUCKET_INFIX)) {
+        f.delete();
+      }
+    }
+
+    // Main files and spills, in any format or buckets.
+    for (File f : this.processedDirectory.listFiles()) {
+      if (f.getName().matches("\\d\\d\\d\\d-\\d\\d(\\.spill-from-\\d+(-\\d+)?)?(\\.domain-\\d+-of-\\d+)?\\.(gz|columns)")) {
+        this.existingMonths.add(f.getName().substring(0, 7));
+      }
+    }
+  }
+
+  // Processed lines for a target, e.g. "2015-01" or "2015-01.domain-07-of-16", as they're written.
+  void feed(String target, byte[] lines) throws InterruptedException {
+    // Spills are only for months that were already there, so they're never aggregated here.
+    FusedMonth month = this.monthFor(target.substring(0, 7));
+    if (month == null) {
+      return;
+    }
+
+    if (month.task != null) {
+      month.task.queue.put(new Chunk(month.task.task, lines));
+    }
+
+    if (month.buckets != null) {
+      Matcher matcher = Formats.BUCKET.matcher(target + Formats.processedExtension());
+      FusedTask bucket = matcher.find() ? month.buckets.get(Integer.parseInt(matcher.group(1))) : null;
+      if (bucket != null) {
+        bucket.queue.put(new Chunk(bucket.task, lines));
+      }
+    }
+  }
+
+  // Once the processed files are in place. Ends the chunks and waits for the outputs to be written.
+  // Checkpoints are saved against the month files, so they're newer than those and incremental runs carry on from them.
+  void finish() throws IOException, InterruptedException {
+    synchronized (this.months) {
+      for (Map.Entry<String, FusedMonth> entry : this.months.entrySet()) {
+        FusedMonth month = entry.getValue();
+        if (month != null && month.task != null && !SKIP_ARCHIVE) {
+          AggregatorMonthTask task = month.task.task;
+          task.monthFiles = Aggregator.monthFiles(this.processedDirectory, entry.getKey());
+          task.lengths = new long[task.monthFiles.size()];
+          for (int i = 0; i < task.lengths.length; i++) {
+            task.lengths[i] = task.monthFiles.get(i).length();
+          }
+        }
+      }
+
+      for (FusedWorker worker : this.workers) {
+        worker.queue.put(END_OF_CHUNKS);
+      }
+    }
+
+    for (Thread thread : this.threads) {
+      thread.join();
+    }
+
+    for (Map.Entry<File, Integer> entry : this.bucketedOutputs.entrySet()) {
+      Aggregator.joinBuckets(entry.getKey(), entry.getValue());
+    }
+
+    System.out.format("Aggregated %d lines as they were processed\n", this.totalLinesCounter.get());
+  }
+
+  // The month's tasks, made and started the first time it's seen.
+  private FusedMonth monthFor(String yearMonth) throws InterruptedException {
+    synchronized (this.months) {
+      if (this.months.containsKey(yearMonth)) {
+        return this.months.get(yearMonth);
+      }
+
+      FusedMonth month = null;
+      if (this.existingMonths.contains(yearMonth)) {
+        System.out.format("%s was already processed, leaving it for aggregate\n", yearMonth);
+      } else {
+        month = this.plan(yearMonth);
+      }
+      this.months.put(yearMonth, month);
+      return month;
+    }
+  }
+
+  // Like Aggregator.run for a month, for the strategies whose outputs aren't there yet.
+  private FusedMonth plan(String yearMonth) throws InterruptedException {
+    FusedMonth month = new FusedMonth();
+    AggregatorMonthTask wholeTask = null;
+    AggregatorMonthTask[] bucketTasks = new AggregatorMonthTask[Formats.BUCKETS];
+
+    for (AggregatorStrategy strategy : this.strategies) {
+      if (strategy.wantsPrepass()) {
+        System.out.format("%s: %s needs a pre-pass, leaving it for aggregate\n", yearMonth, strategy.toString());
+        continue;
+      }
+
+      // In incremental mode all of a strategy's outputs are written.
+      String[] outputNames = strategy.fileNames(yearMonth);
+      File[] outputFiles = new File[outputNames.length];
+      boolean missing = false;
+      for (int i = 0; i < outputNames.length; i++) {
+        outputFiles[i] = new File(this.outputDirectory, outputNames[i]);
+        if (!Aggregator.INCREMENTAL && outputFiles[i].exists()) {
+          System.out.format("Aggregate output file %s already exists, skipping.\n", outputFiles[i].toString());
+          outputFiles[i] = null;
+        } else {
+          missing = true;
+        }
+      }
+      if (!missing) {
+        continue;
+      }
+
+      if (Formats.BUCKETS > 0 && strategy.splitsByDomain() && !Aggregator.INCREMENTAL) {
+        for (int bucket = 0; bucket < Formats.BUCKETS; bucket++) {
+          if (bucketTasks[bucket] == null) {
+            bucketTasks[bucket] = this.newTask(String.format("%s bucket %d", yearMonth, bucket));
+          }
+          bucketTasks[bucket].add(strategy, Aggregator.bucketParts(outputFiles, bucket), null);
+        }
+
+        for (File outputFile : outputFiles) {
+          if (outputFile != null) {
+            this.bucketedOutputs.put(outputFile, Formats.BUCKETS);
+          }
+        }
+        continue;
+      }
+
+      // Checkpoints are saved against the month files, so only if there are some.
+      Checkpoint checkpoint = null;
+      if (Aggregator.INCREMENTAL && !SKIP_ARCHIVE && strategy.canCheckpoint()) {
+        try {
+          checkpoint = new Checkpoint(this.checkpointDirectory, strategy.fileName(yearMonth));
+        } catch (IOException e) {
+          System.err.println("ERROR: Can't read checkpoint: " + e.toString());
+          System.exit(1);
+        }
+      }
+
+      if (wholeTask == null) {
+        wholeTask = this.newTask(yearMonth);
+      }
+      wholeTask.add(strategy, outputFiles, checkpoint);
+    }
+
+    FusedTask whole = null;
+    if (wholeTask != null) {
+      whole = this.start(wholeTask);
+    }
+    for (int bucket = 0; bucket < Formats.BUCKETS; bucket++) {
+      if (bucketTasks[bucket] != null) {
+        if (month.buckets == null) {
+          month.buckets = new ArrayList<>(Collections.nCopies(Formats.BUCKETS, (FusedTask) null));
+        }
+        month.buckets.set(bucket, this.start(bucketTasks[bucket]));
+      }
+    }
+    month.task = whole;
+
+    // Share the budget out again, now that there are more tasks.
+    for (AggregatorMonthTask task : this.tasks) {
+      task.reservation = Math.max(Aggregator.MIN_TASK_MB, Aggregator.MEMORY_BUDGET_MB / this.tasks.size());
+    }
+
+    return month.task == null && month.buckets == null ? null : month;
+  }
+
+  private AggregatorMonthTask newTask(String name) {
+    AggregatorMonthTask task = new AggregatorMonthTask(name, new ArrayList<File>(), null, this.totalLinesCounter);
+    this.tasks.add(task);
+    return task;
+  }
+
+  // Give the task to the next worker in turn, starting another if there aren't enough yet.
+  private FusedTask start(AggregatorMonthTask task) throws InterruptedException {
+    System.out.format("%s: Aggregate as it's processed with %d strategies\n", task.yearMonth, task.strategies.size());
+
+    int number = this.started++ % Aggregator.THREADS;
+    if (number == this.workers.size()) {
+      FusedWorker worker = new FusedWorker();
+      Thread thread = new Thread(worker, "aggregate " + number);
+      thread.start();
+      this.workers.add(worker);
+      this.threads.add(thread);
+    }
+
+    FusedTask result = new FusedTask();
+    result.task = task;
+    result.queue = this.workers.get(number).queue;
+    result.queue.put(new Chunk(task, null));
+    return result;
+  }
+
+  // A month's tasks: the one with every line, and one for each bucket. Null where there isn't one.
+  private static class FusedMonth {
+    FusedTask task;
+    List<FusedTask> buckets;
+  }
+
+  // A task and its worker's queue.
+  private static class FusedTask {
+    AggregatorMonthTask task;
+    BlockingQueue<Chunk> queue;
+  }
+
+  // Processed lines for a task, whole lines only. No lines means that the task is new.
+  private static class Chunk {
+    AggregatorMonthTask task;
+    byte[] lines;
+
+    Chunk(AggregatorMonthTask task, byte[] lines) {
+      this.task = task;
+      this.lines = lines;
+    }
+  }
+
+  // Feeds its tasks the chunks from its queue as they come, then writes their outputs once they've ended.
+  private static class FusedWorker implements Runnable {
+    BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(CHUNKS_AHEAD);
+
+    private List<AggregatorMonthTask> tasks = new ArrayList<>();
+
+    public void run() {
+      try {
+        while (true) {
+          Chunk chunk = this.queue.take();
+          if (chunk == END_OF_CHUNKS) {
+            break;
+          }
+
+          if (chunk.lines == null) {
+            chunk.task.begin();
+            this.tasks.add(chunk.task);
+          } else {
+            ProcessedReader input = ProcessedReader.open(new ByteArrayInputStream(chunk.lines));
+            chunk.task.feed(input);
+            input.close();
+          }
+        }
+
+        for (AggregatorMonthTask task : this.tasks) {
+          task.finish();
+        }
+      } catch (Exception e) {
+        // If there's an exception, blow the whole thing up. This tool is meant for supervised use.
+        System.err.println("ERROR: " + e.toString());
+        e.printStackTrace();
+        System.exit(1);
+      }
+    }
+  }
+}
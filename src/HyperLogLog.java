@@ -0,0 +1,190 @@
+package logpp;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+// Estimate of the number of distinct values added, in fixed space, to within about 1.04 / sqrt(2^precision).
+// e.g. precision 12 is 4096 one-byte registers, about 1.6%.
+// Sketches can be merged, so a sketch for a month is the union of sketches for its days, and so on.
+// Most sketches only ever see a few values, so they start sparse: a list of the registers that have been set, which
+// becomes the full array of registers once it would be more than a sixteenth of the size.
+// Written as text: the precision, then "S" and the sparse registers, or "D" and all of them, in base 64.
+public class HyperLogLog {
+  private int precision;
+
+  // Sparse registers, index << 8 | value, until `registers` is made.
+  private int[] sparse = new int[4];
+  private int sparseSize = 0;
+
+  private byte[] registers = null;
+
+  public HyperLogLog(int precision) {
+    if (precision < 4 || precision > 16) {
+      throw new IllegalArgumentException(String.format("Precision %d isn't between 4 and 16", precision));
+    }
+    this.precision = precision;
+  }
+
+  // 64-bit hash of a value, to add.
+  public static long hash(ByteSlice value) {
+    return DOICounter.hash(value.getBytes(), value.getOffset(), value.length());
+  }
+
+  public void add(long hash) {
+    int index = (int) (hash >>> (64 - this.precision));
+
+    // Position of the first 1 in the rest of the bits. The extra bit means it's never more than the bits there are.
+    int rank = Long.numberOfLeadingZeros((hash << this.precision) | (1L << (this.precision - 1))) + 1;
+
+    this.set(index, rank);
+  }
+
+  // Union with another sketch, which must have the same precision.
+  public void merge(HyperLogLog other) {
+    if (other.precision != this.precision) {
+      throw new IllegalArgumentException(String.format("Can't merge precision %d into %d", other.precision, this.precision));
+    }
+
+    if (other.registers != null) {
+      for (int index = 0; index < other.registers.length; index++) {
+        if (other.registers[index] != 0) {
+          this.set(index, other.registers[index]);
+        }
+      }
+    } else {
+      for (int i = 0; i < other.sparseSize; i++) {
+        this.set(other.sparse[i] >>> 8, other.sparse[i] & 0xFF);
+      }
+    }
+  }
+
+  public long estimate() {
+    int m = 1 << this.precision;
+
+    double sum = 0;
+    int zeros = 0;
+    if (this.registers != null) {
+      for (byte rank : this.registers) {
+        sum += 1.0 / (1L << rank);
+        if (rank == 0) {
+          zeros++;
+        }
+      }
+    } else {
+      zeros = m - this.sparseSize;
+      sum = zeros;
+      for (int i = 0; i < this.sparseSize; i++) {
+        sum += 1.0 / (1L << (this.sparse[i] & 0xFF));
+      }
+    }
+
+    double estimate = alpha(m) * m * m / sum;
+
+    // Small numbers are more accurate from the number of registers that are still empty.
+    if (estimate <= 2.5 * m && zeros > 0) {
+      estimate = m * Math.log((double) m / zeros);
+    }
+
+    return Math.round(estimate);
+  }
+
+  // Very approximate number of bytes used.
+  public long memoryEstimate() {
+    return 48 + (this.registers != null ? this.registers.length : this.sparse.length * 4L);
+  }
+
+  public String toString() {
+    if (this.registers != null) {
+      return this.precision + "D" + Base64.getEncoder().encodeToString(this.registers);
+    }
+
+    // In order, so the same sketch is always written the same way.
+    int[] sorted = Arrays.copyOf(this.sparse, this.sparseSize);
+    Arrays.sort(sorted);
+
+    byte[] bytes = new byte[sorted.length * 3];
+    for (int i = 0; i < sorted.length; i++) {
+      bytes[i * 3] = (byte) (sorted[i] >>> 16);
+      bytes[i * 3 + 1] = (byte) (sorted[i] >>> 8);
+      bytes[i * 3 + 2] = (byte) sorted[i];
+    }
+    return this.precision + "S" + Base64.getEncoder().encodeToString(bytes);
+  }
+
+  // Read a sketch written by `toString`.
+  public static HyperLogLog parse(String text) {
+    int kind = 0;
+    while (kind < text.length() && Character.isDigit(text.charAt(kind))) {
+      kind++;
+    }
+    if (kind == 0 || kind == text.length()) {
+      throw new IllegalArgumentException(String.format("Can't read sketch %s", text));
+    }
+
+    HyperLogLog sketch = new HyperLogLog(Integer.parseInt(text.substring(0, kind)));
+    byte[] bytes = Base64.getDecoder().decode(text.substring(kind + 1));
+
+    if (text.charAt(kind) == 'D') {
+      if (bytes.length != 1 << sketch.precision) {
+        throw new IllegalArgumentException(String.format("Can't read sketch %s", text));
+      }
+      sketch.registers = bytes;
+    } else if (text.charAt(kind) == 'S') {
+      for (int i = 0; i + 2 < bytes.length; i += 3) {
+        sketch.set((bytes[i] & 0xFF) << 8 | (bytes[i + 1] & 0xFF), bytes[i + 2] & 0xFF);
+      }
+    } else {
+      throw new IllegalArgumentException(String.format("Can't read sketch %s", text));
+    }
+
+    return sketch;
+  }
+
+  // Set the register to the rank if it's bigger.
+  private void set(int index, int rank) {
+    if (this.registers != null) {
+      if (rank > this.registers[index]) {
+        this.registers[index] = (byte) rank;
+      }
+      return;
+    }
+
+    for (int i = 0; i < this.sparseSize; i++) {
+      if (this.sparse[i] >>> 8 == index) {
+        if (rank > (this.sparse[i] & 0xFF)) {
+          this.sparse[i] = index << 8 | rank;
+        }
+        return;
+      }
+    }
+
+    if (this.sparseSize == this.sparse.length) {
+      if (this.sparse.length * 16 >= 1 << this.precision) {
+        this.densify();
+        this.set(index, rank);
+        return;
+      }
+      this.sparse = Arrays.copyOf(this.sparse, this.sparse.length * 2);
+    }
+
+    this.sparse[this.sparseSize++] = index << 8 | rank;
+  }
+
+  private void densify() {
+    this.registers = new byte[1 << this.precision];
+    for (int i = 0; i < this.sparseSize; i++) {
+      this.registers[this.sparse[i] >>> 8] = (byte) (this.sparse[i] & 0xFF);
+    }
+    this.sparse = null;
+    this.sparseSize = 0;
+  }
+
+  private static double alpha(int m) {
+    switch (m) {
+      case 16: return 0.673;
+      case 32: return 0.697;
+      case 64: return 0.709;
+      default: return 0.7213 / (1 + 1.079 / m);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package logpp;
+
+import java.util.Arrays;
+
+// A batch of raw log lines from one input file, handed from the reader to the parsers.
+// Lines are copied back-to-back into one buffer, so the reader's buffer can be re-used straight away.
+public class LineBatch {
+  // Order in which batches were read, so that output can be put back into that order.
+  long sequence;
+
+  // Lines before this batch's first one in the input file, or segment.
+  long firstLine = 0;
+
+  String fileName;
+
+  // The LineParser format for the file, or 0 if none of the lines so far have parsed.
+  int format;
+
+  byte[] data;
+  int length = 0;
+
+  // Line i is data[lineStarts[i], lineEnds[i]).
+  int[] lineStarts = new int[1024];
+  int[] lineEnds = new int[1024];
+  int lineCount = 0;
+
+  // Bytes consumed from the input, including newlines.
+  long bytes = 0;
+
+  LineBatch(long sequence, String fileName, int format, int capacity) {
+    this.sequence = sequence;
+    this.fileName = fileName;
+    this.format = format;
+    this.data = new byte[capacity];
+  }
+
+  void add(byte[] buffer, int start, int end) {
+    int lineLength = end - start;
+
+    if (this.length + lineLength > this.data.length) {
+      this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, this.length + lineLength));
+    }
+
+    if (this.lineCount == this.lineStarts.length) {
+      this.lineStarts = Arrays.copyOf(this.lineStarts, this.lineCount * 2);
+      this.lineEnds = Arrays.copyOf(this.lineEnds, this.lineCount * 2);
+    }
+
+    System.arraycopy(buffer, start, this.data, this.length, lineLength);
+    this.lineStarts[this.lineCount] = this.length;
+    this.lineEnds[this.lineCount] = this.length + lineLength;
+    this.lineCount++;
+    this.length += lineLength;
+    this.bytes += lineLength + 1;
+  }
+
+  boolean isFull(int size) {
+    return this.length >= size;
+  }
+}
@@ -1,72 +1,225 @@
 package logpp;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
 
-// Parse a line into the useful strings that we want, an array of [date doi referrer].
+// Parse a line into the useful fields that we want: date, doi, referrer.
+// Works directly on the raw bytes of the line. Fields are exposed as slices of the line, which are re-used for every line,
+// so Strings are only made when they're needed.
 // Can deal with a number of different line formats.
-// Stateful because it decides the most appropriate format. 
-// re2 is too greedy, so don't cycline round. TODO Explain
+// Stateful because it decides the most appropriate format.
+// The no-referrer format is too greedy (it accepts lines in the referrer format), so don't cycle round once one is chosen.
 public class LineParser {
-  // Nearly all log lines match chis.
+  // Nearly all log lines are in this format. Equivalent to the regular expression
+  // ^[^ ]+ [^ ]+ "([^"]+)" [^ ]* [^ ]* [^ ]* ([^ ]*) "[^"]*" "([^"]*)"$
   // 101.226.33.216 HTTP:HDL "2016-01-05 03:55:23.962-0500" 1 1 23ms 10.1002/aic.14628 "200:0.na/10.1002" "http://www.sogou.com/"
   // 68.180.228.178 HTTP:HDL "2015-01-01 03:10:43.247Z" 1 1 195ms 10.1080/02732173.2012.628560 "200:0.na/10.1080" ""
-  private Pattern re1 = Pattern.compile("^[^ ]+ [^ ]+ \"([^\"]+)\" [^ ]* [^ ]* [^ ]* ([^ ]*) \"[^\"]*\" \"([^\"]*)\"$");
-  
-  // MEDRA seem to have their own format altogether.
+  private static final int FORMAT_REFERRER = 1;
+
+  // MEDRA seem to have their own format altogether. Equivalent to the regular expression
+  // ^[\d.]+ [^ ]+ "([^"]+)" \d+ \d+ [^ ]+ (.+)$
   // 130.186.99.39 HTTP:HDL "2015-12-01 00:01:47.639+0100" 1 1 350ms 10.1016/j.anbehav.2009.06.021
-  private Pattern re2 = Pattern.compile("^[\\d.]+ [^ ]+ \"([^\"]+)\" \\d+ \\d+ [^ ]+ (.+)$");
+  private static final int FORMAT_NO_REFERRER = 2;
+
+  private static final int[] FORMATS = new int[] { FORMAT_REFERRER, FORMAT_NO_REFERRER };
+
+  // Referrer for lines in formats that don't have one.
+  private static final byte[] UNKNOWN_REFERRER = "unknown.special".getBytes(StandardCharsets.US_ASCII);
+
+  // The currently selected format, 0 until one has been found.
+  private int format = 0;
 
-  private Pattern[] patterns = new Pattern[] { re1, re2 };
+  private ByteSlice date = new ByteSlice();
+  private ByteSlice doi = new ByteSlice();
+  private ByteSlice referrer = new ByteSlice();
 
-  // The currently selected pattern.
-  private Pattern pattern = null;
+  // Does the DOI contain non-ASCII bytes? If so it can't be lower-cased in place.
+  private boolean doiAscii = true;
 
-  // Parse string into [dateString, DOI, referrer]
-  public String[] parse(String line) {
+  // Parse the line in bytes [start, end). True if it worked, in which case the fields are available.
+  public boolean parse(byte[] line, int start, int end) {
     // First time, find the one that works. This will be reset every new file.
-    if (this.pattern == null) {
-      // Try all the patterns to see which one works.
-      for (Pattern tryPattern : this.patterns) {
-        String[] result = this.parseWith(line, tryPattern);
-
-        // System.out.println("Try pattern " + tryPattern.toString());
-        
-        if (result != null) {
-          this.pattern = tryPattern;
-          // System.out.println("Worked!" + Arrays.toString(result));
-          return result;
+    if (this.format == 0) {
+      // Try all the formats to see which one works.
+      for (int tryFormat : FORMATS) {
+        if (this.parseWith(line, start, end, tryFormat)) {
+          this.format = tryFormat;
+          return true;
         }
-      }      
-    } else { 
-      // Could be null.      
-      return this.parseWith(line, this.pattern);
+      }
+
+      return false;
+    } else {
+      return this.parseWith(line, start, end, this.format);
+    }
+  }
+
+  // The format that was chosen, or 0 if none yet.
+  public int getFormat() {
+    return this.format;
+  }
+
+  // Use a format that was found by another LineParser, e.g. for another part of the same file.
+  public void setFormat(int format) {
+    this.format = format;
+  }
+
+  public ByteSlice getDate() {
+    return this.date;
+  }
+
+  public ByteSlice getReferrer() {
+    return this.referrer;
+  }
+
+  // The DOI, lower-cased.
+  public String getDoi() {
+    if (this.doiAscii) {
+      return new String(this.doi.getBytes(), this.doi.getOffset(), this.doi.length(), StandardCharsets.US_ASCII);
+    } else {
+      return this.doi.toString().toLowerCase();
+    }
+  }
+
+  private boolean parseWith(byte[] line, int start, int end, int format) {
+    switch (format) {
+      case FORMAT_REFERRER: return this.parseReferrerFormat(line, start, end);
+      case FORMAT_NO_REFERRER: return this.parseNoReferrerFormat(line, start, end);
+    }
+    return false;
+  }
+
+  private boolean parseReferrerFormat(byte[] line, int start, int end) {
+    // Two non-empty space-terminated fields.
+    int i = skipField(line, start, end, 1);
+    i = skipField(line, i, end, 1);
+
+    // Quoted date.
+    if (i < 0 || i >= end || line[i] != '"') {
+      return false;
+    }
+    int dateStart = i + 1;
+    int dateEnd = indexOf(line, dateStart, end, (byte) '"');
+    if (dateEnd <= dateStart || dateEnd + 1 >= end || line[dateEnd + 1] != ' ') {
+      return false;
+    }
+
+    // Three possibly-empty fields.
+    i = skipField(line, dateEnd + 2, end, 0);
+    i = skipField(line, i, end, 0);
+    i = skipField(line, i, end, 0);
+    if (i < 0) {
+      return false;
+    }
+
+    int doiStart = i;
+    int doiEnd = indexOf(line, doiStart, end, (byte) ' ');
+    if (doiEnd < 0) {
+      return false;
+    }
+
+    // Quoted field we don't care about.
+    i = doiEnd + 1;
+    if (i >= end || line[i] != '"') {
+      return false;
+    }
+    i = indexOf(line, i + 1, end, (byte) '"');
+    if (i < 0 || i + 2 >= end || line[i + 1] != ' ' || line[i + 2] != '"') {
+      return false;
     }
 
-    return null;
+    // Quoted referrer, which must end the line.
+    int referrerStart = i + 3;
+    int referrerEnd = indexOf(line, referrerStart, end, (byte) '"');
+    if (referrerEnd != end - 1) {
+      return false;
+    }
+
+    this.date.set(line, dateStart, dateEnd - dateStart);
+    this.setDoi(line, doiStart, doiEnd);
+    this.referrer.set(line, referrerStart, referrerEnd - referrerStart);
+    return true;
   }
 
-  private String[] parseWith(String line, Pattern pattern) {
-    Matcher matcher = pattern.matcher(line);
+  private boolean parseNoReferrerFormat(byte[] line, int start, int end) {
+    // IP address.
+    int i = start;
+    while (i < end && ((line[i] >= '0' && line[i] <= '9') || line[i] == '.')) {
+      i++;
+    }
+    if (i == start || i >= end || line[i] != ' ') {
+      return false;
+    }
+
+    i = skipField(line, i + 1, end, 1);
 
-    if (!matcher.matches()) {
-      return null;
+    // Quoted date.
+    if (i < 0 || i >= end || line[i] != '"') {
+      return false;
     }
+    int dateStart = i + 1;
+    int dateEnd = indexOf(line, dateStart, end, (byte) '"');
+    if (dateEnd <= dateStart || dateEnd + 1 >= end || line[dateEnd + 1] != ' ') {
+      return false;
+    }
+
+    // Two numbers and a non-empty field.
+    i = skipDigits(line, dateEnd + 2, end);
+    i = skipDigits(line, i, end);
+    i = skipField(line, i, end, 1);
 
-    // Lines conforming to re2 simply don't include the referrer.
-    if (pattern == this.re1) {
-      String date = matcher.group(1);
-      String doi = matcher.group(2).toLowerCase();
-      String referrer = matcher.group(3);
-      return new String[] {date, doi, referrer};
-    } else if (pattern == this.re2) {
-      String date = matcher.group(1);
-      String doi = matcher.group(2).toLowerCase();
-      String referrer = "unknown.special";
-      return new String[] {date, doi, referrer};
-    } 
+    // The DOI is all the rest, spaces and all.
+    if (i < 0 || i >= end || indexOf(line, i, end, (byte) '\r') >= 0) {
+      return false;
+    }
+
+    this.date.set(line, dateStart, dateEnd - dateStart);
+    this.setDoi(line, i, end);
+    this.referrer.set(UNKNOWN_REFERRER, 0, UNKNOWN_REFERRER.length);
+    return true;
+  }
 
-    return null;
+  private void setDoi(byte[] line, int start, int end) {
+    this.doi.set(line, start, end - start);
+    this.doiAscii = this.doi.isAscii();
+    if (this.doiAscii) {
+      this.doi.toLowerCaseAscii();
+    }
+  }
+
+  // Skip a field of at least minLength non-space bytes and the space that terminates it.
+  // Return the index after the space or -1 if there isn't one. Pass -1 straight through.
+  private static int skipField(byte[] line, int start, int end, int minLength) {
+    if (start < 0) {
+      return -1;
+    }
+    int space = indexOf(line, start, end, (byte) ' ');
+    if (space < 0 || space - start < minLength) {
+      return -1;
+    }
+    return space + 1;
+  }
+
+  // Skip at least one digit and the space that terminates them.
+  private static int skipDigits(byte[] line, int start, int end) {
+    if (start < 0) {
+      return -1;
+    }
+    int i = start;
+    while (i < end && line[i] >= '0' && line[i] <= '9') {
+      i++;
+    }
+    if (i == start || i >= end || line[i] != ' ') {
+      return -1;
+    }
+    return i + 1;
+  }
+
+  private static int indexOf(byte[] line, int start, int end, byte b) {
+    for (int i = start; i < end; i++) {
+      if (line[i] == b) {
+        return i;
+      }
+    }
+    return -1;
   }
-}
\ No newline at end of file
+}
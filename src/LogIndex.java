@@ -0,0 +1,734 @@
+package logpp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+// Places to start inflating an input log file part way through, so that one big file can be parsed in segments side by
+// side, like zlib's zran. Input logs are one gzip stream of many GB, which otherwise can only be inflated from the start.
+// A checkpoint is the start of a deflate block: the bit it starts at, how far into the output it is, and the 32KB of
+// output before it, which later blocks can refer back to. They're about every -Dlogpp.logIndexSpan MB of output.
+// The index is kept next to the log, e.g. "access_log-201501-ec2.gz.index", and made once by the `index` command.
+// It's only used while the log has the same size and modified time as when it was indexed.
+class LogIndex {
+  static final String EXTENSION = ".index";
+
+  // Megabytes of output between checkpoints.
+  static final int SPAN_MB = Integer.getInteger("logpp.logIndexSpan", 64);
+
+  private static final int MAGIC = 0x4c505a31;
+
+  File log;
+  long logLength;
+  long logModified;
+
+  // Per checkpoint.
+  long[] outputOffsets;
+  long[] bitOffsets;
+  byte[][] windows;
+
+  static File indexFile(File log) {
+    return new File(log.getPath() + EXTENSION);
+  }
+
+  // Number of segments the log can be read in.
+  int segments() {
+    return this.outputOffsets.length;
+  }
+
+  // Roughly how many bytes of the log a segment takes up, for ordering work.
+  long compressedSize(int segment) {
+    long end = segment + 1 < this.segments() ? this.bitOffsets[segment + 1] / 8 : this.logLength;
+    return end - this.bitOffsets[segment] / 8;
+  }
+
+  // The lines that start in the segment, inflated. The first segment also has any lines before the first checkpoint,
+  // and a line that goes over the end of a segment belongs to the segment it starts in.
+  InputStream openSegment(int segment) throws IOException {
+    long length = segment + 1 < this.segments() ? this.outputOffsets[segment + 1] - this.outputOffsets[segment] : Long.MAX_VALUE;
+    return new LogSegmentInputStream(this.log, this.bitOffsets[segment], this.windows[segment], length);
+  }
+
+  // Inflate the whole log to find checkpoints, and save them. Null if it's not a single gzip stream, e.g. several
+  // concatenated, which isn't worth indexing.
+  static LogIndex build(File log) throws IOException {
+    LogIndex index = new LogIndex();
+    index.log = log;
+    index.logLength = log.length();
+    index.logModified = log.lastModified();
+
+    final List<Long> outputOffsets = new ArrayList<>();
+    final List<Long> bitOffsets = new ArrayList<>();
+    final List<byte[]> windows = new ArrayList<>();
+
+    CheckpointInflater.Visitor visitor = new CheckpointInflater.Visitor() {
+      public void checkpoint(long bitOffset, long outputOffset, byte[] window) {
+        bitOffsets.add(bitOffset);
+        outputOffsets.add(outputOffset);
+        windows.add(window);
+      }
+    };
+
+    try (InputStream input = new FileInputStream(log)) {
+      CheckpointInflater inflater = new CheckpointInflater(input, SPAN_MB * 1048576L, visitor);
+      if (!inflater.inflate()) {
+        return null;
+      }
+    }
+
+    int count = outputOffsets.size();
+    index.outputOffsets = new long[count];
+    index.bitOffsets = new long[count];
+    index.windows = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      index.outputOffsets[i] = outputOffsets.get(i);
+      index.bitOffsets[i] = bitOffsets.get(i);
+      index.windows[i] = windows.get(i);
+    }
+
+    index.save();
+    return index;
+  }
+
+  // The log's index, or null if it hasn't got one or the log has changed since.
+  static LogIndex read(File log) throws IOException {
+    File file = indexFile(log);
+    if (!file.exists()) {
+      return null;
+    }
+
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 65536)))) {
+      if (input.readInt() != MAGIC) {
+        System.err.format("WARNING: Ignoring index that isn't one: %s\n", file.getPath());
+        return null;
+      }
+
+      LogIndex index = new LogIndex();
+      index.log = log;
+      index.logLength = input.readLong();
+      index.logModified = input.readLong();
+      if (index.logLength != log.length() || index.logModified != log.lastModified()) {
+        System.err.format("WARNING: Ignoring index for a log that has changed since: %s\n", file.getPath());
+        return null;
+      }
+
+      int count = input.readInt();
+      index.outputOffsets = new long[count];
+      index.bitOffsets = new long[count];
+      index.windows = new byte[count][];
+      for (int i = 0; i < count; i++) {
+        index.outputOffsets[i] = input.readLong();
+        index.bitOffsets[i] = input.readLong();
+        index.windows[i] = new byte[input.readInt()];
+        input.readFully(index.windows[i]);
+      }
+      return index;
+    }
+  }
+
+  // Written to a temporary file first, so that it only appears when it's complete.
+  private void save() throws IOException {
+    File file = indexFile(this.log);
+    File temporary = new File(file.getPath() + ".tmp");
+
+    try (DataOutputStream output = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(temporary), 65536))) {
+      output.writeInt(MAGIC);
+      output.writeLong(this.logLength);
+      output.writeLong(this.logModified);
+      output.writeInt(this.outputOffsets.length);
+      for (int i = 0; i < this.outputOffsets.length; i++) {
+        output.writeLong(this.outputOffsets[i]);
+        output.writeLong(this.bitOffsets[i]);
+        output.writeInt(this.windows[i].length);
+        output.write(this.windows[i]);
+      }
+    }
+
+    if (!temporary.renameTo(file)) {
+      throw new IOException("Can't rename " + temporary.getPath() + " to " + file.getPath());
+    }
+  }
+}
+
+// Inflates a gzip stream in plain Java, to find where deflate blocks start, which java.util.zip can't say.
+// Much slower than java.util.zip, but it's only done once per log. The output is checked against the gzip trailer.
+class CheckpointInflater {
+  // Called at the start of a block that's a checkpoint.
+  interface Visitor {
+    void checkpoint(long bitOffset, long outputOffset, byte[] window);
+  }
+
+  private static final int WINDOW = 32768;
+
+  // Order of the code length code lengths in a dynamic block header.
+  private static final int[] CODE_LENGTH_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+  // Base and extra bits for length symbols 257..285 and distance symbols 0..29.
+  private static final int[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+  private static final int[] LENGTH_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+  private static final int[] DISTANCE_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+  private static final int[] DISTANCE_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+
+  private static final Huffman FIXED_LITERALS;
+  private static final Huffman FIXED_DISTANCES;
+
+  static {
+    int[] lengths = new int[288];
+    for (int i = 0; i < 288; i++) {
+      lengths[i] = i < 144 ? 8 : i < 256 ? 9 : i < 280 ? 7 : 8;
+    }
+    FIXED_LITERALS = new Huffman(lengths, 288);
+
+    int[] distances = new int[30];
+    for (int i = 0; i < 30; i++) {
+      distances[i] = 5;
+    }
+    FIXED_DISTANCES = new Huffman(distances, 30);
+  }
+
+  private InputStream input;
+  private byte[] inputBuffer = new byte[131072];
+  private int inputPosition = 0;
+  private int inputLimit = 0;
+  // Bytes of input before the buffer.
+  private long inputBase = 0;
+
+  // Bits read from the input and not used yet, lowest first.
+  private long bits = 0;
+  private int bitCount = 0;
+
+  // Output, with at least a window of it kept from before `outputPosition` when it's moved down.
+  private byte[] output = new byte[1 << 18];
+  private int outputPosition = 0;
+  // Bytes of output before the buffer.
+  private long outputBase = 0;
+
+  private CRC32 crc = new CRC32();
+  private int crcFrom = 0;
+
+  private long span;
+  private Visitor visitor;
+
+  CheckpointInflater(InputStream input, long span, Visitor visitor) {
+    this.input = input;
+    this.span = span;
+    this.visitor = visitor;
+  }
+
+  // Inflate it all. False if there's anything after the first gzip stream.
+  boolean inflate() throws IOException {
+    this.readHeader();
+
+    long lastCheckpoint = 0;
+    boolean last = false;
+    while (!last) {
+      long outputOffset = this.outputBase + this.outputPosition;
+      if (outputOffset == 0 || outputOffset - lastCheckpoint >= this.span) {
+        this.visitor.checkpoint(this.bitOffset(), outputOffset, this.window());
+        lastCheckpoint = outputOffset;
+      }
+
+      last = this.bits(1) == 1;
+      int type = this.bits(2);
+      if (type == 0) {
+        this.stored();
+      } else if (type == 1) {
+        this.codes(FIXED_LITERALS, FIXED_DISTANCES);
+      } else if (type == 2) {
+        this.dynamic();
+      } else {
+        throw new IOException("Bad deflate block type");
+      }
+    }
+
+    // The trailer is the CRC32 and length of the output, on a byte boundary.
+    this.bits(this.bitCount % 8);
+    long expectedCrc = this.bits(16) | (long) this.bits(16) << 16;
+    long expectedSize = this.bits(16) | (long) this.bits(16) << 16;
+
+    this.crc.update(this.output, this.crcFrom, this.outputPosition - this.crcFrom);
+    if (this.crc.getValue() != expectedCrc || ((this.outputBase + this.outputPosition) & 0xffffffffL) != expectedSize) {
+      throw new IOException("Inflated data doesn't match the gzip trailer");
+    }
+
+    return this.bitCount == 0 && !this.fill();
+  }
+
+  private void readHeader() throws IOException {
+    if (this.bits(8) != 0x1f || this.bits(8) != 0x8b || this.bits(8) != 8) {
+      throw new IOException("Not in gzip format");
+    }
+    int flags = this.bits(8);
+    // Modified time, extra flags and OS.
+    for (int i = 0; i < 6; i++) {
+      this.bits(8);
+    }
+    if ((flags & 4) != 0) {
+      int length = this.bits(16);
+      for (int i = 0; i < length; i++) {
+        this.bits(8);
+      }
+    }
+    // File name, then comment, both zero-terminated.
+    if ((flags & 8) != 0) {
+      while (this.bits(8) != 0) {
+      }
+    }
+    if ((flags & 16) != 0) {
+      while (this.bits(8) != 0) {
+      }
+    }
+    if ((flags & 2) != 0) {
+      this.bits(16);
+    }
+  }
+
+  private void stored() throws IOException {
+    this.bits(this.bitCount % 8);
+    int length = this.bits(16);
+    if ((this.bits(16) ^ 0xffff) != length) {
+      throw new IOException("Bad stored block length");
+    }
+    for (int i = 0; i < length; i++) {
+      this.room();
+      this.output[this.outputPosition++] = (byte) this.bits(8);
+    }
+  }
+
+  private void dynamic() throws IOException {
+    int literalCount = this.bits(5) + 257;
+    int distanceCount = this.bits(5) + 1;
+    int codeLengthCount = this.bits(4) + 4;
+
+    int[] codeLengthLengths = new int[19];
+    for (int i = 0; i < codeLengthCount; i++) {
+      codeLengthLengths[CODE_LENGTH_ORDER[i]] = this.bits(3);
+    }
+    Huffman codeLengths = new Huffman(codeLengthLengths, 19);
+
+    int[] lengths = new int[literalCount + distanceCount];
+    int i = 0;
+    while (i < lengths.length) {
+      int symbol = this.decode(codeLengths);
+      if (symbol < 16) {
+        lengths[i++] = symbol;
+        continue;
+      }
+
+      int repeat;
+      int value = 0;
+      if (symbol == 16) {
+        if (i == 0) {
+          throw new IOException("Repeat with no length before it");
+        }
+        value = lengths[i - 1];
+        repeat = 3 + this.bits(2);
+      } else if (symbol == 17) {
+        repeat = 3 + this.bits(3);
+      } else {
+        repeat = 11 + this.bits(7);
+      }
+      if (i + repeat > lengths.length) {
+        throw new IOException("Too many code lengths");
+      }
+      while (repeat-- > 0) {
+        lengths[i++] = value;
+      }
+    }
+
+    int[] distances = new int[distanceCount];
+    System.arraycopy(lengths, literalCount, distances, 0, distanceCount);
+    this.codes(new Huffman(lengths, literalCount), new Huffman(distances, distanceCount));
+  }
+
+  private void codes(Huffman literals, Huffman distances) throws IOException {
+    while (true) {
+      int symbol = this.decode(literals);
+      if (symbol < 256) {
+        this.room();
+        this.output[this.outputPosition++] = (byte) symbol;
+        continue;
+      }
+      if (symbol == 256) {
+        return;
+      }
+
+      symbol -= 257;
+      if (symbol >= 29) {
+        throw new IOException("Bad length symbol");
+      }
+      int length = LENGTH_BASE[symbol] + this.bits(LENGTH_EXTRA[symbol]);
+
+      int distanceSymbol = this.decode(distances);
+      if (distanceSymbol >= 30) {
+        throw new IOException("Bad distance symbol");
+      }
+      int distance = DISTANCE_BASE[distanceSymbol] + this.bits(DISTANCE_EXTRA[distanceSymbol]);
+      if (distance > this.outputBase + this.outputPosition) {
+        throw new IOException("Distance too far back");
+      }
+
+      this.room();
+      int from = this.outputPosition - distance;
+      for (int j = 0; j < length; j++) {
+        this.output[this.outputPosition++] = this.output[from + j];
+      }
+    }
+  }
+
+  // Make sure there's room for the longest match, moving the last window down if there isn't.
+  private void room() {
+    if (this.outputPosition + 258 <= this.output.length) {
+      return;
+    }
+
+    this.crc.update(this.output, this.crcFrom, this.outputPosition - this.crcFrom);
+    int keep = Math.min(WINDOW, this.outputPosition);
+    System.arraycopy(this.output, this.outputPosition - keep, this.output, 0, keep);
+    this.outputBase += this.outputPosition - keep;
+    this.outputPosition = keep;
+    this.crcFrom = keep;
+  }
+
+  // Up to the last 32KB of output.
+  private byte[] window() {
+    int length = Math.min(WINDOW, this.outputPosition);
+    byte[] window = new byte[length];
+    System.arraycopy(this.output, this.outputPosition - length, window, 0, length);
+    return window;
+  }
+
+  // Bits of input used so far.
+  private long bitOffset() {
+    return (this.inputBase + this.inputPosition) * 8 - this.bitCount;
+  }
+
+  private int decode(Huffman huffman) throws IOException {
+    // Near the end there might not be enough bits for the longest code. The missing ones count as zero.
+    while (this.bitCount < huffman.bits && this.fill()) {
+      this.bits |= (long) (this.inputBuffer[this.inputPosition++] & 0xff) << this.bitCount;
+      this.bitCount += 8;
+    }
+
+    int entry = huffman.table[(int) (this.bits & ((1 << huffman.bits) - 1))];
+    int length = entry & 15;
+    if (length == 0 || length > this.bitCount) {
+      throw new IOException("Bad code");
+    }
+    this.bits >>>= length;
+    this.bitCount -= length;
+    return entry >>> 4;
+  }
+
+  private int bits(int count) throws IOException {
+    while (this.bitCount < count) {
+      if (!this.fill()) {
+        throw new EOFException("Unexpected end of gzip data");
+      }
+      this.bits |= (long) (this.inputBuffer[this.inputPosition++] & 0xff) << this.bitCount;
+      this.bitCount += 8;
+    }
+
+    int result = (int) (this.bits & ((1L << count) - 1));
+    this.bits >>>= count;
+    this.bitCount -= count;
+    return result;
+  }
+
+  // Is there input in the buffer? Reads more if not.
+  private boolean fill() throws IOException {
+    if (this.inputPosition < this.inputLimit) {
+      return true;
+    }
+
+    int read = this.input.read(this.inputBuffer);
+    if (read <= 0) {
+      return false;
+    }
+    this.inputBase += this.inputLimit;
+    this.inputPosition = 0;
+    this.inputLimit = read;
+    return true;
+  }
+
+  // A canonical Huffman code, as a table indexed by the next `bits` bits of input. Codes are packed starting from the
+  // lowest bit, so each code is bit-reversed into the table. Entries are symbol << 4 | code length, 0 for no code.
+  private static class Huffman {
+    int[] table;
+    int bits = 1;
+
+    Huffman(int[] lengths, int count) {
+      int[] lengthCounts = new int[16];
+      for (int i = 0; i < count; i++) {
+        lengthCounts[lengths[i]]++;
+        this.bits = Math.max(this.bits, lengths[i]);
+      }
+      lengthCounts[0] = 0;
+
+      int[] nextCode = new int[16];
+      int code = 0;
+      for (int length = 1; length < 16; length++) {
+        code = (code + lengthCounts[length - 1]) << 1;
+        nextCode[length] = code;
+      }
+
+      this.table = new int[1 << this.bits];
+      for (int symbol = 0; symbol < count; symbol++) {
+        int length = lengths[symbol];
+        if (length == 0) {
+          continue;
+        }
+
+        int reversed = Integer.reverse(nextCode[length]++) >>> (32 - length);
+        for (int i = reversed; i < this.table.length; i += 1 << length) {
+          this.table[i] = symbol << 4 | length;
+        }
+      }
+    }
+  }
+}
+
+// Inflated bytes of a log from a checkpoint, with java.util.zip, trimmed to the lines that start in the segment.
+// The window is set as the dictionary, for matches that refer back to it.
+// The checkpoint is usually part way through a byte, and Inflater can only start on a byte boundary. It has no
+// inflatePrime() like zlib's, and shifting the input would move stored blocks off their byte boundaries. So it's given
+// empty blocks first, that end the same number of bits into a byte as the checkpoint is, then the log from there.
+class LogSegmentInputStream extends InputStream {
+  private InputStream input;
+  private Inflater inflater = new Inflater(true);
+
+  private byte[] compressed = new byte[131072];
+  private boolean endOfInput = false;
+
+  // Bytes from the checkpoint that lines can start in.
+  private long length;
+
+  // Output bytes before the ones in the buffer.
+  private long produced = 0;
+
+  // Skipping the end of a line from the segment before, giving lines, or finishing the last line.
+  private static final int SKIP = 0;
+  private static final int LINES = 1;
+  private static final int LAST_LINE = 2;
+  private int state;
+  private boolean done = false;
+
+  private byte[] buffer = new byte[131072];
+  private int position = 0;
+  private int limit = 0;
+
+  LogSegmentInputStream(File log, long bitOffset, byte[] window, long length) throws IOException {
+    this.input = ProcessedReader.openAt(log, bitOffset / 8);
+    this.length = length;
+
+    if (window.length > 0) {
+      this.inflater.setDictionary(window);
+    }
+
+    int shift = (int) (bitOffset % 8);
+    if (shift > 0) {
+      int first = this.input.read();
+      if (first == -1) {
+        throw new EOFException("Log is shorter than its index");
+      }
+      byte[] primer = primer(shift, first);
+      this.inflater.setInput(primer, 0, primer.length);
+    }
+
+    // If the byte before the checkpoint isn't a newline, it's part way through a line that belongs to the segment before.
+    this.state = window.length > 0 && window[window.length - 1] != '\n' ? SKIP : LINES;
+  }
+
+  public int read() throws IOException {
+    byte[] one = new byte[1];
+    return this.read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+  }
+
+  public int read(byte[] destination, int offset, int count) throws IOException {
+    while (this.position == this.limit) {
+      if (!this.next()) {
+        return -1;
+      }
+    }
+
+    int result = Math.min(count, this.limit - this.position);
+    System.arraycopy(this.buffer, this.position, destination, offset, result);
+    this.position += result;
+    return result;
+  }
+
+  public void close() throws IOException {
+    this.inflater.end();
+    this.input.close();
+  }
+
+  // Inflate some more, and set `position` and `limit` to the part of it that's wanted. False at the end.
+  private boolean next() throws IOException {
+    while (!this.done) {
+      if (this.inflater.finished()) {
+        this.done = true;
+        break;
+      }
+      if (this.inflater.needsInput()) {
+        this.feed();
+        continue;
+      }
+
+      int inflated;
+      try {
+        inflated = this.inflater.inflate(this.buffer);
+      } catch (DataFormatException e) {
+        throw new IOException("Bad deflate data in log segment", e);
+      }
+      if (inflated == 0) {
+        continue;
+      }
+
+      long start = this.produced;
+      this.produced += inflated;
+      this.position = 0;
+      this.limit = inflated;
+
+      if (this.state == SKIP) {
+        int newline = indexOf(this.buffer, 0, inflated, '\n');
+        if (newline == -1) {
+          this.done = start + inflated >= this.length;
+          continue;
+        }
+        if (start + newline + 1 >= this.length) {
+          this.done = true;
+          break;
+        }
+        this.position = newline + 1;
+        this.state = LINES;
+      }
+
+      if (this.state == LINES) {
+        // Where the segment ends, if it's in this buffer. The line with the last byte of the segment is finished.
+        if (this.length - start <= inflated) {
+          int last = (int) (this.length - start) - 1;
+          int newline = indexOf(this.buffer, Math.max(last, this.position), inflated, '\n');
+          if (newline != -1) {
+            this.limit = newline + 1;
+            this.done = true;
+          } else {
+            this.state = LAST_LINE;
+          }
+        }
+      } else if (this.state == LAST_LINE) {
+        int newline = indexOf(this.buffer, 0, inflated, '\n');
+        if (newline != -1) {
+          this.limit = newline + 1;
+          this.done = true;
+        }
+      }
+
+      if (this.position < this.limit) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void feed() throws IOException {
+    if (this.endOfInput) {
+      throw new EOFException("Unexpected end of log");
+    }
+
+    int read = this.input.read(this.compressed);
+    if (read == -1) {
+      this.endOfInput = true;
+    } else {
+      this.inflater.setInput(this.compressed, 0, read);
+    }
+  }
+
+  // Empty deflate blocks taking up `shift` bits more than a whole number of bytes, then the top of the log's first byte.
+  // Fixed blocks are 10 bits. A dynamic block with all 19 code length codes is 93 bits, for odd shifts.
+  private static byte[] primer(int shift, int first) {
+    BitWriter writer = new BitWriter();
+    int fixedBlocks = shift / 2;
+
+    if (shift % 2 == 1) {
+      // Not last, dynamic, 257 literal/length codes, 1 distance code, 19 code length codes.
+      writer.write(0, 1);
+      writer.write(2, 2);
+      writer.write(0, 5);
+      writer.write(0, 5);
+      writer.write(15, 4);
+
+      // Only code length codes 1 and 18, 1 bit each. So 1 is "0" and 18 is "1".
+      for (int symbol : new int[] {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15}) {
+        writer.write(symbol == 1 || symbol == 18 ? 1 : 0, 3);
+      }
+
+      // 256 zero lengths as 138 then 118, then 1 for end-of-block and for distance 0.
+      writer.write(1, 1);
+      writer.write(138 - 11, 7);
+      writer.write(1, 1);
+      writer.write(118 - 11, 7);
+      writer.write(0, 1);
+      writer.write(0, 1);
+
+      // End-of-block.
+      writer.write(0, 1);
+
+      fixedBlocks = (shift + 3) % 8 / 2;
+    }
+
+    for (int i = 0; i < fixedBlocks; i++) {
+      // Not last, fixed, then end-of-block as 7 zero bits.
+      writer.write(0, 1);
+      writer.write(1, 2);
+      writer.write(0, 7);
+    }
+
+    writer.write(first >>> shift, 8 - shift);
+    return writer.toByteArray();
+  }
+
+  // Bits packed into bytes lowest first, like deflate.
+  private static class BitWriter {
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private int current = 0;
+    private int count = 0;
+
+    void write(int value, int bits) {
+      for (int i = 0; i < bits; i++) {
+        this.current |= (value >>> i & 1) << this.count;
+        if (++this.count == 8) {
+          this.bytes.write(this.current);
+          this.current = 0;
+          this.count = 0;
+        }
+      }
+    }
+
+    byte[] toByteArray() {
+      return this.bytes.toByteArray();
+    }
+  }
+
+  private static int indexOf(byte[] bytes, int from, int to, char c) {
+    for (int i = from; i < to; i++) {
+      if (bytes[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
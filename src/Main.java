@@ -9,6 +9,11 @@ import java.util.List;
 import java.util.ArrayList;
 
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Main {
 
@@ -53,6 +58,14 @@ public class Main {
       new FullDomainDomainAnalyzerStrategy(),
 
       new DOIAnalyzerStrategy(),
+
+      // Distinct DOIs per domain and domains per DOI, for each month and for all of them.
+      // Every month's sketch of a key is held until it's written, and a busy domain's is 4KB a month, so both are partitioned.
+      new DistinctCountAnalyzerStrategy("day-domain-distinct-doi", "domain-distinct-doi.csv-chunks", 10),
+      new DistinctCountAnalyzerStrategy("month-doi-distinct-domain", "doi-distinct-domain.csv-chunks", 30),
+
+      // All-time top DOIs per domain, from the monthly ones.
+      new DomainTopDOIAnalyzerStrategy(DomainTopDOIAggregatorStrategy.CAPACITY, 10),
       
       // Top N once with unfiltered domains.
       new TopNDomainsTableAnalyzerStrategy(10, new TruncateDay(), new EverythingFilter()),
@@ -130,47 +143,35 @@ public class Main {
     File input = new File(inputPath);
     File output = new File(outputPath);
 
+    // Only used in incremental mode.
+    File checkpoints = new File(workingDir + "/checkpoints");
+
     System.out.format("Process %s to %s\n", inputPath, outputPath);
     
 
-    AggregatorStrategy[] strategies = new AggregatorStrategy[] {
-      new DomainCountCSVAggregatorStrategy(new TruncateDay()),
-      new DomainCountCSVAggregatorStrategy(new TruncateMonth()),
-      new FullDomainCountCSVAggregatorStrategy(new TruncateMonth()),
-      new CodeCountCSVAggregatorStrategy(new TruncateMonth()),
-      new CodeCountCSVAggregatorStrategy(new TruncateDay()),
+    // One reader for all strategies. Each month is read once and fed to everything.
+    Aggregator aggregator = new Aggregator(input, output, checkpoints, strategies());
+    aggregator.run();
+  }
+
+  // The aggregations that are run, by `aggregate` and `process-and-aggregate`.
+  static AggregatorStrategy[] strategies() {
+    return new AggregatorStrategy[] {
+      // Day and month counts for domains, full domains, codes and all lines, each rolled up from one count by day.
+      // The same as separate DomainCount, FullDomainCount, CodeCount and AllCount strategies for each date projection.
+      new DomainRollupCSVAggregatorStrategy(),
+      new CodeRollupCSVAggregatorStrategy(),
 
       new GroupedFullDomainsAggregatorStrategy(),
       new DOICountCSVAggregatorStrategy(),
 
-      new AllCountCSVAggregatorStrategy(new TruncateDay()),
-      new AllCountCSVAggregatorStrategy(new TruncateMonth())
-    };
-
-    
-    try {
-      List<Thread> threads = new ArrayList<>();
-      for (AggregatorStrategy strategy: strategies) {
-        System.out.format("Aggregate with strategy: %s \n", strategy.toString());
-        Aggregator aggregator = new Aggregator(input, output, strategy);
-        Thread thread = new Thread(aggregator);
-        threads.add(thread);
-        thread.start(); 
-        System.out.format("Finished aggregate with strategy: %s \n", strategy.toString());
-      }
+      // Distinct counts, as sketches that the analyzer merges over months.
+      new DomainDistinctDOIAggregatorStrategy(),
+      new DOIDistinctDomainAggregatorStrategy(),
 
-      for (Thread thread: threads) {
-        synchronized(thread) {
-          System.out.println("Wait..." + thread.toString());
-          thread.join();
-          System.out.println("Done " + thread.toString());
-        }
-      }
-    } catch (Exception e) {
-      System.err.println("Error:");
-      e.printStackTrace();
-      System.exit(1);
-    }
+      // Top DOIs per domain, as summaries that the analyzer merges over months.
+      new DomainTopDOIAggregatorStrategy()
+    };
   }
 
   // Preprocess all files.
@@ -192,6 +193,66 @@ public class Main {
     }
   }
 
+  // Preprocess all files, and aggregate new months from the processed lines as they're made, see FusedAggregator.
+  static void processAndAggregate(String workingDir)  {
+    File inputDir = new File(workingDir + "/logs");
+    File processedDir = new File(workingDir + "/processed");
+    File aggregatedDir = new File(workingDir + "/aggregated");
+
+    // Only used in incremental mode.
+    File checkpoints = new File(workingDir + "/checkpoints");
+
+    ConcurrentParser parser = new ConcurrentParser(inputDir, processedDir);
+    parser.aggregator = new FusedAggregator(processedDir, aggregatedDir, checkpoints, strategies());
+
+    // This designed for supervised use. Don't try to recover.
+    try {
+      parser.run();
+    } catch (Exception e) {
+      System.err.println("Error:");
+      e.printStackTrace();
+    }
+  }
+
+  // Make a LogIndex for each input log that hasn't got one, so that process can read them in segments.
+  // Each log is inflated once, all the way through, several side by side.
+  static void index(String workingDir) {
+    File inputDir = new File(workingDir + "/logs");
+
+    ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    List<Future<?>> futures = new ArrayList<>();
+    for (final File log : ConcurrentParser.logFiles(inputDir)) {
+      futures.add(executor.submit(new Callable<Void>() {
+        public Void call() throws IOException {
+          if (LogIndex.read(log) != null) {
+            System.out.format("Already indexed %s\n", log.getName());
+            return null;
+          }
+
+          LogIndex index = LogIndex.build(log);
+          if (index == null) {
+            System.out.format("Not indexing %s, it's more than one gzip stream\n", log.getName());
+          } else {
+            System.out.format("Indexed %s in %d segments\n", log.getName(), index.segments());
+          }
+          return null;
+        }
+      }));
+    }
+    executor.shutdown();
+
+    // This designed for supervised use. Don't try to recover.
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException | ExecutionException e) {
+        System.err.println("Error:");
+        e.printStackTrace();
+        System.exit(1);
+      }
+    }
+  }
+
   public static void main(String[] argv) throws FileNotFoundException, IOException {
     System.out.println("Run with " + Arrays.toString(argv));
 
@@ -204,7 +265,9 @@ public class Main {
     String workingDir = argv[1];
 
     switch (command) {
+      case "index": index(workingDir); break;
       case "process": preprocess(workingDir); break;
+      case "process-and-aggregate": processAndAggregate(workingDir); break;
       case "aggregate": aggregate(workingDir); break;
       case "analyze": analyze(workingDir); break;
       case "distribute": distribute(workingDir); break;
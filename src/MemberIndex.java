@@ -0,0 +1,83 @@
+package logpp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Where each gzip member starts in a processed file, kept next to it, e.g. "2015-01.gz.index".
+// Every member is a batch of whole lines, so members can be inflated separately and put end to end, see ProcessedReader.
+// The index is "offset\tlength" per member. Without one the file is just read in order.
+class MemberIndex {
+  static final String EXTENSION = ".index";
+
+  static File indexFile(File processedFile) {
+    return new File(processedFile.getPath() + EXTENSION);
+  }
+
+  // Write the index for a processed file, given the length of each member in order.
+  // Written to a temporary file first, so that it only appears when it's complete.
+  static void write(File processedFile, List<Long> lengths) throws IOException {
+    File index = indexFile(processedFile);
+    File temporary = new File(index.getPath() + ".tmp");
+
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8))) {
+      long offset = 0;
+      for (long length : lengths) {
+        writer.write(Long.toString(offset));
+        writer.write('\t');
+        writer.write(Long.toString(length));
+        writer.write('\n');
+        offset += length;
+      }
+    }
+
+    if (!temporary.renameTo(index)) {
+      throw new IOException("Can't rename " + temporary.getPath() + " to " + index.getPath());
+    }
+  }
+
+  // Start of each member, then the end of the last one, which is the end of the file as it's written in one go.
+  // Null if there's no index, or it doesn't fit the file.
+  static long[] read(File processedFile) throws IOException {
+    File index = indexFile(processedFile);
+    if (!index.exists()) {
+      return null;
+    }
+
+    List<Long> offsets = new ArrayList<>();
+    long end = 0;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split("\t");
+        if (parts.length != 2 || Long.parseLong(parts[0]) != end) {
+          return null;
+        }
+        offsets.add(end);
+        end += Long.parseLong(parts[1]);
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+
+    if (end > processedFile.length()) {
+      return null;
+    }
+
+    long[] result = new long[offsets.size() + 1];
+    for (int i = 0; i < offsets.size(); i++) {
+      result[i] = offsets.get(i);
+    }
+    result[offsets.size()] = end;
+    return result;
+  }
+}
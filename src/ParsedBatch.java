@@ -0,0 +1,63 @@
+package logpp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The result of parsing a LineBatch: processed lines for each year-month, and counts for logging.
+// The compress stage turns the lines into gzip members.
+public class ParsedBatch {
+  long sequence;
+
+  String fileName;
+
+  // Target (month file or spill file) -> processed lines.
+  Map<String, StringBuilder> lines = new HashMap<>();
+
+  // Target -> the lines as bytes, kept for a FusedAggregator if there is one.
+  Map<String, byte[]> encoded = new HashMap<>();
+
+  // Target -> the lines as a complete gzip member.
+  Map<String, byte[]> compressed = new HashMap<>();
+
+  // Target, or year-month if not written -> parsed lines.
+  Map<String, long[]> outputLines = new HashMap<>();
+
+  // Total successful lines.
+  long totalLines = 0;
+
+  // Total consumed bytes.
+  long totalBytes = 0;
+
+  // Total lines where parsing failed.
+  long failedLines = 0;
+
+  // Total lines ignored because it was openURL.
+  long openUrlIgnores = 0;
+
+  // Number of lines where input was malformatted, skipping.
+  long malformedSkips = 0;
+
+  ParsedBatch(LineBatch batch) {
+    this.sequence = batch.sequence;
+    this.fileName = batch.fileName;
+    this.totalBytes = batch.bytes;
+  }
+
+  long[] countFor(String key) {
+    long[] count = this.outputLines.get(key);
+    if (count == null) {
+      count = new long[1];
+      this.outputLines.put(key, count);
+    }
+    return count;
+  }
+
+  StringBuilder linesFor(String target) {
+    StringBuilder builder = this.lines.get(target);
+    if (builder == null) {
+      builder = new StringBuilder();
+      this.lines.put(target, builder);
+    }
+    return builder;
+  }
+}
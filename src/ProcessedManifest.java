@@ -0,0 +1,188 @@
+package logpp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Record of the input log files that have been processed, kept in the processed directory.
+// Lets the preprocess stage skip input files that haven't changed since they were processed, without opening them.
+// One line per input file, tab-separated:
+//   name, size, modified time, gzip CRC32, gzip size, lines, and the outputs it had lines for as "name=count,..."
+// Outputs are month files like "2015-01" and spill files like "2015-01.spill-from-201502". Lines that weren't written
+// anywhere are counted against the month file. The lines are all of the lines read from the input last time, whether or
+// not they were written then, including ones that didn't parse. If a log grows, the lines after those are the new ones.
+public class ProcessedManifest {
+  public static final String FILENAME = "preprocess-manifest.tsv";
+
+  private File file;
+
+  // Input file name -> entry.
+  private Map<String, Entry> entries = new TreeMap<>();
+
+  static class Entry {
+    String name;
+    long size;
+    long modified;
+    long crc;
+    long isize;
+    long lines;
+
+    // Output, without the extension -> lines.
+    Map<String, Long> outputs = new TreeMap<>();
+
+    boolean sameFile(Entry other) {
+      return this.name.equals(other.name) &&
+             this.size == other.size &&
+             this.modified == other.modified &&
+             this.crc == other.crc &&
+             this.isize == other.isize;
+    }
+  }
+
+  public ProcessedManifest(File processedDirectory) throws IOException {
+    this.file = new File(processedDirectory, FILENAME);
+
+    if (this.file.exists()) {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), StandardCharsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 7) {
+          System.err.format("WARNING: Ignoring bad line in %s: %s\n", this.file.getPath(), line);
+          continue;
+        }
+
+        Entry entry = new Entry();
+        entry.name = fields[0];
+        entry.size = Long.parseLong(fields[1]);
+        entry.modified = Long.parseLong(fields[2]);
+        entry.crc = Long.parseLong(fields[3]);
+        entry.isize = Long.parseLong(fields[4]);
+        entry.lines = Long.parseLong(fields[5]);
+
+        if (!fields[6].isEmpty()) {
+          for (String output : fields[6].split(",")) {
+            String[] outputCount = output.split("=");
+            entry.outputs.put(outputCount[0], Long.parseLong(outputCount[1]));
+          }
+        }
+
+        this.entries.put(entry.name, entry);
+      }
+      reader.close();
+    }
+  }
+
+  // Has this input file already been processed, and are all of the files it went into still there?
+  // If a month file has been removed to re-process it, every input that contributed to it has to be read again.
+  public boolean isDone(File inputFile, File processedDirectory) throws IOException {
+    Entry previous = this.entries.get(inputFile.getName());
+    if (previous == null || !previous.sameFile(describe(inputFile))) {
+      return false;
+    }
+
+    for (String output : previous.outputs.keySet()) {
+      if (Formats.processedFiles(processedDirectory, output).isEmpty()) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  // Year-months that the input file had lines for last time it was processed, even if it has changed since.
+  public Set<String> getPreviousMonths(File inputFile) {
+    Set<String> result = new HashSet<>();
+    Entry previous = this.entries.get(inputFile.getName());
+    if (previous != null) {
+      for (String output : previous.outputs.keySet()) {
+        // Spill files start with the year-month too.
+        result.add(output.substring(0, 7));
+      }
+    }
+    return result;
+  }
+
+  // Lines read from the input file last time it was processed, or 0 if it hasn't been.
+  public long getPreviousLines(File inputFile) {
+    Entry previous = this.entries.get(inputFile.getName());
+    return previous == null ? 0 : previous.lines;
+  }
+
+  // Was the input file processed before and has it changed since, e.g. by lines being added to it?
+  public boolean hasChanged(File inputFile) throws IOException {
+    Entry previous = this.entries.get(inputFile.getName());
+    return previous != null && !previous.sameFile(describe(inputFile));
+  }
+
+  // Record that the input file has been processed, with the number of lines read from it and in each output.
+  public void record(File inputFile, long lines, Map<String, Long> outputs) throws IOException {
+    Entry entry = describe(inputFile);
+    entry.lines = lines;
+    entry.outputs.putAll(outputs);
+    this.entries.put(entry.name, entry);
+  }
+
+  // Write to a temporary file and rename, so a failed write doesn't lose the old one.
+  public void save() throws IOException {
+    File temporary = new File(this.file.getPath() + ".tmp");
+
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8));
+    for (Entry entry : this.entries.values()) {
+      StringBuilder outputs = new StringBuilder();
+      for (Map.Entry<String, Long> output : entry.outputs.entrySet()) {
+        if (outputs.length() > 0) {
+          outputs.append(",");
+        }
+        outputs.append(output.getKey()).append("=").append(output.getValue());
+      }
+
+      writer.write(String.format("%s\t%d\t%d\t%d\t%d\t%d\t%s\n", entry.name, entry.size, entry.modified, entry.crc, entry.isize, entry.lines, outputs));
+    }
+    writer.close();
+
+    if (!temporary.renameTo(this.file)) {
+      throw new IOException("Can't rename " + temporary.getPath() + " to " + this.file.getPath());
+    }
+  }
+
+  // Size, modified time and checksum of an input file.
+  // The checksum is the CRC32 and size from the gzip trailer, so only the last 8 bytes are read.
+  private static Entry describe(File inputFile) throws IOException {
+    Entry entry = new Entry();
+    entry.name = inputFile.getName();
+    entry.size = inputFile.length();
+    entry.modified = inputFile.lastModified();
+
+    if (entry.size >= 8) {
+      try (RandomAccessFile raf = new RandomAccessFile(inputFile, "r")) {
+        byte[] trailer = new byte[8];
+        raf.seek(entry.size - 8);
+        raf.readFully(trailer);
+        entry.crc = littleEndianInt(trailer, 0);
+        entry.isize = littleEndianInt(trailer, 4);
+      }
+    }
+
+    return entry;
+  }
+
+  private static long littleEndianInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFFL) |
+           (bytes[offset + 1] & 0xFFL) << 8 |
+           (bytes[offset + 2] & 0xFFL) << 16 |
+           (bytes[offset + 3] & 0xFFL) << 24;
+  }
+}
@@ -0,0 +1,282 @@
+package logpp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+// Reads the records in a processed file, in either format, see Formats.
+public abstract class ProcessedReader {
+  // Threads that inflate gzip members ahead of the readers, shared by all of them. 1 to read each file in order.
+  static final int INFLATE_THREADS = Integer.getInteger("logpp.inflateThreads", Runtime.getRuntime().availableProcessors());
+
+  // Most members inflated ahead of each reader. They're outside the Aggregator's memory budget, and every month that's
+  // running has its own, so not many. The reader is usually the slower side anyway.
+  static final int MEMBERS_AHEAD = 4;
+
+  private static ExecutorService inflatePool = null;
+
+  // Point the record at the next line. False when there are no more.
+  public abstract boolean next(ProcessedRecord record) throws IOException;
+
+  public abstract void close() throws IOException;
+
+  // Read the file from the offset, which must be the end of an earlier write: a gzip member or a columnar block.
+  // Lines with the wrong number of fields are skipped, and reported if asked.
+  public static ProcessedReader open(File file, long offset, boolean reportErrors) throws IOException {
+    if (file.getName().endsWith(Formats.COLUMNAR_EXTENSION)) {
+      return new ColumnarProcessedReader(new DataInputStream(new BufferedInputStream(openAt(file, offset), 131072)));
+    }
+
+    // If the file has an index, its members can be inflated side by side.
+    long[] members = INFLATE_THREADS > 1 ? MemberIndex.read(file) : null;
+    if (members != null) {
+      return new TextProcessedReader(new ByteLineReader(new MemberInputStream(file, members, offset), 131072), reportErrors);
+    }
+
+    return new TextProcessedReader(new ByteLineReader(new GZIPInputStream(openAt(file, offset), 131072), 131072), reportErrors);
+  }
+
+  // Read processed lines from a stream, as they're made.
+  public static ProcessedReader open(InputStream lines) {
+    return new TextProcessedReader(new ByteLineReader(lines, 131072), true);
+  }
+
+  static FileInputStream openAt(File file, long offset) throws IOException {
+    FileInputStream input = new FileInputStream(file);
+    input.getChannel().position(offset);
+    return input;
+  }
+
+  // Made the first time it's needed. Daemon threads, so they don't keep the program running.
+  static synchronized ExecutorService inflatePool() {
+    if (inflatePool == null) {
+      inflatePool = Executors.newFixedThreadPool(INFLATE_THREADS, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "inflate");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return inflatePool;
+  }
+}
+
+// The bytes of a gzip file with a MemberIndex. Members are inflated on the shared pool, a few ahead of the reader, and
+// handed over in order. Each one ends with a whole line, so they go end to end.
+// The index covers the whole file, as processed files are never added to. Anything after the indexed members, from some
+// other tool, is inflated in order at the end.
+class MemberInputStream extends InputStream {
+  private File file;
+  private FileChannel channel;
+  private long[] members;
+
+  // Next member to start inflating.
+  private int nextMember = 0;
+
+  // Where reading in order starts, after the indexed members.
+  private long restOffset;
+  private InputStream rest = null;
+
+  private ArrayDeque<Future<byte[]>> ahead = new ArrayDeque<>();
+
+  // What's being read. Valid data is [position, limit).
+  private byte[] current = new byte[0];
+  private int position = 0;
+  private int limit = 0;
+
+  MemberInputStream(File file, long[] members, long offset) throws IOException {
+    this.file = file;
+    this.members = members;
+
+    // Start at the member at the offset, or read in order from it if it's past the indexed members.
+    // Anywhere else is part way through a member, which can't be read from.
+    if (offset >= members[members.length - 1]) {
+      this.nextMember = members.length - 1;
+      this.restOffset = offset;
+    } else {
+      this.nextMember = Arrays.binarySearch(members, offset);
+      if (this.nextMember < 0) {
+        throw new IOException(String.format("Offset %d in %s isn't the start of a gzip member", offset, file.getPath()));
+      }
+      this.restOffset = members[members.length - 1];
+    }
+
+    this.channel = new FileInputStream(file).getChannel();
+    this.fill();
+  }
+
+  public int read() throws IOException {
+    byte[] one = new byte[1];
+    return this.read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+  }
+
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    while (this.position == this.limit) {
+      if (!this.next()) {
+        return -1;
+      }
+    }
+
+    int count = Math.min(length, this.limit - this.position);
+    System.arraycopy(this.current, this.position, buffer, offset, count);
+    this.position += count;
+    return count;
+  }
+
+  public void close() throws IOException {
+    for (Future<byte[]> future : this.ahead) {
+      future.cancel(false);
+    }
+    this.ahead.clear();
+
+    if (this.rest != null) {
+      this.rest.close();
+    }
+    this.channel.close();
+  }
+
+  // Move on to the next member, or the next bit of the rest. False at the end.
+  private boolean next() throws IOException {
+    if (!this.ahead.isEmpty()) {
+      try {
+        this.current = this.ahead.poll().get();
+      } catch (InterruptedException | ExecutionException e) {
+        throw new IOException("Can't inflate " + this.file.getPath(), e);
+      }
+      this.position = 0;
+      this.limit = this.current.length;
+      this.fill();
+      return true;
+    }
+
+    if (this.rest == null) {
+      if (this.restOffset >= this.channel.size()) {
+        return false;
+      }
+      this.rest = new GZIPInputStream(ProcessedReader.openAt(this.file, this.restOffset), 131072);
+      this.current = new byte[131072];
+    }
+
+    int read = this.rest.read(this.current, 0, this.current.length);
+    if (read == -1) {
+      return false;
+    }
+    this.position = 0;
+    this.limit = read;
+    return true;
+  }
+
+  // Start inflating members until there are enough on the way.
+  private void fill() {
+    while (this.ahead.size() < ProcessedReader.MEMBERS_AHEAD && this.nextMember < this.members.length - 1) {
+      final long start = this.members[this.nextMember];
+      final long end = this.members[this.nextMember + 1];
+      this.nextMember++;
+
+      this.ahead.add(ProcessedReader.inflatePool().submit(new Callable<byte[]>() {
+        public byte[] call() throws IOException {
+          return inflate(start, end);
+        }
+      }));
+    }
+  }
+
+  private byte[] inflate(long start, long end) throws IOException {
+    byte[] compressed = new byte[(int) (end - start)];
+    ByteBuffer buffer = ByteBuffer.wrap(compressed);
+    while (buffer.hasRemaining()) {
+      if (this.channel.read(buffer, start + buffer.position()) == -1) {
+        throw new EOFException("Member at " + start + " is cut short in " + this.file.getPath());
+      }
+    }
+
+    // The last four bytes of a member are its length inflated, little-endian.
+    int n = compressed.length;
+    int size = (compressed[n - 4] & 0xff) | (compressed[n - 3] & 0xff) << 8 | (compressed[n - 2] & 0xff) << 16 | (compressed[n - 1] & 0xff) << 24;
+
+    byte[] result = new byte[size];
+    try (DataInputStream input = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(compressed), 65536))) {
+      input.readFully(result);
+    }
+    return result;
+  }
+}
+
+// Gzipped TSV lines.
+class TextProcessedReader extends ProcessedReader {
+  private ByteLineReader input;
+  private boolean reportErrors;
+
+  TextProcessedReader(ByteLineReader input, boolean reportErrors) {
+    this.input = input;
+    this.reportErrors = reportErrors;
+  }
+
+  public boolean next(ProcessedRecord record) throws IOException {
+    while (this.input.next()) {
+      // Line is [date, doi, code, full-domain, subdomains, domain, path].
+      // Nothing is split or decoded here, strategies take the fields they need from the record.
+      if (record.set(this.input.getBuffer(), this.input.getLineStart(), this.input.getLineEnd())) {
+        return true;
+      }
+
+      if (this.reportErrors) {
+        System.err.format("Error: Ignoring line with %d parts: %s\n", record.countFields(), record.toString());
+      }
+    }
+    return false;
+  }
+
+  public void close() throws IOException {
+    this.input.close();
+  }
+}
+
+// Blocks of columns. Every row was a good line when it was written.
+class ColumnarProcessedReader extends ProcessedReader {
+  private DataInputStream input;
+  private Inflater inflater = new Inflater(true);
+
+  private ColumnarBlock block = null;
+  private int row = 0;
+
+  ColumnarProcessedReader(DataInputStream input) {
+    this.input = input;
+  }
+
+  public boolean next(ProcessedRecord record) throws IOException {
+    while (this.block == null || this.row == this.block.rows) {
+      this.block = ColumnarBlock.read(this.input, this.inflater);
+      this.row = 0;
+      if (this.block == null) {
+        return false;
+      }
+    }
+
+    record.set(this.block, this.row++);
+    return true;
+  }
+
+  public void close() throws IOException {
+    this.inflater.end();
+    this.input.close();
+  }
+}
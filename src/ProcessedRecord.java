@@ -0,0 +1,127 @@
+package logpp;
+
+import java.nio.charset.StandardCharsets;
+
+// One line of a processed file, which is [date, doi, code, full-domain, subdomains, domain, path] separated by tabs.
+// A re-usable view onto the raw bytes of the line, so nothing is allocated per line. Fields are ByteSlices that are
+// only valid until the next line. Strategies only pay for decoding the fields they use, if they decode them at all.
+// Or a view onto a row of a ColumnarBlock, where fields are only filled in, and their columns decoded, when asked for.
+public class ProcessedRecord {
+  public static final int FIELDS = 7;
+
+  private ByteSlice[] fields = new ByteSlice[FIELDS];
+
+  private byte[] bytes;
+  private int start;
+  private int end;
+
+  // The block and row, or null for a line.
+  private ColumnarBlock block = null;
+  private int row;
+
+  public ProcessedRecord() {
+    for (int i = 0; i < FIELDS; i++) {
+      this.fields[i] = new ByteSlice();
+    }
+  }
+
+  // Point at the line in bytes [start, end). False if it doesn't have the right number of fields.
+  public boolean set(byte[] bytes, int start, int end) {
+    this.block = null;
+    this.bytes = bytes;
+    this.start = start;
+    this.end = end;
+
+    int field = 0;
+    int fieldStart = start;
+    for (int i = start; i < end; i++) {
+      if (bytes[i] == '\t') {
+        if (field == FIELDS - 1) {
+          return false;
+        }
+        this.fields[field++].set(bytes, fieldStart, i - fieldStart);
+        fieldStart = i + 1;
+      }
+    }
+
+    if (field != FIELDS - 1) {
+      return false;
+    }
+    this.fields[field].set(bytes, fieldStart, end - fieldStart);
+    return true;
+  }
+
+  // Point at a row of a columnar block.
+  void set(ColumnarBlock block, int row) {
+    this.block = block;
+    this.row = row;
+  }
+
+  // Number of fields on the line, for error messages.
+  public int countFields() {
+    if (this.block != null) {
+      return FIELDS;
+    }
+
+    int count = 1;
+    for (int i = this.start; i < this.end; i++) {
+      if (this.bytes[i] == '\t') {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // "YYYY-MM-DD"
+  public ByteSlice date() {
+    return this.field(0);
+  }
+
+  public ByteSlice doi() {
+    return this.field(1);
+  }
+
+  public ByteSlice code() {
+    return this.field(2);
+  }
+
+  public ByteSlice fullDomain() {
+    return this.field(3);
+  }
+
+  // Everything in the full domain before the domain, empty if there isn't any.
+  public ByteSlice subdomains() {
+    return this.field(4);
+  }
+
+  public ByteSlice domain() {
+    return this.field(5);
+  }
+
+  public ByteSlice path() {
+    return this.field(6);
+  }
+
+  private ByteSlice field(int field) {
+    if (this.block != null) {
+      this.block.field(field, this.row, this.fields[field]);
+    }
+    return this.fields[field];
+  }
+
+  // The whole line, decoded.
+  public String toString() {
+    if (this.block != null) {
+      StringBuilder result = new StringBuilder();
+      for (int i = 0; i < FIELDS; i++) {
+        if (i > 0) {
+          result.append('\t');
+        }
+        result.append(this.field(i).toString());
+      }
+      return result.toString();
+    }
+
+    return new String(this.bytes, this.start, this.end - this.start, StandardCharsets.UTF_8);
+  }
+}
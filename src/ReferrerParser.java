@@ -0,0 +1,429 @@
+package logpp;
+
+import logpp.etld.ETLD;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Parse referrer strings into [code, whole-domain, subdomains, domain, path].
+// Referrers are very repetitive, so results are kept in a bounded LRU cache.
+// Well-formed URLs and the usual junk are handled by a single-pass tokenizer that gives the same answers as java.net.URL.
+// Anything it isn't sure about goes to the original java.net.URL implementation.
+// Stateful (cache and stats). One per thread.
+public class ReferrerParser {
+  // How many referrers to remember.
+  private static final int CACHE_SIZE = Integer.getInteger("logpp.referrerCacheSize", 10000);
+
+  private static final String[][] PREFIX_PAIRS = new String[][] {
+    // Found with with capital 'R' and 'C' in the wild.
+    new String[] {"app:/readcube.swf", "weird://readcube.special"},
+
+    // Don't know where this comes from. Looks like generic SWF file.
+    // https://en.wikipedia.org/wiki/Adobe_SWC_file
+    new String[] {"app:/library.swf", "weird://unknown.special"},
+
+    // Page number?
+    // E.g."app:/p822.swf"
+    new String[] {"app:/p", "weird://unknown.special"}
+  };
+
+  // Schemes that java.net.URL has handlers for, other than the ones we tokenize ourselves.
+  // Their paths are up to the handler, so leave them to java.net.URL. It also skips a "url:" prefix.
+  private static final String[] OTHER_HANDLED_SCHEMES = new String[] {"jar", "mailto", "netdoc", "jrt", "url"};
+
+  // Shared between all threads.
+  private ETLD etld = ETLD.getInstance();
+
+  // Raw referrer -> parsed. Access-ordered, so the eldest entry is the least recently used.
+  private Map<String, String[]> cache = new LinkedHashMap<String, String[]>(CACHE_SIZE * 4 / 3 + 1, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+      return this.size() > CACHE_SIZE;
+    }
+  };
+
+  private long cacheHits = 0;
+  private long cacheMisses = 0;
+
+  // Misses that the tokenizer couldn't handle.
+  private long slowPaths = 0;
+
+  // Parse referrer string into [code, whole-domain, subdomains, domain, path]
+  // See Formats for code definitions.
+  // Always return, sometimes empty string for domain.
+  // The array is shared with the cache, so don't modify it.
+  public String[] parse(String referrer) {
+    String[] result = this.cache.get(referrer);
+    if (result != null) {
+      this.cacheHits++;
+      return result;
+    }
+
+    this.cacheMisses++;
+
+    String[] codeHostPath = this.tokenize(referrer);
+    if (codeHostPath == null) {
+      this.slowPaths++;
+      codeHostPath = this.parseWithUrl(referrer);
+    }
+
+    result = this.withDomainParts(codeHostPath[0], codeHostPath[1], codeHostPath[2]);
+    this.cache.put(referrer, result);
+    return result;
+  }
+
+  public long getCacheHits() {
+    return this.cacheHits;
+  }
+
+  public long getCacheMisses() {
+    return this.cacheMisses;
+  }
+
+  public long getSlowPaths() {
+    return this.slowPaths;
+  }
+
+  public String getStats() {
+    return formatStats(this.cacheHits, this.cacheMisses, this.slowPaths);
+  }
+
+  // Stats for a number of parsers together, e.g. all the threads working on a month.
+  public static String getStats(Collection<ReferrerParser> parsers) {
+    long hits = 0;
+    long misses = 0;
+    long slowPaths = 0;
+    for (ReferrerParser parser : parsers) {
+      hits += parser.cacheHits;
+      misses += parser.cacheMisses;
+      slowPaths += parser.slowPaths;
+    }
+    return formatStats(hits, misses, slowPaths);
+  }
+
+  private static String formatStats(long hits, long misses, long slowPaths) {
+    long total = hits + misses;
+    return String.format("referrer cache hits: %d, misses: %d (%.1f%% hit rate), slow path: %d",
+      hits, misses, total == 0 ? 0.0 : 100.0 * hits / total, slowPaths);
+  }
+
+  // Return code, host, subdomain, domain, path.
+  private String[] withDomainParts(String code, String host, String path) {
+    // Referrers like: "http:///reload/10.1007/BF02821190" and "http:///" constitute valid URLs,
+    // giving empty domains. Ensure that under no circumstances we return an empty string.
+    if (host.length() == 0) {
+      host = Formats.UNKNOWN_DOMAIN;
+      code = Formats.CODE_UNKNOWN;
+    }
+
+    String[] domainParts = this.etld.getParts(host);
+
+    return new String[] {code,
+                         host.toLowerCase(),
+                         domainParts[0].toLowerCase(),
+                         domainParts[1].toLowerCase(),
+                         path};
+  }
+
+  // Single pass over the referrer to find [code, host, path].
+  // Return null if it's something that should be left to java.net.URL.
+  private String[] tokenize(String referrer) {
+    // Most common is empty string.
+    if (referrer.length() <= 1) {
+      return new String[] {Formats.CODE_NO_INFO, Formats.UNKNOWN_DOMAIN, ""};
+    }
+
+    // Line terminators change the meaning of the regular expressions that the heuristics were written with.
+    for (int i = 0; i < referrer.length(); i++) {
+      char c = referrer.charAt(i);
+      if (c == '\r' || c == '\n' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+        return null;
+      }
+    }
+
+    // First some preprocessing heuristics which have to be done first.
+
+    // e.g. "Referer: http://www.zetesis.it/people/parisia/".
+    // (Official spelling of referrer is wrong)
+    if (referrer.startsWith("Referer:")) {
+      referrer = removeAll(referrer, "Referer:");
+    } else if (referrer.startsWith("REFERER:")) {
+      // e.g. "REFERER: http://archaeology.about.com/gi/o.htm"
+      referrer = removeAll(referrer, "REFERER:");
+    }
+
+    // Weird prefixes crop up annoyingly often. Especially feedspot.
+    // e.g. "Feedspotbot: http://www.feedspot.com"
+    int http = referrer.indexOf("http://");
+    int https = referrer.indexOf("https://");
+    int url = (http < 0) ? https : (https < 0 ? http : Math.min(http, https));
+    if (url > 0) {
+      referrer = referrer.substring(url);
+    }
+
+    // Catch these mappings before we build the host.
+    for (String[] prefixPair : PREFIX_PAIRS) {
+      if (referrer.startsWith(prefixPair[0])) {
+        referrer = prefixPair[1];
+      }
+    }
+
+    // java.net.URL trims whitespace. Leave that to it.
+    if (referrer.isEmpty() || referrer.charAt(0) <= ' ' || referrer.charAt(referrer.length() - 1) <= ' ') {
+      return null;
+    }
+
+    String scheme = scheme(referrer);
+
+    if (scheme != null) {
+      String[] hostPath = null;
+      if (referrer.startsWith("://", scheme.length())) {
+        hostPath = hostAndPath(referrer, scheme.length() + 3);
+      }
+
+      switch (scheme.toLowerCase()) {
+        case "http":
+          return hostPath == null ? null : new String[] {Formats.CODE_HTTP, hostPath[0], hostPath[1]};
+        case "https":
+          return hostPath == null ? null : new String[] {Formats.CODE_HTTPS, hostPath[0], hostPath[1]};
+        case "ftp":
+          // Yep.
+          return hostPath == null ? null : new String[] {Formats.CODE_FTP, hostPath[0], hostPath[1]};
+        case "file":
+          return hostPath == null ? null : new String[] {Formats.CODE_FILE, Formats.LOCAL_DOMAIN, hostPath[1]};
+      }
+
+      for (String handled : OTHER_HANDLED_SCHEMES) {
+        if (scheme.equalsIgnoreCase(handled)) {
+          return null;
+        }
+      }
+    }
+
+    // Not something java.net.URL understands. Includes "weird://", introduced by PREFIX_PAIRS, as there's no handler for it.
+    // It's not a valid URL but it could be a valid domain without a scheme, e.g. "ask.com".
+    // But first some well known exceptions (which might otherwise squash into a URL if we put "http://" in front).
+    if (referrer.equals("about:blank")) {
+      return new String[] {Formats.CODE_NO_INFO, Formats.LOCAL_DOMAIN, ""};
+    } else if (referrer.length() >= 3 && referrer.charAt(0) >= 'A' && referrer.charAt(0) <= 'Z' && referrer.charAt(1) == ':' && referrer.charAt(2) == '\\') {
+      // Some Windows drive.
+      return new String[] {Formats.CODE_FILE, Formats.LOCAL_DOMAIN, ""};
+    } else if (referrer.startsWith("mhtml:")) {
+      // MIME HTML, Internet Explorer saved page. Count as local file.
+      return new String[] {Formats.CODE_FILE, Formats.LOCAL_DOMAIN, ""};
+    } else if (referrer.contains("dlvr.it")) {
+      // e.g. "dlvrId=bcf15c60aa2d9e4f737603e82da64730; expires=Sat, 16-Feb-2013 21:24:04 GMT; path=/; domain=dlvr.it"
+      return new String[] {Formats.CODE_UNKNOWN, "dlvr.it", ""};
+    } else if (referrer.contains("bit.ly")) {
+      // e.g. "_bit=50f10b43-00008-07b21-401cf10a;domain=.bit.ly;expires=Thu Jul 11 07:05:39 2013;path=/; HttpOnly"
+      return new String[] {Formats.CODE_UNKNOWN, "bit.ly", ""};
+    } else if (referrer.startsWith("javascript:")) {
+      // e.g. "javascript:expandCollapse('infoBlockID', true);"
+      return new String[] {Formats.CODE_UNKNOWN, Formats.UNKNOWN_DOMAIN, ""};
+    }
+
+    // If it sticking http in front of it makes it a workable URL, use that.
+    String[] hostPath = hostAndPath("http://" + referrer, 7);
+    return hostPath == null ? null : new String[] {Formats.CODE_HTTP, hostPath[0], hostPath[1]};
+  }
+
+  // The scheme, as java.net.URL would find it, or null if there isn't one.
+  private static String scheme(String referrer) {
+    for (int i = 0; i < referrer.length(); i++) {
+      char c = referrer.charAt(i);
+      if (c == ':') {
+        return i > 0 ? referrer.substring(0, i) : null;
+      }
+
+      boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+                      (i > 0 && ((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.'));
+      if (!valid) {
+        return null;
+      }
+    }
+
+    return null;
+  }
+
+  // [host, path] for the URL that has its authority starting at `start`.
+  // Return null for anything unusual: user info, IPv6, odd characters, ports that aren't numbers, paths with dot segments.
+  private static String[] hostAndPath(String url, int start) {
+    // Query and fragment end the path.
+    int limit = url.length();
+    for (int i = start; i < url.length(); i++) {
+      char c = url.charAt(i);
+      if (c == '?' || c == '#') {
+        limit = i;
+        break;
+      }
+    }
+
+    // Four slashes is a UNC name, which has its own rules.
+    if (start + 1 < limit && url.charAt(start) == '/' && url.charAt(start + 1) == '/') {
+      return null;
+    }
+
+    int hostEnd = start;
+    int portStart = -1;
+    while (hostEnd < limit) {
+      char c = url.charAt(hostEnd);
+      if (c == '/') {
+        break;
+      } else if (c == ':' && portStart < 0) {
+        portStart = hostEnd + 1;
+      } else if (portStart >= 0) {
+        if (c < '0' || c > '9' || hostEnd - portStart >= 9) {
+          return null;
+        }
+      } else if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                   c == '.' || c == '-' || c == '_' || c >= 0x80)) {
+        return null;
+      }
+      hostEnd++;
+    }
+
+    String path = url.substring(hostEnd, limit);
+    if (path.contains("/.")) {
+      return null;
+    }
+
+    String host = url.substring(start, portStart >= 0 ? portStart - 1 : hostEnd);
+    return new String[] {host, path};
+  }
+
+  // Remove every occurrence of `prefix` and any spaces that follow it.
+  private static String removeAll(String input, String prefix) {
+    StringBuilder result = new StringBuilder(input.length());
+    int from = 0;
+    int found;
+    while ((found = input.indexOf(prefix, from)) >= 0) {
+      result.append(input, from, found);
+      from = found + prefix.length();
+      while (from < input.length() && input.charAt(from) == ' ') {
+        from++;
+      }
+    }
+    result.append(input, from, input.length());
+    return result.toString();
+  }
+
+  // The original java.net.URL-based parser. Returns [code, host, path].
+  // Handles everything, but slowly and with exceptions for malformed referrers.
+  private String[] parseWithUrl(String referrer) {
+    String code = Formats.CODE_NO_INFO;
+
+    // If there isn't one, use a placeholder.
+    String host = Formats.UNKNOWN_DOMAIN;
+
+    // Path mostly empty.
+    String path = "";
+
+    // Most common is empty string.
+    if (referrer.length() > 1) {
+      try {
+        // First some preprocessing heuristics which have to be done first.
+
+        // e.g. "Referer: http://www.zetesis.it/people/parisia/".
+        // (Official spelling of referrer is wrong)
+        if (referrer.startsWith("Referer:")) {
+          referrer = referrer.replaceAll("Referer: *", "");
+        } else if (referrer.startsWith("REFERER:")) {
+          // e.g. "REFERER: http://archaeology.about.com/gi/o.htm"
+          referrer = referrer.replaceAll("REFERER: *", "");
+        }
+
+        // Weird prefixes crop up annoyingly often. Especially feedspot.
+        // e.g. "Feedspotbot: http://www.feedspot.com"
+        if (referrer.matches("^.*?https?://.*$")) {
+          referrer = referrer.replaceAll("^.*?(https?://.*)$", "$1");
+        }
+
+        // Catch these mappings before we build the host.
+        for (String[] prefixPair : PREFIX_PAIRS) {
+          if (referrer.startsWith(prefixPair[0])) {
+            referrer = prefixPair[1];
+          }
+        }
+
+        // Next most common is a well-formed URL.
+        URL url = new URL(referrer);
+        host = url.getHost();
+        String protocol = url.getProtocol();
+        path = url.getPath();
+
+        // In order of likelihood. All of these have been observed!
+        // https://docs.oracle.com/javase/8/docs/technotes/guides/language/strings-switch.html
+        switch (protocol) {
+          case "http":
+            code = Formats.CODE_HTTP;
+            break;
+          case "https":
+            code = Formats.CODE_HTTPS;
+            break;
+          case "ftp":
+            // Yep.
+            code = Formats.CODE_FTP;
+            break;
+          case "file":
+            code = Formats.CODE_FILE;
+            host = Formats.LOCAL_DOMAIN;
+            break;
+          case "weird":
+            // Can be introduced by PREFIX_PAIRS.
+            code = Formats.CODE_WEIRD;
+            break;
+          default:
+            // We got a valid URL but don't know what the protocol is.
+            // Not safe to supply the host because we don't know it's meaningful.
+            System.out.println("Unrecognised referrer protocol: " + url.getProtocol());
+            System.out.println(referrer);
+            code = Formats.CODE_UNKNOWN;
+            host = Formats.UNKNOWN_DOMAIN;
+        }
+      } catch (MalformedURLException exception) {
+        // It's not a valid URL but it could be a valid domain without a scheme, e.g. "ask.com". In this case, try to build a URL with it.
+        // But first some well known exceptions (which might otherwise squash into a URL if we put "http://" in front).
+        if (referrer.equals("about:blank")) {
+            code = Formats.CODE_NO_INFO;
+            host = Formats.LOCAL_DOMAIN;
+          } else if (referrer.matches("^[A-Z]:\\\\.*$")) {
+            // Some Windows drive.
+            code = Formats.CODE_FILE;
+            host = Formats.LOCAL_DOMAIN;
+          } else if (referrer.startsWith("mhtml:")) {
+            // MIME HTML, Internet Explorer saved page. Count as local file.
+            code = Formats.CODE_FILE;
+            host = Formats.LOCAL_DOMAIN;
+          } else if (referrer.contains("dlvr.it")) {
+            // e.g. "dlvrId=bcf15c60aa2d9e4f737603e82da64730; expires=Sat, 16-Feb-2013 21:24:04 GMT; path=/; domain=dlvr.it"
+            code = Formats.CODE_UNKNOWN;
+            host = "dlvr.it";
+          } else if (referrer.contains("bit.ly")) {
+            // e.g. "_bit=50f10b43-00008-07b21-401cf10a;domain=.bit.ly;expires=Thu Jul 11 07:05:39 2013;path=/; HttpOnly"
+            code = Formats.CODE_UNKNOWN;
+            host = "bit.ly";
+          } else if (referrer.startsWith("javascript:")) {
+            // e.g. "javascript:expandCollapse('infoBlockID', true);"
+            code = Formats.CODE_UNKNOWN;
+            host = Formats.UNKNOWN_DOMAIN;
+          } else {
+            try {
+              // If it sticking http in front of it makes it a workable URL, use that.
+              URL url = new URL("http://" + referrer);
+              code = Formats.CODE_HTTP;
+              host = url.getHost();
+              path = url.getPath();
+            } catch (MalformedURLException innerException) {
+              // If we're here there's not much hope!
+              System.out.println("ERROR " + innerException.toString());
+              System.out.println(referrer);
+          }
+        }
+      }
+    }
+
+    return new String[] {code, host, path};
+  }
+}
@@ -0,0 +1,161 @@
+package logpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// Count distinct values for String -> String, e.g. domain -> date -> distinct DOIs, with a HyperLogLog for each.
+// Like Counter2d, but sketches are merged rather than counts added. Spilled runs and checkpoints are SpilledRuns of
+// "key\tkey2\tsketch" lines.
+public class SketchCounter {
+  // Rough bytes per key and per second-level entry, not counting the sketch.
+  private static final long KEY_BYTES = 150;
+  private static final long ENTRY_BYTES = 100;
+
+  private int precision;
+
+  private SortedMap<String, SortedMap<String, HyperLogLog>> sketches = new TreeMap<>();
+
+  // For the memory estimate.
+  private long memory = 0;
+
+  private SpilledRuns<HyperLogLog> runs = new SpilledRuns<>(new SketchCodec(), true);
+
+  // Called for each key, in order, with all of its sketches.
+  public interface Visitor extends SpilledRuns.Visitor<HyperLogLog> {
+    void visit(String key, SortedMap<String, HyperLogLog> sketches) throws IOException;
+  }
+
+  public SketchCounter(int precision) {
+    this.precision = precision;
+  }
+
+  // Add the hash of a value to the sketch for (key, key2).
+  public void add(String key, String key2, long hash) {
+    SortedMap<String, HyperLogLog> second = this.sketches.get(key);
+    if (second == null) {
+      second = new TreeMap<>();
+      this.sketches.put(key, second);
+      this.memory += KEY_BYTES + key.length() * 2;
+    }
+
+    HyperLogLog sketch = second.get(key2);
+    if (sketch == null) {
+      sketch = new HyperLogLog(this.precision);
+      second.put(key2, sketch);
+      this.memory += ENTRY_BYTES + sketch.memoryEstimate();
+    }
+
+    long before = sketch.memoryEstimate();
+    sketch.add(hash);
+    this.memory += sketch.memoryEstimate() - before;
+  }
+
+  // Very approximate number of bytes used by the sketches in memory.
+  public long memoryEstimate() {
+    return this.memory;
+  }
+
+  // Write the sketches in memory to a run on disk and forget them.
+  public void spill() throws IOException {
+    if (this.sketches.isEmpty()) {
+      return;
+    }
+
+    this.runs.spill(new MemoryCursor(this.sketches));
+    this.sketches = new TreeMap<>();
+    this.memory = 0;
+  }
+
+  // Start from the sketches in a checkpoint saved by an earlier run. They're merged in when written.
+  public void resume(File checkpoint) {
+    this.runs.resume(checkpoint);
+  }
+
+  // Save all of the sketches to a checkpoint when they're written, including those resumed from.
+  public void checkpointTo(File checkpoint) {
+    this.runs.checkpointTo(checkpoint);
+  }
+
+  // Visit each key in order with all of its sketches, merging in any that were spilled. The runs are deleted afterwards.
+  public void forEachKey(Visitor visitor) throws IOException {
+    this.runs.merge(new MemoryCursor(this.sketches), visitor);
+  }
+
+  // Write CSV Chunks: the key, then "key2,estimate,sketch" lines, then a blank line.
+  // The sketches are there so that they can be merged with others later, e.g. over months.
+  public void writeChunks(final Writer writer) throws IOException {
+    this.forEachKey(new Visitor() {
+      public void visit(String key, SortedMap<String, HyperLogLog> sketches) throws IOException {
+        writer.write(key);
+        writer.write("\n");
+
+        for (SortedMap.Entry<String, HyperLogLog> entry : sketches.entrySet()) {
+          writer.write(entry.getKey());
+          writer.write(",");
+          writer.write(Long.toString(entry.getValue().estimate()));
+          writer.write(",");
+          writer.write(entry.getValue().toString());
+          writer.write("\n");
+        }
+
+        writer.write("\n");
+      }
+    });
+  }
+
+  private static class SketchCodec implements SpilledRuns.Codec<HyperLogLog> {
+    public String format(HyperLogLog sketch) {
+      return sketch.toString();
+    }
+
+    public HyperLogLog parse(String text) {
+      return HyperLogLog.parse(text);
+    }
+
+    public HyperLogLog merge(HyperLogLog a, HyperLogLog b) {
+      a.merge(b);
+      return a;
+    }
+  }
+
+  private static class MemoryCursor implements SpilledRuns.Cursor<HyperLogLog> {
+    private Iterator<SortedMap.Entry<String, SortedMap<String, HyperLogLog>>> keys;
+    private Iterator<SortedMap.Entry<String, HyperLogLog>> second = null;
+    private String key;
+    private SortedMap.Entry<String, HyperLogLog> entry;
+
+    MemoryCursor(SortedMap<String, SortedMap<String, HyperLogLog>> sketches) {
+      this.keys = sketches.entrySet().iterator();
+    }
+
+    public boolean next() {
+      while (this.second == null || !this.second.hasNext()) {
+        if (!this.keys.hasNext()) {
+          return false;
+        }
+        SortedMap.Entry<String, SortedMap<String, HyperLogLog>> keyEntry = this.keys.next();
+        this.key = keyEntry.getKey();
+        this.second = keyEntry.getValue().entrySet().iterator();
+      }
+
+      this.entry = this.second.next();
+      return true;
+    }
+
+    public String key() {
+      return this.key;
+    }
+
+    public String key2() {
+      return this.entry.getKey();
+    }
+
+    public HyperLogLog value() {
+      return this.entry.getValue();
+    }
+  }
+}
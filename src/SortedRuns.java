@@ -0,0 +1,97 @@
+package logpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.SortedMap;
+
+// Counts of (key, key2) that have been spilled to disk to save memory.
+// Each run is a file of "key\tkey2\tcount" lines, sorted by key then key2, see SpilledRuns. Counts for the same
+// (key, key2) are added up when the runs are merged back together, along with whatever is still in memory, and
+// checkpoints are the same format gzipped.
+public class SortedRuns {
+  private SpilledRuns<Integer> runs = new SpilledRuns<>(new CountCodec(), true);
+
+  // A sorted sequence of (key, key2, count).
+  public interface Cursor {
+    // Move to the next one. False at the end.
+    boolean next() throws IOException;
+
+    String key();
+    String key2();
+    int count();
+  }
+
+  // Called for each key, in order, with all of its counts.
+  public interface Visitor extends SpilledRuns.Visitor<Integer> {
+    void visit(String key, SortedMap<String, Integer> counts) throws IOException;
+  }
+
+  // Is there nothing to merge with what's in memory, and nowhere to save it? If so the merge can be skipped.
+  public boolean isEmpty() {
+    return this.runs.isEmpty();
+  }
+
+  // Start from the counts in a checkpoint written by an earlier merge.
+  public void resume(File checkpoint) {
+    this.runs.resume(checkpoint);
+  }
+
+  // Save all of the counts to a checkpoint when they're merged.
+  public void checkpointTo(File checkpoint) {
+    this.runs.checkpointTo(checkpoint);
+  }
+
+  // Write a new run from a cursor, which must be sorted.
+  public void spill(Cursor cursor) throws IOException {
+    this.runs.spill(new CountCursor(cursor));
+  }
+
+  // Merge all of the runs with the counts in memory, adding up counts for the same (key, key2).
+  // The runs are deleted afterwards. The checkpoint that was resumed from isn't.
+  public void merge(Cursor memory, Visitor visitor) throws IOException {
+    this.runs.merge(new CountCursor(memory), visitor);
+  }
+
+  // Throw away all runs.
+  public void delete() {
+    this.runs.delete();
+  }
+
+  private static class CountCodec implements SpilledRuns.Codec<Integer> {
+    public String format(Integer count) {
+      return count.toString();
+    }
+
+    public Integer parse(String text) {
+      return Integer.parseInt(text);
+    }
+
+    public Integer merge(Integer a, Integer b) {
+      return a + b;
+    }
+  }
+
+  private static class CountCursor implements SpilledRuns.Cursor<Integer> {
+    private Cursor cursor;
+
+    CountCursor(Cursor cursor) {
+      this.cursor = cursor;
+    }
+
+    public boolean next() throws IOException {
+      return this.cursor.next();
+    }
+
+    public String key() {
+      return this.cursor.key();
+    }
+
+    public String key2() {
+      return this.cursor.key2();
+    }
+
+    public Integer value() {
+      return this.cursor.count();
+    }
+  }
+}
@@ -0,0 +1,311 @@
+package logpp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The most common values in a stream, in fixed space, by Space-Saving (Metwally, Agrawal and El Abbadi).
+// There are `capacity` counters. A value that hasn't got one takes over the smallest, and that count becomes its error.
+// So any value seen more than total / capacity times has a counter, and for each counter
+//   count - error <= times seen <= count
+// A value without a counter was seen at most `floor` times.
+// Summaries can be merged, e.g. months into all time, with the same guarantees (Agarwal et al, Mergeable Summaries).
+public class SpaceSaving {
+  // Biggest count first, then by value.
+  private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+    public int compare(Entry a, Entry b) {
+      return a.count != b.count ? Long.compare(b.count, a.count) : a.key.compareTo(b.key);
+    }
+  };
+
+  private int capacity;
+  private long total;
+  private long floor;
+
+  // Counters, biggest count first.
+  private Entry[] entries = new Entry[4];
+  private int size = 0;
+
+  // Counters by hash of their value, open addressing. Capacity is a power of two and at least twice the size.
+  private Entry[] table = new Entry[8];
+
+  private long keyChars = 0;
+
+  public SpaceSaving(int capacity) {
+    this(capacity, 0, 0);
+  }
+
+  // Start a summary that's being read back, see `put`.
+  public SpaceSaving(int capacity, long total, long floor) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException(String.format("Capacity %d is too small", capacity));
+    }
+    this.capacity = capacity;
+    this.total = total;
+    this.floor = floor;
+  }
+
+  // Count a value.
+  public void offer(ByteSlice value) {
+    long hash = DOICounter.hash(value.getBytes(), value.getOffset(), value.length());
+    this.total++;
+
+    Entry entry = this.find(hash);
+    if (entry == null) {
+      if (this.size < this.capacity) {
+        entry = new Entry(hash, value.toString(), 0, 0);
+        this.append(entry);
+      } else {
+        // Take over the smallest counter. The value that had it can't have been seen more often than that.
+        entry = this.entries[this.size - 1];
+        this.floor = Math.max(this.floor, entry.count);
+        this.remove(entry);
+
+        this.keyChars -= entry.key.length();
+        entry.hash = hash;
+        entry.key = value.toString();
+        entry.error = entry.count;
+        this.keyChars += entry.key.length();
+
+        this.insert(entry);
+      }
+    }
+
+    this.increment(entry);
+  }
+
+  // Add a counter read back from a file. They must come biggest first, as they're written.
+  public void put(String key, long count, long error) {
+    if (this.size > 0 && count > this.entries[this.size - 1].count) {
+      throw new IllegalArgumentException(String.format("Count %d for %s is out of order", count, key));
+    }
+
+    if (this.size == this.capacity) {
+      this.floor = Math.max(this.floor, count);
+      return;
+    }
+
+    this.append(new Entry(hash(key), key, count, error));
+  }
+
+  // Merge another summary into this one. A value missing from either could have been seen up to its floor times, so
+  // that's added to both the count and the error. Then only the biggest `capacity` counters are kept.
+  public void merge(SpaceSaving other) {
+    Map<String, Entry> combined = new HashMap<>();
+
+    for (int i = 0; i < this.size; i++) {
+      Entry entry = this.entries[i];
+      combined.put(entry.key, new Entry(entry.hash, entry.key, entry.count + other.floor, entry.error + other.floor));
+    }
+
+    for (int i = 0; i < other.size; i++) {
+      Entry entry = other.entries[i];
+      Entry existing = combined.get(entry.key);
+      if (existing != null) {
+        existing.count += entry.count - other.floor;
+        existing.error += entry.error - other.floor;
+      } else {
+        combined.put(entry.key, new Entry(entry.hash, entry.key, entry.count + this.floor, entry.error + this.floor));
+      }
+    }
+
+    List<Entry> sorted = new ArrayList<>(combined.values());
+    Collections.sort(sorted, ORDER);
+
+    this.total += other.total;
+    this.floor += other.floor;
+    if (sorted.size() > this.capacity) {
+      this.floor = Math.max(this.floor, sorted.get(this.capacity).count);
+    }
+
+    this.entries = new Entry[4];
+    this.table = new Entry[8];
+    this.size = 0;
+    this.keyChars = 0;
+    for (int i = 0; i < sorted.size() && i < this.capacity; i++) {
+      this.append(sorted.get(i));
+    }
+  }
+
+  // Put counters with the same count in order of value. They're otherwise in the order the values came in, which depends
+  // on how the lines were split up, e.g. into buckets or by incremental runs.
+  public void sortTies() {
+    Arrays.sort(this.entries, 0, this.size, ORDER);
+    for (int i = 0; i < this.size; i++) {
+      this.entries[i].position = i;
+    }
+  }
+
+  // Number of values counted.
+  public long total() {
+    return this.total;
+  }
+
+  // Most times a value without a counter could have been seen.
+  public long floor() {
+    return this.floor;
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  // The counters, biggest first.
+  public String key(int i) {
+    return this.entries[i].key;
+  }
+
+  public long count(int i) {
+    return this.entries[i].count;
+  }
+
+  public long error(int i) {
+    return this.entries[i].error;
+  }
+
+  // Very approximate number of bytes used.
+  public long memoryEstimate() {
+    return 64 + (this.entries.length + this.table.length) * 8L + this.size * 64L + this.keyChars * 2;
+  }
+
+  // As a line for a spilled run or checkpoint: capacity, total, floor, then count, error and value for each counter,
+  // separated by tabs.
+  public String toString() {
+    StringBuilder result = new StringBuilder();
+    result.append(this.capacity).append('\t').append(this.total).append('\t').append(this.floor);
+    for (int i = 0; i < this.size; i++) {
+      Entry entry = this.entries[i];
+      result.append('\t').append(entry.count).append('\t').append(entry.error).append('\t').append(entry.key);
+    }
+    return result.toString();
+  }
+
+  // Read a summary written by `toString`.
+  public static SpaceSaving parse(String text) {
+    String[] fields = text.split("\t", -1);
+    if (fields.length < 3 || (fields.length - 3) % 3 != 0) {
+      throw new IllegalArgumentException(String.format("Can't read summary %s", text));
+    }
+
+    SpaceSaving summary = new SpaceSaving(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+    for (int i = 3; i < fields.length; i += 3) {
+      summary.put(fields[i + 2], Long.parseLong(fields[i]), Long.parseLong(fields[i + 1]));
+    }
+    return summary;
+  }
+
+  // Add one to the counter, keeping them in order: swap it with the first one that has the same count, then it can go
+  // up without passing any.
+  private void increment(Entry entry) {
+    int low = 0;
+    int high = entry.position;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (this.entries[middle].count > entry.count) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+
+    Entry first = this.entries[low];
+    this.entries[entry.position] = first;
+    first.position = entry.position;
+    this.entries[low] = entry;
+    entry.position = low;
+
+    entry.count++;
+  }
+
+  // Add a counter at the end, which must be in order.
+  private void append(Entry entry) {
+    if (this.size == this.entries.length) {
+      this.entries = Arrays.copyOf(this.entries, this.entries.length * 2);
+    }
+    entry.position = this.size;
+    this.entries[this.size++] = entry;
+    this.keyChars += entry.key.length();
+    this.insert(entry);
+
+    if (this.size * 2 > this.table.length) {
+      Entry[] old = this.table;
+      this.table = new Entry[old.length * 2];
+      for (Entry e : old) {
+        if (e != null) {
+          this.insert(e);
+        }
+      }
+    }
+  }
+
+  private int slot(long hash) {
+    return (int) (hash ^ (hash >>> 32)) & (this.table.length - 1);
+  }
+
+  private Entry find(long hash) {
+    int mask = this.table.length - 1;
+    for (int slot = this.slot(hash); this.table[slot] != null; slot = (slot + 1) & mask) {
+      if (this.table[slot].hash == hash) {
+        return this.table[slot];
+      }
+    }
+    return null;
+  }
+
+  private void insert(Entry entry) {
+    int mask = this.table.length - 1;
+    int slot = this.slot(entry.hash);
+    while (this.table[slot] != null) {
+      slot = (slot + 1) & mask;
+    }
+    this.table[slot] = entry;
+  }
+
+  // Take the counter out of the table, and move back any after it that would no longer be found.
+  private void remove(Entry entry) {
+    int mask = this.table.length - 1;
+    int slot = this.slot(entry.hash);
+    while (this.table[slot] != entry) {
+      slot = (slot + 1) & mask;
+    }
+    this.table[slot] = null;
+
+    for (int next = (slot + 1) & mask; this.table[next] != null; next = (next + 1) & mask) {
+      int home = this.slot(this.table[next].hash);
+      // Can it be found from its home slot without going through the gap?
+      boolean reachable = slot < next ? (home > slot && home <= next) : (home > slot || home <= next);
+      if (!reachable) {
+        this.table[slot] = this.table[next];
+        this.table[next] = null;
+        slot = next;
+      }
+    }
+  }
+
+  private static long hash(String key) {
+    byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+    return DOICounter.hash(bytes, 0, bytes.length);
+  }
+
+  private static class Entry {
+    long hash;
+    String key;
+    long count;
+    long error;
+
+    // Index in `entries`.
+    int position;
+
+    Entry(long hash, String key, long count, long error) {
+      this.hash = hash;
+      this.key = key;
+      this.count = count;
+      this.error = error;
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package logpp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Values for (key, key2) that have been spilled to disk to save memory, e.g. counts in SortedRuns, or sketches and
+// summaries in SketchCounter and TopCounter. The codec says how a value is written and read, and how two values for the
+// same (key, key2) are merged.
+// Each run is a file of "key\tkey2\tvalue" lines, sorted by key then key2. Without second-level keys key2 is always ""
+// and the lines are "key\tvalue". Keys can't contain tabs or newlines.
+// Runs are merged back together, along with whatever is still in memory, when the values are written out.
+// For incremental aggregation the same format, gzipped, is used for checkpoints: a checkpoint from an earlier run is
+// merged in like a run but never deleted, and everything that's merged can be saved as a new checkpoint.
+public class SpilledRuns<V> {
+  // Where runs go. Should be local disk.
+  static final File DIRECTORY = new File(System.getProperty("logpp.spillDirectory", System.getProperty("java.io.tmpdir")));
+
+  private Codec<V> codec;
+  private boolean hasKey2;
+
+  private List<File> runs = new ArrayList<>();
+
+  // Checkpoint to merge in, or null.
+  private File resumed = null;
+
+  // Where to save the merged values, or null.
+  private File checkpoint = null;
+
+  public interface Codec<V> {
+    String format(V value);
+    V parse(String text);
+
+    // Merge two values for the same (key, key2). Can return either of them, changed.
+    V merge(V a, V b);
+  }
+
+  // A sorted sequence of (key, key2, value).
+  public interface Cursor<V> {
+    // Move to the next one. False at the end.
+    boolean next() throws IOException;
+
+    String key();
+    String key2();
+    V value();
+  }
+
+  // Called for each key, in order, with all of its values by key2.
+  public interface Visitor<V> {
+    void visit(String key, SortedMap<String, V> values) throws IOException;
+  }
+
+  public SpilledRuns(Codec<V> codec, boolean hasKey2) {
+    this.codec = codec;
+    this.hasKey2 = hasKey2;
+  }
+
+  // Is there nothing to merge with what's in memory, and nowhere to save it? If so the merge can be skipped.
+  public boolean isEmpty() {
+    return this.runs.isEmpty() && this.resumed == null && this.checkpoint == null;
+  }
+
+  // Start from the values in a checkpoint written by an earlier merge.
+  public void resume(File checkpoint) {
+    this.resumed = checkpoint;
+  }
+
+  // Save all of the values to a checkpoint when they're merged.
+  public void checkpointTo(File checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  // Write a new run from a cursor, which must be sorted.
+  public void spill(Cursor<V> cursor) throws IOException {
+    File run = File.createTempFile("logpp-", ".run", DIRECTORY);
+    run.deleteOnExit();
+    this.runs.add(run);
+
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(run), StandardCharsets.UTF_8), 131072);
+    while (cursor.next()) {
+      this.writeLine(writer, cursor.key(), cursor.key2(), cursor.value());
+    }
+    writer.close();
+  }
+
+  // Merge all of the runs with the values in memory, merging values for the same (key, key2).
+  // The runs are deleted afterwards. The checkpoint that was resumed from isn't.
+  public void merge(Cursor<V> memory, Visitor<V> visitor) throws IOException {
+    PriorityQueue<Cursor<V>> queue = new PriorityQueue<>(this.runs.size() + 2, new Comparator<Cursor<V>>() {
+      public int compare(Cursor<V> a, Cursor<V> b) {
+        int comparison = a.key().compareTo(b.key());
+        return comparison != 0 ? comparison : a.key2().compareTo(b.key2());
+      }
+    });
+
+    List<RunCursor> readers = new ArrayList<>();
+    Writer checkpointWriter = null;
+
+    try {
+      for (File run : this.runs) {
+        readers.add(new RunCursor(new FileInputStream(run)));
+      }
+      if (this.resumed != null) {
+        readers.add(new RunCursor(new GZIPInputStream(new FileInputStream(this.resumed), 131072)));
+      }
+      if (this.checkpoint != null) {
+        checkpointWriter = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(this.checkpoint), 131072), StandardCharsets.UTF_8), 131072);
+      }
+
+      for (RunCursor reader : readers) {
+        if (reader.next()) {
+          queue.add(reader);
+        }
+      }
+      if (memory.next()) {
+        queue.add(memory);
+      }
+
+      String key = null;
+      SortedMap<String, V> values = new TreeMap<>();
+
+      while (!queue.isEmpty()) {
+        Cursor<V> cursor = queue.poll();
+
+        if (key != null && !key.equals(cursor.key())) {
+          this.visit(key, values, visitor, checkpointWriter);
+          values = new TreeMap<>();
+        }
+
+        key = cursor.key();
+        V value = values.get(cursor.key2());
+        values.put(cursor.key2(), value == null ? cursor.value() : this.codec.merge(value, cursor.value()));
+
+        if (cursor.next()) {
+          queue.add(cursor);
+        }
+      }
+
+      if (key != null) {
+        this.visit(key, values, visitor, checkpointWriter);
+      }
+    } finally {
+      for (RunCursor reader : readers) {
+        reader.close();
+      }
+      if (checkpointWriter != null) {
+        checkpointWriter.close();
+      }
+      this.delete();
+    }
+  }
+
+  private void visit(String key, SortedMap<String, V> values, Visitor<V> visitor, Writer checkpointWriter) throws IOException {
+    if (checkpointWriter != null) {
+      for (SortedMap.Entry<String, V> entry : values.entrySet()) {
+        this.writeLine(checkpointWriter, key, entry.getKey(), entry.getValue());
+      }
+    }
+
+    visitor.visit(key, values);
+  }
+
+  private void writeLine(Writer writer, String key, String key2, V value) throws IOException {
+    writer.write(key);
+    writer.write('\t');
+    if (this.hasKey2) {
+      writer.write(key2);
+      writer.write('\t');
+    }
+    writer.write(this.codec.format(value));
+    writer.write('\n');
+  }
+
+  // Throw away all runs.
+  public void delete() {
+    for (File run : this.runs) {
+      run.delete();
+    }
+    this.runs.clear();
+  }
+
+  private class RunCursor implements Cursor<V> {
+    private BufferedReader reader;
+    private String key;
+    private String key2 = "";
+    private V value;
+
+    RunCursor(InputStream input) throws IOException {
+      this.reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), 131072);
+    }
+
+    public boolean next() throws IOException {
+      String line = this.reader.readLine();
+      if (line == null) {
+        return false;
+      }
+
+      int tab1 = line.indexOf('\t');
+      int tab2 = tab1;
+      this.key = line.substring(0, tab1);
+      if (SpilledRuns.this.hasKey2) {
+        tab2 = line.indexOf('\t', tab1 + 1);
+        this.key2 = line.substring(tab1 + 1, tab2);
+      }
+      this.value = SpilledRuns.this.codec.parse(line.substring(tab2 + 1));
+      return true;
+    }
+
+    public String key() {
+      return this.key;
+    }
+
+    public String key2() {
+      return this.key2;
+    }
+
+    public V value() {
+      return this.value;
+    }
+
+    void close() throws IOException {
+      this.reader.close();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package logpp;
+
+import java.util.Arrays;
+
+// One String per distinct sequence of bytes, e.g. for a field that has the same few values over and over.
+// Looking up bytes that have been seen before doesn't allocate anything.
+public class SymbolTable {
+  private static final int INITIAL_CAPACITY = 256;
+
+  // Slot -> UTF-8 bytes, or null if empty. Capacity is always a power of two.
+  private byte[][] keys = new byte[INITIAL_CAPACITY][];
+
+  // Slot -> decoded String.
+  private String[] symbols = new String[INITIAL_CAPACITY];
+
+  private int size = 0;
+  private long keyBytes = 0;
+
+  public String get(ByteSlice slice) {
+    int slot = this.find(slice.getBytes(), slice.getOffset(), slice.length());
+
+    if (this.keys[slot] == null) {
+      this.keys[slot] = Arrays.copyOfRange(slice.getBytes(), slice.getOffset(), slice.getOffset() + slice.length());
+      this.symbols[slot] = slice.toString();
+      this.size++;
+      this.keyBytes += slice.length();
+
+      String symbol = this.symbols[slot];
+
+      // Keep the load factor under a half so probe sequences stay short.
+      if (this.size * 2 > this.keys.length) {
+        this.grow();
+      }
+
+      return symbol;
+    }
+
+    return this.symbols[slot];
+  }
+
+  // Very approximate number of bytes used, counting the Strings.
+  public long memoryEstimate() {
+    return this.keys.length * 16L + this.size * 80L + this.keyBytes * 2;
+  }
+
+  private int find(byte[] bytes, int offset, int length) {
+    int mask = this.keys.length - 1;
+    int hash = ByteSlice.hashCode(bytes, offset, length) * 0x9E3779B9;
+    int slot = (hash ^ (hash >>> 16)) & mask;
+
+    while (this.keys[slot] != null && !equal(this.keys[slot], bytes, offset, length)) {
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  private void grow() {
+    byte[][] oldKeys = this.keys;
+    String[] oldSymbols = this.symbols;
+
+    this.keys = new byte[oldKeys.length * 2][];
+    this.symbols = new String[oldSymbols.length * 2];
+
+    for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+      if (oldKeys[oldSlot] != null) {
+        int slot = this.find(oldKeys[oldSlot], 0, oldKeys[oldSlot].length);
+        this.keys[slot] = oldKeys[oldSlot];
+        this.symbols[slot] = oldSymbols[oldSlot];
+      }
+    }
+  }
+
+  static boolean equal(byte[] key, byte[] bytes, int offset, int length) {
+    if (key.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (key[i] != bytes[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,161 @@
+package logpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// The most common values for each key, e.g. the top DOIs per domain, with a SpaceSaving summary for each.
+// Like SketchCounter, summaries are merged when spilled runs and checkpoints are read back. Runs are SpilledRuns of
+// "key\tsummary" lines, without second-level keys.
+public class TopCounter {
+  // Rough bytes per key, not counting the summary.
+  private static final long KEY_BYTES = 150;
+
+  private int capacity;
+
+  private SortedMap<String, SpaceSaving> summaries = new TreeMap<>();
+
+  // For the memory estimate.
+  private long memory = 0;
+
+  private SpilledRuns<SpaceSaving> runs = new SpilledRuns<>(new SummaryCodec(), false);
+
+  // Called for each key, in order, with its summary.
+  public interface Visitor {
+    void visit(String key, SpaceSaving summary) throws IOException;
+  }
+
+  public TopCounter(int capacity) {
+    this.capacity = capacity;
+  }
+
+  public void add(String key, ByteSlice value) {
+    SpaceSaving summary = this.summaries.get(key);
+    if (summary == null) {
+      summary = new SpaceSaving(this.capacity);
+      this.summaries.put(key, summary);
+      this.memory += KEY_BYTES + key.length() * 2 + summary.memoryEstimate();
+    }
+
+    long before = summary.memoryEstimate();
+    summary.offer(value);
+    this.memory += summary.memoryEstimate() - before;
+  }
+
+  // Very approximate number of bytes used by the summaries in memory.
+  public long memoryEstimate() {
+    return this.memory;
+  }
+
+  // Write the summaries in memory to a run on disk and forget them.
+  public void spill() throws IOException {
+    if (this.summaries.isEmpty()) {
+      return;
+    }
+
+    this.runs.spill(new MemoryCursor(this.summaries));
+    this.summaries = new TreeMap<>();
+    this.memory = 0;
+  }
+
+  // Start from the summaries in a checkpoint saved by an earlier run. They're merged in when written.
+  public void resume(File checkpoint) {
+    this.runs.resume(checkpoint);
+  }
+
+  // Save all of the summaries to a checkpoint when they're written, including those resumed from.
+  public void checkpointTo(File checkpoint) {
+    this.runs.checkpointTo(checkpoint);
+  }
+
+  // Visit each key in order with its summary, merging in any that were spilled. The runs are deleted afterwards.
+  public void forEachKey(final Visitor visitor) throws IOException {
+    this.runs.merge(new MemoryCursor(this.summaries), new SpilledRuns.Visitor<SpaceSaving>() {
+      public void visit(String key, SortedMap<String, SpaceSaving> summaries) throws IOException {
+        visitor.visit(key, summaries.get(""));
+      }
+    });
+  }
+
+  // Write CSV Chunks, see `writeChunk`.
+  public void writeChunks(final Writer writer) throws IOException {
+    this.forEachKey(new Visitor() {
+      public void visit(String key, SpaceSaving summary) throws IOException {
+        writeChunk(writer, key, summary);
+      }
+    });
+  }
+
+  // A CSV Chunk for a summary: the key, then "total,floor", then "count,error,value" for each counter, biggest first and
+  // then by value, then a blank line. The value is last because it could have a comma in it.
+  public static void writeChunk(Writer writer, String key, SpaceSaving summary) throws IOException {
+    summary.sortTies();
+
+    writer.write(key);
+    writer.write("\n");
+    writer.write(Long.toString(summary.total()));
+    writer.write(",");
+    writer.write(Long.toString(summary.floor()));
+    writer.write("\n");
+
+    for (int i = 0; i < summary.size(); i++) {
+      writer.write(Long.toString(summary.count(i)));
+      writer.write(",");
+      writer.write(Long.toString(summary.error(i)));
+      writer.write(",");
+      writer.write(summary.key(i));
+      writer.write("\n");
+    }
+
+    writer.write("\n");
+  }
+
+  private static class SummaryCodec implements SpilledRuns.Codec<SpaceSaving> {
+    public String format(SpaceSaving summary) {
+      return summary.toString();
+    }
+
+    public SpaceSaving parse(String text) {
+      return SpaceSaving.parse(text);
+    }
+
+    public SpaceSaving merge(SpaceSaving a, SpaceSaving b) {
+      a.merge(b);
+      return a;
+    }
+  }
+
+  // The summaries in key order. There are no second-level keys.
+  private static class MemoryCursor implements SpilledRuns.Cursor<SpaceSaving> {
+    private Iterator<Map.Entry<String, SpaceSaving>> entries;
+    private Map.Entry<String, SpaceSaving> entry;
+
+    MemoryCursor(SortedMap<String, SpaceSaving> summaries) {
+      this.entries = summaries.entrySet().iterator();
+    }
+
+    public boolean next() {
+      if (!this.entries.hasNext()) {
+        return false;
+      }
+      this.entry = this.entries.next();
+      return true;
+    }
+
+    public String key() {
+      return this.entry.getKey();
+    }
+
+    public String key2() {
+      return "";
+    }
+
+    public SpaceSaving value() {
+      return this.entry.getValue();
+    }
+  }
+}
@@ -9,4 +9,9 @@ public class TruncateDay implements DateProjector {
   public String getName() {
     return "day";
   }
+
+  // Every day of the month.
+  public int daysPerMonth() {
+    return 31;
+  }
 }
\ No newline at end of file
@@ -9,4 +9,9 @@ public class TruncateMonth implements DateProjector {
   public String getName() {
     return "month";
   }
+
+  // Everything goes to the 1st.
+  public int daysPerMonth() {
+    return 1;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,116 @@
+package logpp.aggregatorstrategies;
+
+import logpp.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// Count referring type code per day, once, and roll the counts up when they're written into:
+//  - day-code and month-code, per code per day and per month
+//  - day-all and month-all, all lines per day. Every line has a code, so that's the total for each day over all codes.
+// The files are the same as when codes and all lines were counted separately, each by day and again by month.
+public class CodeRollupCSVAggregatorStrategy implements AggregatorStrategy {
+  // code -> date -> count
+  private DayCounter counter;
+
+  private long inputCount = 0;
+
+  public CodeRollupCSVAggregatorStrategy() {
+    this.reset();
+  }
+
+  public String toString() {
+    return String.format("CodeRollupCSVAggregatorStrategy, %d partitions", this.numPartitions());
+  }
+
+  // Only a handful of codes.
+  public int numPartitions() {
+    return 1;
+  }
+
+  public String fileName(String date) {
+    return String.format("%s-code-rollup", date);
+  }
+
+  public String[] fileNames(String date) {
+    return new String[] {
+      String.format("%s-day-code.csv-chunks", date),
+      String.format("%s-month-code.csv-chunks", date),
+      String.format("%s-day-all.csv-chunks", date),
+      String.format("%s-month-all.csv-chunks", date)
+    };
+  }
+
+  public void reset() {
+    this.counter = new DayCounter(31);
+    this.inputCount = 0;
+  }
+
+  public AggregatorStrategy newInstance() {
+    return new CodeRollupCSVAggregatorStrategy();
+  }
+
+  public int partition(ProcessedRecord record) {
+    return 0;
+  }
+
+  public void feed(ProcessedRecord record) {
+    this.counter.inc(record.code(), record.date());
+
+    inputCount ++;
+    if (inputCount % 1000000 == 0) {
+      System.out.format("Processed %d lines.. \n", this.inputCount);
+    }
+  }
+
+  public void write(Writer[] writers) throws IOException {
+    final Writer dayCode = writers[0];
+    final Writer monthCode = writers[1];
+
+    // Date -> lines.
+    final SortedMap<String, Integer> all = new TreeMap<>();
+
+    this.counter.forEachKey(new SortedRuns.Visitor() {
+      public void visit(String code, SortedMap<String, Integer> counts) throws IOException {
+        if (dayCode != null) {
+          new ChunkWriter(dayCode).visit(code, counts);
+        }
+        if (monthCode != null) {
+          new ChunkWriter(monthCode, true).visit(code, counts);
+        }
+
+        for (SortedMap.Entry<String, Integer> entry : counts.entrySet()) {
+          Integer count = all.get(entry.getKey());
+          all.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+        }
+      }
+    });
+
+    // The "month" all file has always been counted by day too, so it's the same as the day one.
+    for (int i = 2; i < 4; i++) {
+      if (writers[i] != null) {
+        for (SortedMap.Entry<String, Integer> entry : all.entrySet()) {
+          writers[i].write(entry.getKey());
+          writers[i].write(",");
+          writers[i].write(entry.getValue().toString());
+          writers[i].write("\n");
+        }
+      }
+    }
+  }
+
+  public boolean canCheckpoint() {
+    return true;
+  }
+
+  public void resume(File checkpoint) {
+    this.counter.resume(checkpoint);
+  }
+
+  public void checkpoint(File checkpoint) {
+    this.counter.checkpointTo(checkpoint);
+  }
+}
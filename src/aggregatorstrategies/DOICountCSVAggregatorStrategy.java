@@ -2,25 +2,27 @@ package logpp.aggregatorstrategies;
 
 import logpp.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Arrays;
 
 // Count DOI name per month.
 // Output as CSV Chunks
 public class DOICountCSVAggregatorStrategy implements AggregatorStrategy {
   long inputCount = 0;
 
-  // How to truncate dates.
-  private DateProjector dateProjector = new TruncateMonth();
-
   // If the DOI isn't resolved at least 5 time per month, don't bother.
   static Integer PER_MONTH_CUTOFF = 5;
 
-  // Map of Domain string => Date string => count.
-  HashMap<String, Map<String, Integer>> counter;
+  // Size in MB of a count-min sketch, for the whole month, used to skip DOIs that can't reach the cutoff.
+  // Costs an extra read of the month, but only DOIs that might be written take memory. 0, the default, turns it off.
+  static final int PREFILTER_MB = Integer.getInteger("logpp.doiPrefilter", 0);
+
+  // Use the prefilter, which is off when checkpointing.
+  boolean prefilter = PREFILTER_MB > 0;
+
+  // DOI => count for the month.
+  DOICounter counter;
 
   Partitioner partitioner;
 
@@ -32,6 +34,7 @@ public class DOICountCSVAggregatorStrategy implements AggregatorStrategy {
     return String.format("DomainAggregatorStrategy, %d partitions", this.numPartitions());
   }
 
+  // Partitions are only the unit of spilling. Small ones mean that a spill doesn't need much memory to sort its keys.
   public int numPartitions() {
     return 20;
   }
@@ -41,61 +44,82 @@ public class DOICountCSVAggregatorStrategy implements AggregatorStrategy {
   }
 
   public void reset() {
-    // In tests, it doesn't make any difference pre-dimensioning to either 1,000,000 or 10,000,000.
-    this.counter = new HashMap<String, Map<String, Integer>>();
+    this.counter = new DOICounter();
+    if (this.prefilter) {
+      this.counter.usePrefilter(PREFILTER_MB * 1048576L / this.numPartitions(), PER_MONTH_CUTOFF);
+    }
     this.partitioner = new Partitioner(this.numPartitions());
     this.inputCount = 0;
   }
 
-  public int partition(String[] line) {
+  public AggregatorStrategy newInstance() {
+    return new DOICountCSVAggregatorStrategy();
+  }
+
+  public int partition(ProcessedRecord record) {
     // Use DOI.
-    return this.partitioner.partition(line[1]);
+    return this.partitioner.partition(record.doi());
   } 
 
-  // line is [date, doi, code, full-domain, subdomains, domain]
-  public void feed(String[] line) {
-    String doi = line[1];
-    String date = line[0];
-
-    String projectedDate = this.dateProjector.project(date);
-
-    Map<String, Integer> dateCounter = this.counter.get(doi);
-    if (dateCounter == null) {
-      dateCounter = new HashMap<String, Integer>();
-      this.counter.put(doi, dateCounter);
-    }
-    dateCounter.put(projectedDate, dateCounter.getOrDefault(projectedDate, 0) + 1);
+  // Counted for the month, see DOICounter.
+  public void feed(ProcessedRecord record) {
+    this.counter.inc(record.doi(), record.date());
 
     inputCount ++;
     if (inputCount % 1000000 == 0) {
-      System.out.format("Processed %d lines. Frequency table size: %d. \n", this.inputCount, this.counter.size());
+      System.out.format("Processed %d lines. \n", this.inputCount);
     }
   }
 
-  public void write(Writer writer) throws IOException {
-    for (Map.Entry<String, Map<String, Integer>> doiEntry : this.counter.entrySet()) {
-      // If the total for this month for this DOI isn't over the threshold, don't write.
-      // Otherwise we get lots of single 'doi was resolved once on this date ever's.
-      Integer monthTotal = 0;
-      for (Map.Entry<String, Integer> dateEntry : doiEntry.getValue().entrySet()) {
-        monthTotal += dateEntry.getValue();
-      }
-
-      if (monthTotal < PER_MONTH_CUTOFF) {
-        continue;
-      }
+  public boolean wantsPrepass() {
+    return this.prefilter;
+  }
 
-      writer.write(doiEntry.getKey());
-      writer.write("\n");
+  public void prefeed(ProcessedRecord record) {
+    this.counter.sketch(record.doi());
+  }
 
-      for (Map.Entry<String, Integer> dateEntry : doiEntry.getValue().entrySet()) {
-        writer.write(dateEntry.getKey());
-        writer.write(",");
-        writer.write(dateEntry.getValue().toString());
-        writer.write("\n");
-      }
+  // If the total for this month for this DOI isn't over the threshold, don't write.
+  // Otherwise we get lots of single 'doi was resolved once on this date ever's.
+  public void write(Writer[] writers) throws IOException {
+    this.counter.writeChunks(writers[0], PER_MONTH_CUTOFF);
 
-      writer.write("\n");
+    if (this.prefilter) {
+      System.out.println(this.counter.getPrefilterStats());
     }
   }
+
+  // About a third of lines have a new DOI, at about 70 bytes each, and a line is about 15 bytes gzipped.
+  public double memoryPerInputByte() {
+    return 2.0;
+  }
+
+  // The prefilter sketches are split between the partitions, and they're all there for the whole month.
+  public long fixedMemory() {
+    return this.prefilter ? PREFILTER_MB * 1048576L : 0;
+  }
+
+  public long memoryEstimate() {
+    return this.counter.memoryEstimate();
+  }
+
+  public void spill() throws IOException {
+    this.counter.spill();
+  }
+
+  // The checkpoint has every DOI, as one that's under the cutoff so far can still reach it with later lines.
+  public boolean canCheckpoint() {
+    return true;
+  }
+
+  public void resume(File checkpoint) {
+    this.counter.resume(checkpoint);
+  }
+
+  // The prefilter only knows about the lines in this run, so it would drop DOIs that the checkpoint needs.
+  public void checkpoint(File checkpoint) {
+    this.prefilter = false;
+    this.reset();
+    this.counter.checkpointTo(checkpoint);
+  }
 }
@@ -0,0 +1,109 @@
+package logpp.aggregatorstrategies;
+
+import logpp.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+// Estimate the number of distinct domains that refer to each DOI, per month.
+// Output as CSV Chunks of "date,estimate,sketch", see SketchCounter. The sketches can be merged over months.
+public class DOIDistinctDomainAggregatorStrategy implements AggregatorStrategy {
+  // About 3% error. Hardly any DOIs have enough domains to need more than the sparse sketch.
+  static final int PRECISION = 10;
+
+  // DOI -> month -> distinct domains
+  private SketchCounter sketches;
+
+  // Only decode each DOI and month once. Months are written against the 1st, like TruncateMonth.
+  private SymbolTable symbols;
+  private ByteSlice month = new ByteSlice();
+  private String lastMonth = null;
+  private String monthDate = null;
+
+  private Partitioner partitioner;
+
+  private long inputCount = 0;
+
+  public DOIDistinctDomainAggregatorStrategy() {
+    this.reset();
+  }
+
+  public String toString() {
+    return String.format("DOIDistinctDomainAggregatorStrategy, %d partitions", this.numPartitions());
+  }
+
+  // Like DOICountCSVAggregatorStrategy, partitions are the unit of spilling.
+  public int numPartitions() {
+    return 20;
+  }
+
+  public String fileName(String date) {
+    return String.format("%s-month-doi-distinct-domain.csv-chunks", date);
+  }
+
+  public void reset() {
+    this.sketches = new SketchCounter(PRECISION);
+    this.symbols = new SymbolTable();
+    this.partitioner = new Partitioner(this.numPartitions());
+    this.inputCount = 0;
+  }
+
+  public AggregatorStrategy newInstance() {
+    return new DOIDistinctDomainAggregatorStrategy();
+  }
+
+  public int partition(ProcessedRecord record) {
+    return this.partitioner.partition(record.doi());
+  }
+
+  public void feed(ProcessedRecord record) {
+    String doi = this.symbols.get(record.doi());
+
+    ByteSlice date = record.date();
+    this.month.set(date.getBytes(), date.getOffset(), Math.min(7, date.length()));
+    String month = this.symbols.get(this.month);
+    if (!month.equals(this.lastMonth)) {
+      this.lastMonth = month;
+      this.monthDate = month + "-01";
+    }
+
+    this.sketches.add(doi, this.monthDate, HyperLogLog.hash(record.domain()));
+
+    inputCount ++;
+    if (inputCount % 1000000 == 0) {
+      System.out.format("Processed %d lines. \n", this.inputCount);
+    }
+  }
+
+  public void write(Writer[] writers) throws IOException {
+    this.sketches.writeChunks(writers[0]);
+  }
+
+  // About a third of lines have a new DOI, each with its String and tree entries as well as a small sketch.
+  public double memoryPerInputByte() {
+    return 8.0;
+  }
+
+  public long memoryEstimate() {
+    return this.sketches.memoryEstimate() + this.symbols.memoryEstimate();
+  }
+
+  public void spill() throws IOException {
+    this.sketches.spill();
+    this.symbols = new SymbolTable();
+  }
+
+  // Sketches merge, so the checkpoint is the sketches so far.
+  public boolean canCheckpoint() {
+    return true;
+  }
+
+  public void resume(File checkpoint) {
+    this.sketches.resume(checkpoint);
+  }
+
+  public void checkpoint(File checkpoint) {
+    this.sketches.checkpointTo(checkpoint);
+  }
+}
@@ -0,0 +1,105 @@
+package logpp.aggregatorstrategies;
+
+import logpp.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+// Estimate the number of distinct DOIs each referring domain sends traffic to, per day.
+// Output as CSV Chunks of "date,estimate,sketch", see SketchCounter. The sketches can be merged over days and months.
+public class DomainDistinctDOIAggregatorStrategy implements AggregatorStrategy {
+  // About 1.6% error, and 4KB for a domain-day with lots of DOIs. Most have a few, and are much smaller.
+  static final int PRECISION = 12;
+
+  // domain -> date -> distinct DOIs
+  private SketchCounter sketches;
+
+  // Domains and dates repeat a lot, so only decode each once.
+  private SymbolTable symbols;
+
+  private long inputCount = 0;
+
+  public DomainDistinctDOIAggregatorStrategy() {
+    this.reset();
+  }
+
+  public String toString() {
+    return String.format("DomainDistinctDOIAggregatorStrategy, %d partitions", this.numPartitions());
+  }
+
+  public int numPartitions() {
+    return 1;
+  }
+
+  public String fileName(String date) {
+    return String.format("%s-day-domain-distinct-doi.csv-chunks", date);
+  }
+
+  public void reset() {
+    this.sketches = new SketchCounter(PRECISION);
+    this.symbols = new SymbolTable();
+    this.inputCount = 0;
+  }
+
+  public AggregatorStrategy newInstance() {
+    return new DomainDistinctDOIAggregatorStrategy();
+  }
+
+  public int partition(ProcessedRecord record) {
+    return 0;
+  }
+
+  // Sketches are per domain.
+  public boolean splitsByDomain() {
+    return true;
+  }
+
+  public void feed(ProcessedRecord record) {
+    // No referrer. An empty header can't be told apart from the end of a chunk, and it isn't a domain anyway.
+    if (record.domain().length() == 0) {
+      return;
+    }
+
+    String domain = this.symbols.get(record.domain());
+    String date = this.symbols.get(record.date());
+
+    this.sketches.add(domain, date, HyperLogLog.hash(record.doi()));
+
+    inputCount ++;
+    if (inputCount % 1000000 == 0) {
+      System.out.format("Processed %d lines. \n", this.inputCount);
+    }
+  }
+
+  public void write(Writer[] writers) throws IOException {
+    this.sketches.writeChunks(writers[0]);
+  }
+
+  // A sketch for each new domain-day, which only gets big for the busy ones.
+  public double memoryPerInputByte() {
+    return 0.5;
+  }
+
+  public long memoryEstimate() {
+    return this.sketches.memoryEstimate() + this.symbols.memoryEstimate();
+  }
+
+  public void spill() throws IOException {
+    this.sketches.spill();
+    this.symbols = new SymbolTable();
+  }
+
+  // Sketches merge, so the checkpoint is the sketches so far.
+  public boolean canCheckpoint() {
+    return true;
+  }
+
+  public void resume(File checkpoint) {
+    this.sketches.resume(checkpoint);
+  }
+
+  public void checkpoint(File checkpoint) {
+    this.sketches.checkpointTo(checkpoint);
+  }
+}
@@ -0,0 +1,182 @@
+package logpp.aggregatorstrategies;
+
+import logpp.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// Count referring full domains per day, once, and roll the counts up when they're written into:
+//  - month-fulldomain, per full domain per month
+//  - day-domain and month-domain, per domain per day and per month
+// The files are the same as when domains by day, domains by month and full domains by month were counted separately,
+// which counted every line three times over.
+public class DomainRollupCSVAggregatorStrategy implements AggregatorStrategy {
+  // Between the full domain and the domain in a key. Sorts before anything else, so keys are in full domain order.
+  private static final byte SEPARATOR = 0;
+
+  // "full domain \0 domain" -> date -> count.
+  private DayCounter counter;
+
+  // Re-used to build keys.
+  private byte[] keyBuffer = new byte[256];
+  private ByteSlice key = new ByteSlice();
+
+  private long inputCount = 0;
+
+  public DomainRollupCSVAggregatorStrategy() {
+    this.reset();
+  }
+
+  public String toString() {
+    return String.format("DomainRollupCSVAggregatorStrategy, %d partitions", this.numPartitions());
+  }
+
+  // A row of day counts per full domain.
+  public int numPartitions() {
+    return 1;
+  }
+
+  public String fileName(String date) {
+    return String.format("%s-domain-rollup", date);
+  }
+
+  public String[] fileNames(String date) {
+    return new String[] {
+      String.format("%s-day-domain.csv-chunks", date),
+      String.format("%s-month-domain.csv-chunks", date),
+      String.format("%s-month-fulldomain.csv-chunks", date)
+    };
+  }
+
+  public void reset() {
+    this.counter = new DayCounter(31);
+    this.inputCount = 0;
+  }
+
+  public AggregatorStrategy newInstance() {
+    return new DomainRollupCSVAggregatorStrategy();
+  }
+
+  public int partition(ProcessedRecord record) {
+    return 0;
+  }
+
+  // Keys include the domain, and domains are added up from them.
+  public boolean splitsByDomain() {
+    return true;
+  }
+
+  public void feed(ProcessedRecord record) {
+    ByteSlice fullDomain = record.fullDomain();
+    ByteSlice domain = record.domain();
+
+    int length = fullDomain.length() + 1 + domain.length();
+    if (this.keyBuffer.length < length) {
+      this.keyBuffer = new byte[length * 2];
+    }
+
+    System.arraycopy(fullDomain.getBytes(), fullDomain.getOffset(), this.keyBuffer, 0, fullDomain.length());
+    this.keyBuffer[fullDomain.length()] = SEPARATOR;
+    System.arraycopy(domain.getBytes(), domain.getOffset(), this.keyBuffer, fullDomain.length() + 1, domain.length());
+    this.key.set(this.keyBuffer, 0, length);
+
+    this.counter.inc(this.key, record.date());
+
+    inputCount ++;
+    if (inputCount % 1000000 == 0) {
+      System.out.format("Processed %d lines. \n", this.inputCount);
+    }
+  }
+
+  // Full domains come out of the counter in order, so they're written as they go past. Domains are added up into
+  // another counter on the way, which is much smaller, and then written.
+  public void write(Writer[] writers) throws IOException {
+    RollupVisitor rollup = new RollupVisitor(writers[2]);
+    this.counter.forEachKey(rollup);
+    rollup.finish();
+
+    final Writer dayDomain = writers[0];
+    final Writer monthDomain = writers[1];
+    rollup.domains.forEachKey(new SortedRuns.Visitor() {
+      public void visit(String domain, SortedMap<String, Integer> counts) throws IOException {
+        if (dayDomain != null) {
+          new ChunkWriter(dayDomain).visit(domain, counts);
+        }
+        if (monthDomain != null) {
+          new ChunkWriter(monthDomain, true).visit(domain, counts);
+        }
+      }
+    });
+  }
+
+  // A full domain and its domain, with a row of counts, for the few new ones per hundred lines.
+  public double memoryPerInputByte() {
+    return 0.5;
+  }
+
+  public long memoryEstimate() {
+    return this.counter.memoryEstimate();
+  }
+
+  public void spill() throws IOException {
+    this.counter.spill();
+  }
+
+  // The counts by full domain and day are all there is, everything else is rolled up from them.
+  public boolean canCheckpoint() {
+    return true;
+  }
+
+  public void resume(File checkpoint) {
+    this.counter.resume(checkpoint);
+  }
+
+  public void checkpoint(File checkpoint) {
+    this.counter.checkpointTo(checkpoint);
+  }
+
+  // Writes full domain month counts, and adds up the counts for each domain.
+  private static class RollupVisitor implements SortedRuns.Visitor {
+    private ChunkWriter monthFullDomain;
+
+    DayCounter domains = new DayCounter(31);
+
+    // A full domain could turn up with more than one domain. It would be next to itself, so add up until it changes.
+    private String fullDomain = null;
+    private SortedMap<String, Integer> fullDomainCounts = new TreeMap<>();
+
+    RollupVisitor(Writer monthFullDomain) {
+      this.monthFullDomain = monthFullDomain == null ? null : new ChunkWriter(monthFullDomain, true);
+    }
+
+    public void visit(String key, SortedMap<String, Integer> counts) throws IOException {
+      int separator = key.indexOf(SEPARATOR);
+      String fullDomain = key.substring(0, separator);
+      String domain = key.substring(separator + 1);
+
+      if (this.fullDomain != null && !this.fullDomain.equals(fullDomain)) {
+        this.finish();
+      }
+      this.fullDomain = fullDomain;
+
+      for (SortedMap.Entry<String, Integer> entry : counts.entrySet()) {
+        Integer count = this.fullDomainCounts.get(entry.getKey());
+        this.fullDomainCounts.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+
+        this.domains.add(domain, entry.getKey(), entry.getValue());
+      }
+    }
+
+    // Write the full domain so far.
+    void finish() throws IOException {
+      if (this.fullDomain != null && this.monthFullDomain != null) {
+        this.monthFullDomain.visit(this.fullDomain, this.fullDomainCounts);
+      }
+      this.fullDomain = null;
+      this.fullDomainCounts = new TreeMap<>();
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package logpp.aggregatorstrategies;
+
+import logpp.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+// The DOIs each referring domain sends the most traffic to, per month, without counting every domain-DOI pair.
+// Output as CSV Chunks of "total,floor" then "count,error,doi", see TopCounter and SpaceSaving. Counts are upper bounds,
+// and count - error is a lower bound.
+public class DomainTopDOIAggregatorStrategy implements AggregatorStrategy {
+  // Counters per domain. Any DOI with more than 1/CAPACITY of a domain's traffic is in its list.
+  public static final int CAPACITY = Integer.getInteger("logpp.topDoisPerDomain", 1000);
+
+  // domain -> top DOIs
+  private TopCounter counter;
+
+  // Domains repeat a lot, so only decode each once.
+  private SymbolTable domains;
+
+  private long inputCount = 0;
+
+  public DomainTopDOIAggregatorStrategy() {
+    this.reset();
+  }
+
+  public String toString() {
+    return String.format("DomainTopDOIAggregatorStrategy, %d partitions", this.numPartitions());
+  }
+
+  public int numPartitions() {
+    return 1;
+  }
+
+  public String fileName(String date) {
+    return String.format("%s-month-domain-top-doi.csv-chunks", date);
+  }
+
+  public void reset() {
+    this.counter = new TopCounter(CAPACITY);
+    this.domains = new SymbolTable();
+    this.inputCount = 0;
+  }
+
+  public AggregatorStrategy newInstance() {
+    return new DomainTopDOIAggregatorStrategy();
+  }
+
+  public int partition(ProcessedRecord record) {
+    return 0;
+  }
+
+  // Summaries are per domain.
+  public boolean splitsByDomain() {
+    return true;
+  }
+
+  public void feed(ProcessedRecord record) {
+    // No referrer, see DomainDistinctDOIAggregatorStrategy.
+    if (record.domain().length() == 0) {
+      return;
+    }
+
+    this.counter.add(this.domains.get(record.domain()), record.doi());
+
+    inputCount ++;
+    if (inputCount % 1000000 == 0) {
+      System.out.format("Processed %d lines. \n", this.inputCount);
+    }
+  }
+
+  public void write(Writer[] writers) throws IOException {
+    this.counter.writeChunks(writers[0]);
+  }
+
+  // A counter and a DOI for most lines, until the busy domains fill up.
+  public double memoryPerInputByte() {
+    return 1.0;
+  }
+
+  public long memoryEstimate() {
+    return this.counter.memoryEstimate() + this.domains.memoryEstimate();
+  }
+
+  public void spill() throws IOException {
+    this.counter.spill();
+    this.domains = new SymbolTable();
+  }
+
+  // Summaries merge, so the checkpoint is the summaries so far. The result is within the same bounds as from one
+  // pass, but isn't always exactly the same.
+  public boolean canCheckpoint() {
+    return true;
+  }
+
+  public void resume(File checkpoint) {
+    this.counter.resume(checkpoint);
+  }
+
+  public void checkpoint(File checkpoint) {
+    this.counter.checkpointTo(checkpoint);
+  }
+}
@@ -3,20 +3,19 @@ package logpp.aggregatorstrategies;
 import logpp.*;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Arrays;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.SortedMap;
 
 // Group fulldomains by their domain.
 // Output as CSV Chunks, though only with one value per line. Header is domain, chunks are fulldomains.
 public class GroupedFullDomainsAggregatorStrategy implements AggregatorStrategy {
-  // domain -> full domains
-  private Map<String, Set<String>> groupedDomains;
+  // domain -> full domains. Only the keys of the second level matter, the counts are ignored.
+  private Counter2d groupedDomains;
+
+  // Domains and subdomains repeat a lot, so only decode each once.
+  private SymbolTable symbols;
 
   private Partitioner partitioner;
 
@@ -41,28 +40,31 @@ public class GroupedFullDomainsAggregatorStrategy implements AggregatorStrategy
   }
 
   public void reset() {
-    this.groupedDomains = new HashMap<>();
+    this.groupedDomains = new Counter2d();
+    this.symbols = new SymbolTable();
     this.inputCount = 0;
   }
 
-  // [date, doi, code, full-domain, subdomains, domain]
-  public int partition(String[] line) {
+  public AggregatorStrategy newInstance() {
+    return new GroupedFullDomainsAggregatorStrategy();
+  }
+
+  public int partition(ProcessedRecord record) {
     // Group by the domain
-    return this.partitioner.partition(line[5]);
+    return this.partitioner.partition(record.domain());
   } 
 
-  // line is [date, doi, code, full-domain, subdomain, domain]
-  public void feed(String[] line) {
-    String domain = line[5];
-    String fulldomain = line[4];
+  // Full domains are grouped by their domain.
+  public boolean splitsByDomain() {
+    return true;
+  }
 
-    Set<String> fulldomains = this.groupedDomains.get(domain);
-    if (fulldomains == null) {
-      fulldomains = new TreeSet<>();
-      this.groupedDomains.put(domain, fulldomains);
-    }
+  public void feed(ProcessedRecord record) {
+    String domain = this.symbols.get(record.domain());
+    String fulldomain = this.symbols.get(record.subdomains());
 
-    fulldomains.add(fulldomain);
+    // Only whether the pair was seen matters. Adding nothing avoids boxing counts.
+    this.groupedDomains.add(domain, fulldomain, 0);
 
     inputCount ++;
     if (inputCount % 1000000 == 0) {
@@ -70,25 +72,54 @@ public class GroupedFullDomainsAggregatorStrategy implements AggregatorStrategy
     }
   }
 
-  public void write(Writer writer) throws IOException {
-    for (Map.Entry<String, Set<String>> domainEntry : this.groupedDomains.entrySet()) {
-      String domain = domainEntry.getKey();
-      writer.write(domain);
-      writer.write("\n");
-
-      for (String fullDomain : domainEntry.getValue()) {
-        // If we got an empty string that's because the domain showed up on its own. If so, write it.
-        // Otherwise write the full domain, which means building it.
-        if (fullDomain.length() == 0) {
-          writer.write(domain);
-        } else {
-          writer.write(fullDomain + "." + domain);
+  public void write(Writer[] writers) throws IOException {
+    final Writer writer = writers[0];
+    this.groupedDomains.forEachKey(new SortedRuns.Visitor() {
+      public void visit(String domain, SortedMap<String, Integer> fullDomains) throws IOException {
+        writer.write(domain);
+        writer.write("\n");
+
+        for (String fullDomain : fullDomains.keySet()) {
+          // If we got an empty string that's because the domain showed up on its own. If so, write it.
+          // Otherwise write the full domain, which means building it.
+          if (fullDomain.length() == 0) {
+            writer.write(domain);
+          } else {
+            writer.write(fullDomain + "." + domain);
+          }
+
+          writer.write("\n");
         }
-        
+
         writer.write("\n");
       }
+    });
+  }
 
-      writer.write("\n");
-    }
+  // Tree entries and Strings for each new full domain.
+  public double memoryPerInputByte() {
+    return 0.5;
+  }
+
+  public long memoryEstimate() {
+    return this.groupedDomains.memoryEstimate() + this.symbols.memoryEstimate();
+  }
+
+  public void spill() throws IOException {
+    this.groupedDomains.spill();
+    this.symbols = new SymbolTable();
+  }
+
+  // The pairs seen so far. A pair that has been seen before is seen again, which makes no difference.
+  public boolean canCheckpoint() {
+    return true;
+  }
+
+  public void resume(File checkpoint) {
+    this.groupedDomains.resume(checkpoint);
+  }
+
+  public void checkpoint(File checkpoint) {
+    this.groupedDomains.checkpointTo(checkpoint);
   }
-}
\ No newline at end of file
+}
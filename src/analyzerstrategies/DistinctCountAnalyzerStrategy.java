@@ -0,0 +1,145 @@
+package logpp.analyzerstrategies;
+
+import logpp.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// Merge the distinct count sketches from every month, e.g. from DomainDistinctDOIAggregatorStrategy, without going
+// back to the processed files.
+// Output as CSV Chunks: the key, then "YYYY-MM,estimate" for each month it was seen in, then "all,estimate" for the
+// union of all of them, then a blank line.
+public class DistinctCountAnalyzerStrategy implements AnalyzerStrategy, ChunkParserCallback {
+  // Type of the aggregated files, e.g. "day-domain-distinct-doi".
+  private String inputType;
+  private String outputFileName;
+  private int numPartitions;
+
+  private Partitioner partitioner;
+
+  // Makes callbacks on this.
+  private ChunkParser chunkParser = new ChunkParser(this);
+
+  // key -> year-month -> sketch, for the keys in this partition.
+  private SortedMap<String, SortedMap<String, HyperLogLog>> collection;
+
+  // Sketches of the current chunk, or null if it's not in this partition.
+  private SortedMap<String, HyperLogLog> currentChunk;
+
+  private int currentPartitionNumber;
+
+  Writer outputFile;
+
+  public DistinctCountAnalyzerStrategy(String inputType, String outputFileName, int numPartitions) {
+    this.inputType = inputType;
+    this.outputFileName = outputFileName;
+    this.numPartitions = numPartitions;
+    this.partitioner = new Partitioner(numPartitions);
+  }
+
+  public String toString() {
+    return String.format("DistinctCountAnalyzerStrategy %s, %d partitions", this.inputType, this.numPartitions);
+  }
+
+  public void assignOutputFile(Writer writer) {
+    this.outputFile = writer;
+  }
+
+  public String fileName() {
+    return this.outputFileName;
+  }
+
+  public String getInputFileRegex() {
+    return String.format("\\d\\d\\d\\d-\\d\\d\\-%s.csv-chunks", this.inputType);
+  }
+
+  public int getNumPartitions() {
+    return this.numPartitions;
+  }
+
+  public void enterPartition(int partitionNumber) throws IOException {
+    System.out.format("Partition %d \n", partitionNumber);
+    this.write();
+    this.collection = new TreeMap<>();
+    this.currentPartitionNumber = partitionNumber;
+  }
+
+  public void feed(String line) {
+    this.chunkParser.feed(line);
+  }
+
+  public void finish() throws IOException {
+    this.write();
+    this.outputFile.flush();
+  }
+
+  private void write() throws IOException {
+    // First time round won't have one.
+    if (this.collection == null) {
+      return;
+    }
+
+    for (Map.Entry<String, SortedMap<String, HyperLogLog>> entry : this.collection.entrySet()) {
+      this.outputFile.write(entry.getKey());
+      this.outputFile.write("\n");
+
+      HyperLogLog all = null;
+      for (Map.Entry<String, HyperLogLog> month : entry.getValue().entrySet()) {
+        this.outputFile.write(month.getKey());
+        this.outputFile.write(",");
+        this.outputFile.write(Long.toString(month.getValue().estimate()));
+        this.outputFile.write("\n");
+
+        // The first month's sketch becomes the union, once it's been written.
+        if (all == null) {
+          all = month.getValue();
+        } else {
+          all.merge(month.getValue());
+        }
+      }
+
+      this.outputFile.write("all,");
+      this.outputFile.write(Long.toString(all.estimate()));
+      this.outputFile.write("\n\n");
+    }
+  }
+
+  // ChunkParserCallback
+  public void header(String name) {
+    if (this.partitioner.partition(name) != this.currentPartitionNumber) {
+      this.currentChunk = null;
+      return;
+    }
+
+    this.currentChunk = this.collection.get(name);
+    if (this.currentChunk == null) {
+      this.currentChunk = new TreeMap<>();
+      this.collection.put(name, this.currentChunk);
+    }
+  }
+
+  // ChunkParserCallback
+  // Line is "date,estimate,sketch".
+  public void line(String line) {
+    if (this.currentChunk == null) {
+      return;
+    }
+
+    String month = line.substring(0, 7);
+    HyperLogLog sketch = HyperLogLog.parse(line.substring(line.lastIndexOf(',') + 1));
+
+    HyperLogLog existing = this.currentChunk.get(month);
+    if (existing == null) {
+      this.currentChunk.put(month, sketch);
+    } else {
+      existing.merge(sketch);
+    }
+  }
+
+  public void dispose() {
+    this.collection = null;
+  }
+}
@@ -0,0 +1,132 @@
+package logpp.analyzerstrategies;
+
+import logpp.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// Merge the monthly top DOIs per domain from DomainTopDOIAggregatorStrategy into all-time top DOIs per domain.
+// Output as CSV Chunks in the same format: the domain, "total,floor", then "count,error,doi" lines, then a blank line.
+public class DomainTopDOIAnalyzerStrategy implements AnalyzerStrategy, ChunkParserCallback {
+  private int capacity;
+  private int numPartitions;
+
+  private Partitioner partitioner;
+
+  // Makes callbacks on this.
+  private ChunkParser chunkParser = new ChunkParser(this);
+
+  // domain -> monthly summaries, for the domains in this partition. They're merged when written.
+  private SortedMap<String, List<SpaceSaving>> collection;
+
+  // Summaries of the current chunk's domain, or null if it's not in this partition.
+  private List<SpaceSaving> currentDomain;
+
+  // The summary being read, or null before its "total,floor" line.
+  private SpaceSaving currentSummary;
+
+  private int currentPartitionNumber;
+
+  Writer outputFile;
+
+  public DomainTopDOIAnalyzerStrategy(int capacity, int numPartitions) {
+    this.capacity = capacity;
+    this.numPartitions = numPartitions;
+    this.partitioner = new Partitioner(numPartitions);
+  }
+
+  public String toString() {
+    return String.format("DomainTopDOIAnalyzerStrategy top %d, %d partitions", this.capacity, this.numPartitions);
+  }
+
+  public void assignOutputFile(Writer writer) {
+    this.outputFile = writer;
+  }
+
+  public String fileName() {
+    return "domain-top-doi.csv-chunks";
+  }
+
+  public String getInputFileRegex() {
+    return "\\d\\d\\d\\d-\\d\\d\\-month-domain-top-doi.csv-chunks";
+  }
+
+  public int getNumPartitions() {
+    return this.numPartitions;
+  }
+
+  public void enterPartition(int partitionNumber) throws IOException {
+    System.out.format("Partition %d \n", partitionNumber);
+    this.write();
+    this.collection = new TreeMap<>();
+    this.currentPartitionNumber = partitionNumber;
+  }
+
+  public void feed(String line) {
+    this.chunkParser.feed(line);
+  }
+
+  public void finish() throws IOException {
+    this.write();
+    this.outputFile.flush();
+  }
+
+  private void write() throws IOException {
+    // First time round won't have one.
+    if (this.collection == null) {
+      return;
+    }
+
+    for (Map.Entry<String, List<SpaceSaving>> entry : this.collection.entrySet()) {
+      SpaceSaving all = new SpaceSaving(this.capacity);
+      for (SpaceSaving month : entry.getValue()) {
+        all.merge(month);
+      }
+
+      TopCounter.writeChunk(this.outputFile, entry.getKey(), all);
+    }
+  }
+
+  // ChunkParserCallback
+  public void header(String name) {
+    this.currentSummary = null;
+
+    if (this.partitioner.partition(name) != this.currentPartitionNumber) {
+      this.currentDomain = null;
+      return;
+    }
+
+    this.currentDomain = this.collection.get(name);
+    if (this.currentDomain == null) {
+      this.currentDomain = new ArrayList<>();
+      this.collection.put(name, this.currentDomain);
+    }
+  }
+
+  // ChunkParserCallback
+  // First line is "total,floor", the rest are "count,error,doi".
+  public void line(String line) {
+    if (this.currentDomain == null) {
+      return;
+    }
+
+    int comma = line.indexOf(',');
+    if (this.currentSummary == null) {
+      this.currentSummary = new SpaceSaving(this.capacity, Long.parseLong(line.substring(0, comma)), Long.parseLong(line.substring(comma + 1)));
+      this.currentDomain.add(this.currentSummary);
+      return;
+    }
+
+    int comma2 = line.indexOf(',', comma + 1);
+    this.currentSummary.put(line.substring(comma2 + 1), Long.parseLong(line.substring(0, comma)), Long.parseLong(line.substring(comma + 1, comma2)));
+  }
+
+  public void dispose() {
+    this.collection = null;
+  }
+}
@@ -32,8 +32,10 @@ class DateCountEntry implements Comparable<DateCountEntry> {
     return this.entryName;
   }
 
+  // Ties go to the first name, so the top N doesn't depend on the order chunks were read in.
   public int compareTo(DateCountEntry other) {
-    return Long.compare(this.count, other.getCount());
+    int result = Long.compare(this.count, other.getCount());
+    return result != 0 ? result : other.getEntryName().compareTo(this.entryName);
   }
 
   DateCountEntry(String entryName, Long count) {
@@ -1,219 +1,171 @@
 package logpp.etld;
 
-import java.io.File;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.Scanner;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.List;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
-import java.util.Collections;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
+// Mutable trie used only while reading the suffix list.
 class Node {
-  String name;
   // Leaves aren't always leaves.
   // e.g. both 'uk' and 'co.uk' are valid.
   boolean possibleLeaf = false;
-  Map<String, Node> children = new HashMap<>();
-
-  Node(String name) {
-    this.name = name;
-  }
 
-  void markLeaf() {
-    this.possibleLeaf = true;
-  }
+  // Sorted, so that the compiled children can be binary searched.
+  Map<String, Node> children = new TreeMap<>();
 
-  // Add a domain recursively.
+  // Add a domain recursively, last label first.
   void add(List<String> domain) {
-    int length = domain.size();
-    
-    if (length == 0) {
-      return;
-    }
-
-    String name = domain.get(length-1);
-    List<String> rest = domain.subList(0, length-1);
-
-    Node node = this.children.get(name);
-    if (node == null) {
-      node = new Node(name);
-      this.children.put(name, node);
+    Node node = this;
+    for (int i = domain.size() - 1; i >= 0; i--) {
+      String name = domain.get(i);
+      Node child = node.children.get(name);
+      if (child == null) {
+        child = new Node();
+        node.children.put(name, child);
+      }
+      node = child;
     }
 
-    if (rest.isEmpty()) {
+    if (node != this) {
       node.markLeaf();
-    } else {
-      node.add(rest);
     }
-
   }
 
-  void print() {
-    System.out.println("***");
-    print(0);
-  }
-
-  void print(int indent) {
-    for (int i = 0 ; i < indent; i++) {
-      System.out.print(" ");
-    }
-
-    System.out.format("%s %s\n", this.name, this.possibleLeaf);
-    for (Map.Entry<String, Node> entry : this.children.entrySet()) {
-      entry.getValue().print(indent + 1);
-    }
+  void markLeaf() {
+    this.possibleLeaf = true;
   }
+}
 
-  String getDomain(String prefix, List<String> domain, boolean includeDomain) {
-    // System.out.println("Prefix: " + prefix + " domain: " + domain);
-
-    // If we've got here, by recursion or top-level, and there's none left, bail out.
-    // This can happen for invalid domains, e.g. intranets
-    // "http://wiki/wiki/display/intranet/Home;jsessionid=0BABB046E8BA084D51F92CDC1F4AF03D"
-    if (domain.size() == 0) {
-      return null;
-    }
-
-    int length = domain.size();
-    String name = domain.get(0);
-    List<String> rest = domain.subList(1, length);
-
-    // System.out.println("Name: " + name);
-    // System.out.println("Rest: " + rest);
+// Public suffix list, compiled once into an immutable trie of arrays and shared between all threads.
+// Hosts are matched label by label from the right, over the characters of the host, without splitting it up.
+public class ETLD {
+  // How many hosts to remember. When it fills up it's emptied and starts again.
+  private static final int CACHE_SIZE = Integer.getInteger("logpp.etldCacheSize", 100000);
 
-    // Match name of child or a wildcard.
-    Node child = this.children.get(name);
-    if (child == null) {
-      child = this.children.get("*");
-    }
+  // As well as the public suffixes, the "special" special domain for recording special things like UNKNOWN_DOMAIN.
+  private static final String[] EXTRA_LINES = new String[] {"special"};
 
-    // System.out.println("Child: " + child);
+  // Node 0 is the root. The children of node n are nodes firstChild[n] to firstChild[n] + childCount[n] - 1,
+  // sorted by label. Wildcard children ("*") are found by the same search.
+  private final String[] labels;
+  private final boolean[] possibleLeaf;
+  private final int[] firstChild;
+  private final int[] childCount;
 
-    // If we found a child, recurse.
-    if (child != null) {
-      // Don't join the empty top-level prefix with a ".".
-      if (prefix == "") {
-        return child.getDomain(name, rest, includeDomain);
-      } else {
-        return child.getDomain(name + "." + prefix, rest, includeDomain);
-      }
-    } else {
-      // If this can't be a leaf then not allowed to stop here.
-      if (this.possibleLeaf) {
-        if (includeDomain) {
-          return name + "." + prefix;
-        } else {
-          return prefix;
-        }
-      }
-    }
+  // Host -> [subdomains, domain].
+  private final Map<String, String[]> partsCache = new ConcurrentHashMap<>();
 
-    return null;
+  private static class InstanceHolder {
+    static final ETLD INSTANCE = load();
   }
-}
-
-public class ETLD {
-  Node head = new Node("");
 
-  // Cache of lookups that grows forever. The set of domains isn't huge.
-  Map<String, String> domainCache = new HashMap<>();
-  Map<String, String> eTldCache = new HashMap<>();
+  // The shared instance, built from the bundled public_suffix_list.dat.txt the first time it's needed.
+  public static ETLD getInstance() {
+    return InstanceHolder.INSTANCE;
+  }
 
-  public ETLD() {
-    ClassLoader classLoader = getClass().getClassLoader();
-    File file = new File(classLoader.getResource("public_suffix_list.dat.txt").getFile());
+  private static ETLD load() {
+    List<String> lines = new ArrayList<>();
 
-    try (Scanner scanner = new Scanner(file)) {
+    try (InputStream stream = ETLD.class.getClassLoader().getResourceAsStream("public_suffix_list.dat.txt")) {
+      if (stream == null) {
+        System.err.println("ERROR: Can't find public_suffix_list.dat.txt");
+        System.exit(1);
+      }
 
-      while (scanner.hasNextLine()) {
-        String line = scanner.nextLine();
-        if (line.startsWith("//")) {
-          continue;
+      BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.startsWith("//")) {
+          lines.add(line);
         }
-
-        this.addLine(line);
-
       }
-      scanner.close();
-
     } catch (IOException e) {
-      e.printStackTrace();
-    } 
-  }
-
-  private void quickTest() {
-    System.out.println("TEST ETLD");
-    String x;
-
-    x = "image.baidu.com";
-    System.out.println(x + " -> " + this.getDomain(x) + "," + this.getEtld(x) + ", " + Arrays.toString(this.getParts(x)));
-
-
-    x = "buscatextual.cnpq.br";
-    System.out.println(x + " -> " + this.getDomain(x) + "," + this.getEtld(x) + ", " + Arrays.toString(this.getParts(x)));
+      System.err.println("ERROR: Can't read public_suffix_list.dat.txt: " + e.toString());
+      System.exit(1);
+    }
 
-    x = "sfx.carli.illinois.edu";
-    System.out.println(x + " -> " + this.getDomain(x) + "," + this.getEtld(x) + ", " + Arrays.toString(this.getParts(x)));
+    lines.addAll(Arrays.asList(EXTRA_LINES));
 
-    x = "www.ncbi.nlm.nih.gov";
-    System.out.println(x + " -> " + this.getDomain(x) + "," + this.getEtld(x) + ", " + Arrays.toString(this.getParts(x)));
+    return new ETLD(lines);
+  }
 
-    x = "www.oecd.org";
-    System.out.println(x + " -> " + this.getDomain(x) + "," + this.getEtld(x) + ", " + Arrays.toString(this.getParts(x)));
+  // Build from lines in the public suffix list format. Comments should already be removed.
+  public ETLD(List<String> lines) {
+    Node head = new Node();
+    for (String line : lines) {
+      head.add(Arrays.asList(line.split("\\.")));
+    }
 
-    x = "aus.summon.serialssolutions.com";
-    System.out.println(x + " -> " + this.getDomain(x) + "," + this.getEtld(x) + ", " + Arrays.toString(this.getParts(x)));
+    // Lay the nodes out breadth-first so that siblings are next to each other.
+    List<Node> nodes = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+    nodes.add(head);
+    names.add("");
 
-    System.exit(1);
-  }
+    for (int i = 0; i < nodes.size(); i++) {
+      for (Map.Entry<String, Node> entry : nodes.get(i).children.entrySet()) {
+        names.add(entry.getKey());
+        nodes.add(entry.getValue());
+      }
+    }
 
-  public void addLine(String line) {
-    List<String> domain = Arrays.asList(line.split("\\."));
-    head.add(domain);
+    this.labels = names.toArray(new String[nodes.size()]);
+    this.possibleLeaf = new boolean[nodes.size()];
+    this.firstChild = new int[nodes.size()];
+    this.childCount = new int[nodes.size()];
+
+    int next = 1;
+    for (int i = 0; i < nodes.size(); i++) {
+      Node node = nodes.get(i);
+      this.possibleLeaf[i] = node.possibleLeaf;
+      this.firstChild[i] = next;
+      this.childCount[i] = node.children.size();
+      next += node.children.size();
+    }
   }
 
   // For www.xyz.com return xyz.com
-  private String split(String input, boolean includeDomain) {
-    input = input.toLowerCase();
-    List<String> domain = Arrays.asList(input.split("\\.", -1));
-    Collections.reverse(domain);
-    return this.head.getDomain("", domain, includeDomain);
-  }
-
+  // Null if there isn't one, e.g. for "co.uk" or "wiki".
   public String getDomain(String input) {
-    String result = this.domainCache.get(input);
-    if (result != null) {
-      return result;
-    }
-
-    result = this.split(input, true);
-    this.domainCache.put(input, result);
-    
-    return result;
+    String domain = this.getParts(input)[1];
+    return domain.isEmpty() ? null : domain;
   }
 
+  // For www.xyz.com return com
   public String getEtld(String input) {
-    String result = this.eTldCache.get(input);
+    String lower = input.toLowerCase();
+    int[] bounds = this.match(lower);
+    return bounds == null ? null : lower.substring(bounds[1] + 1);
+  }
+
+  // Return [subdomains, domain]
+  // The array is shared with the cache, so don't modify it.
+  public String[] getParts(String input) {
+    String[] result = this.partsCache.get(input);
     if (result != null) {
       return result;
     }
 
-    result = this.split(input, false);
-    this.eTldCache.put(input, result);
-    
-    return result;
-  }
+    String lower = input.toLowerCase();
+    int[] bounds = this.match(lower);
 
-  // Return [subdomains, domain]
-  public String[] getParts(String input) {
-    String domain = this.getDomain(input);
+    String domain;
     String subdomain;
-    if (domain == null) {
+    if (bounds == null) {
       domain = "";
       subdomain = "";
     } else {
+      domain = lower.substring(bounds[0]);
+
       // If there's a domain, remove it to get the subdomain, including the "." separator.
       // No subdomain means no separator, so skip.
       int snip = input.length() - domain.length() - 1;
@@ -224,6 +176,83 @@ public class ETLD {
       }
     }
 
-    return new String[] {subdomain, domain};
+    result = new String[] {subdomain, domain};
+
+    // Crude bound. The set of hosts isn't huge, so this should rarely happen.
+    if (this.partsCache.size() >= CACHE_SIZE) {
+      this.partsCache.clear();
+    }
+    this.partsCache.put(input, result);
+
+    return result;
+  }
+
+  // Walk down the trie from the last label of the (lower-cased) host.
+  // Return [start, end) of the label just above the matched public suffix, i.e. the domain is everything from start.
+  // Null if the host doesn't have a domain.
+  private int[] match(String host) {
+    int node = 0;
+    int end = host.length();
+
+    while (end >= 0) {
+      // Label is [start, end). Labels can be empty, e.g. for "example.com."
+      int start = host.lastIndexOf('.', end - 1) + 1;
+
+      int child = this.findChild(node, host, start, end);
+
+      if (child >= 0) {
+        node = child;
+        end = start - 1;
+      } else if (this.possibleLeaf[node]) {
+        return new int[] {start, end};
+      } else {
+        return null;
+      }
+    }
+
+    // Ran out of labels, e.g. the host is itself a public suffix.
+    return null;
+  }
+
+  // Child of node that matches the label host[start, end), or a wildcard child, or -1.
+  private int findChild(int node, String host, int start, int end) {
+    int found = this.search(node, host, start, end);
+    if (found < 0) {
+      found = this.search(node, "*", 0, 1);
+    }
+    return found;
+  }
+
+  // Binary search the children of node for the label host[start, end).
+  private int search(int node, String host, int start, int end) {
+    int low = this.firstChild[node];
+    int high = low + this.childCount[node] - 1;
+
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = compare(this.labels[middle], host, start, end);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+
+    return -1;
+  }
+
+  // Same ordering as String.compareTo, against a region of another string.
+  private static int compare(String label, String host, int start, int end) {
+    int length = Math.min(label.length(), end - start);
+    for (int i = 0; i < length; i++) {
+      char a = label.charAt(i);
+      char b = host.charAt(start + i);
+      if (a != b) {
+        return a - b;
+      }
+    }
+    return label.length() - (end - start);
   }
 }